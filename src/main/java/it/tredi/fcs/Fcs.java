@@ -1,9 +1,15 @@
 package it.tredi.fcs;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.security.AccessControlException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,6 +17,17 @@ import org.jodconverter.office.DefaultOfficeManagerBuilder;
 import org.jodconverter.office.OfficeException;
 import org.jodconverter.office.OfficeManager;
 
+import it.tredi.fcs.command.FcaCommandExecutor;
+import it.tredi.fcs.command.async.FcaJobQueue;
+import it.tredi.fcs.command.comparison.Compare;
+import it.tredi.fcs.command.detection.FileTypeDetector;
+import it.tredi.fcs.command.extraction.TikaParserRegistry;
+import it.tredi.fcs.command.ocr.OcrExecutor;
+import it.tredi.fcs.memory.MemoryBudget;
+import it.tredi.fcs.transfer.SocketTransport;
+import it.tredi.fcs.workdir.WorkDirJanitor;
+import it.tredi.fcs.workdir.WorkDirManager;
+
 /**
  * Servizio FCS di indicizzazione/conversione di documenti
  * @author mbernardini
@@ -22,6 +39,9 @@ public abstract class Fcs {
 	public static final String FCS_ARTIFACTID = "abstract-fcs";
 	public static final String FCS_GROUPID = "it.tredi";
 
+	// Tempo massimo di attesa delle richieste in corso in caso di configurazione non disponibile
+	private static final long DEFAULT_DRAIN_TIMEOUT = 60000;
+
 	private ServerSocket serverSocket = null; // server Socket
 
 	/** Shutdown hook thread instance **/
@@ -30,6 +50,20 @@ public abstract class Fcs {
 	/** Manager di connessione OpenOffice (o LibreOffice) **/
 	private OfficeManager officeManager;
 
+	/** Istanza di FCS in esecuzione (per l'arresto controllato richiesto tramite stop) **/
+	private static volatile Fcs running = null;
+
+	/** Arresto controllato in corso: non vengono accettate nuove connessioni **/
+	private volatile boolean draining = false;
+	/** Arresto controllato completato **/
+	private boolean drained = false;
+	private final CountDownLatch drainLatch = new CountDownLatch(1);
+	/** Chiusura delle risorse del servizio gia' eseguita **/
+	private final AtomicBoolean finished = new AtomicBoolean(false);
+
+	/** Thread attivi sulle connessioni dei client **/
+	private final Set<FcsThread> activeThreads = ConcurrentHashMap.newKeySet();
+
 	/**
 	 * Costruttore
 	 * @throws Exception
@@ -45,8 +79,21 @@ public abstract class Fcs {
 			logger.info("FCS version: " + getAppVersion() + " " + getAppBuildDate());
 		}
 
-		// caricamento della configurazione di FCS
+		// caricamento della configurazione di FCS (con monitoraggio delle modifiche al file di properties)
 		FcsConfig.getInstance();
+		FcsConfigWatcher.start();
+
+		// inizializzazione degli strumenti condivisi fra tutti i thread (detector ed estrazione del testo)
+		FileTypeDetector.getInstance();
+		TikaParserRegistry.getInstance();
+
+		// inizializzazione delle aree di lavoro e avvio del thread di pulizia (cancellazione in background delle directory di lavoro di precedenti
+		// esecuzioni)
+		WorkDirManager.getInstance();
+		WorkDirJanitor.getInstance();
+
+		// budget di memoria delle richieste (registrazione dell'MBean JMX di consultazione dell'utilizzo)
+		MemoryBudget.getInstance();
 	}
 	
 	/**
@@ -67,7 +114,7 @@ public abstract class Fcs {
 	 */
 	public void run() throws Exception {
 		try {
-			serverSocket = new ServerSocket(FcsConfig.getInstance().getFcsPort());
+			serverSocket = SocketTransport.createServerSocket(FcsConfig.getInstance());
 		}
 		catch (IOException e) {
 			logger.error("Fcs.run(): got exception creating server socket... " + e.getMessage(), e);
@@ -87,30 +134,46 @@ public abstract class Fcs {
 		try {
 			startOpenOfficeManager();
 
+			// avvio della coda di elaborazione delle richieste FCA asincrone (con rielaborazione delle richieste non completate)
+			if (FcsConfig.getInstance().isFcsFcaAsyncEnabled())
+				FcaJobQueue.init(this, officeManager);
+
 			if (logger.isInfoEnabled())
 				logger.info("Fcs.run(): server listening to the port " + serverSocket.getLocalPort());
 
-			while(true) {
+			running = this;
+			while (!draining) {
 				try {
 					// mi preparo ad accettare una connessione
 					Socket clientSocket = serverSocket.accept();
 
 					FcsThread clientThread = getFcsThread(clientSocket);
 					clientThread.setOfficeManager(officeManager);
+					activeThreads.removeIf(t -> !t.isAlive());
+					activeThreads.add(clientThread);
 					clientThread.start();
 				}
+				catch (SocketTimeoutException e1) {
+					// nessuna connessione entro il timeout di accept, nuova attesa
+				}
 				catch (Exception e1) {
+					if (draining)
+						break; // server socket chiuso dall'arresto controllato
 					logger.error("Fcs.run(): got exception... " + e1.getMessage(), e1);
 				}
 			}
+
+			// attesa del completamento delle richieste in corso
+			drainLatch.await();
 		}
 		catch (Exception e) {
 			onRunException(e);
 			throw e;
 		}
 		finally {
-			stopOpenOfficeManager();
-			onRunFinally();
+			if (running == this)
+				running = null;
+			finish();
 
 			if (shutdownHook != null) {
 				try {
@@ -125,13 +188,110 @@ public abstract class Fcs {
 	}
 
 	/**
-	 * Metodo chiamato per arrestare il servizio
+	 * Metodo chiamato per arrestare il servizio. Prima dell'uscita viene eseguito l'arresto controllato dell'istanza in esecuzione (vedi
+	 * {@link #drain()}).
 	 */
 	public static void stop(String[] args) {
+		Fcs fcs = running;
+		if (fcs != null)
+			fcs.drain();
+
 		logger.info("Fcs.stop(): exit method now call System.exit(0)");
 		System.exit(0);
 	}
 
+	/**
+	 * Arresto controllato del servizio: viene chiuso il server socket (nessuna nuova connessione accettata, con fcs.socket.reuseport abilitato
+	 * le nuove connessioni vengono gestite dall'eventuale nuova istanza in ascolto sulla stessa porta), le richieste in corso vengono
+	 * completate entro il tempo massimo indicato dal parametro fcs.drain.timeout, quindi vengono arrestati gli executor di elaborazione
+	 * (coda FCA asincrona, comparazioni, OCR) e il manager di OpenOffice.
+	 * @return true se tutte le richieste in corso sono state completate entro il tempo massimo, false altrimenti
+	 */
+	public synchronized boolean drain() {
+		if (drained)
+			return true;
+
+		long start = System.currentTimeMillis();
+		long timeout = DEFAULT_DRAIN_TIMEOUT;
+		boolean asyncEnabled = false;
+		try {
+			FcsConfig config = FcsConfig.getInstance();
+			timeout = config.getFcsDrainTimeout();
+			asyncEnabled = config.isFcsFcaAsyncEnabled();
+		}
+		catch (Exception e) {
+			logger.warn("Fcs.drain(): unable to read configuration, use default drain timeout " + timeout + "... " + e.getMessage());
+		}
+		long deadline = start + timeout;
+
+		if (logger.isInfoEnabled())
+			logger.info("Fcs.drain(): FCS draining, wait for in-flight requests [timeout = " + timeout + "]");
+
+		// nessuna nuova connessione
+		draining = true;
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			}
+			catch (IOException e) {
+				logger.warn("Fcs.drain(): got exception closing server socket... " + e.getMessage());
+			}
+		}
+
+		// completamento delle richieste in corso sulle connessioni dei client
+		boolean completed = true;
+		for (FcsThread thread : activeThreads)
+			thread.drain();
+		for (FcsThread thread : activeThreads) {
+			try {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0)
+					thread.join(remaining);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (thread.isAlive()) {
+				completed = false;
+				logger.warn("Fcs.drain(): " + thread.getName() + " still running after drain timeout");
+			}
+		}
+		activeThreads.clear();
+
+		// completamento delle richieste FCA asincrone (le richieste non completate vengono rielaborate dal journal al riavvio)
+		if (asyncEnabled) {
+			try {
+				if (!FcaJobQueue.getInstance().drain(deadline - System.currentTimeMillis()))
+					completed = false;
+			}
+			catch (Exception e) {
+				completed = false;
+				logger.warn("Fcs.drain(): got exception draining FCA async queue... " + e.getMessage(), e);
+			}
+		}
+
+		Compare.shutdown();
+		OcrExecutor.shutdownIfStarted();
+		stopOpenOfficeManager();
+
+		drained = true;
+		drainLatch.countDown();
+
+		if (logger.isInfoEnabled())
+			logger.info("Fcs.drain(): FCS drained in " + (System.currentTimeMillis()-start) + " millis. [completed = " + completed + "]");
+		return completed;
+	}
+
+	/**
+	 * Chiusura delle risorse del servizio (eseguita una sola volta, al termine del RUN o dallo shutdown hook)
+	 */
+	private void finish() {
+		if (finished.compareAndSet(false, true)) {
+			stopOpenOfficeManager();
+			onRunFinally();
+		}
+	}
+
 	/**
 	 * Eventuali azioni da compiere in caso di eccezione su RUN di FCS
 	 * @param e
@@ -145,20 +305,22 @@ public abstract class Fcs {
 
 	/**
 	 * Avvio del manager di OpenOffice (o LibreOffice). Identificazione della home directory e delle porte sulle quali comunicare. Viene settato
-	 * l'eventuale tempo limite di attesa prima di killare il processo di conversione.
+	 * l'eventuale tempo limite di attesa prima di killare il processo di conversione. Puo' essere ridefinito dalle estensioni che non
+	 * richiedono OpenOffice (es. test sull'overhead di FCS con executor sintetico).
 	 * @throws Exception
 	 */
-	private void startOpenOfficeManager() throws Exception {
+	protected void startOpenOfficeManager() throws Exception {
 		DefaultOfficeManagerBuilder officeManagerBuild = new DefaultOfficeManagerBuilder();
+		FcsConfig config = FcsConfig.getInstance();
 
 		// Evenuale path alla home directory di OpenOffice (o LibreOffice)
-		if (FcsConfig.getInstance().getFcsConversionDocOpenOfficeHomeDir() != null && !FcsConfig.getInstance().getFcsConversionDocOpenOfficeHomeDir().isEmpty())
-			officeManagerBuild.setOfficeHome(FcsConfig.getInstance().getFcsConversionDocOpenOfficeHomeDir());
+		if (config.getFcsConversionDocOpenOfficeHomeDir() != null && !config.getFcsConversionDocOpenOfficeHomeDir().isEmpty())
+			officeManagerBuild.setOfficeHome(config.getFcsConversionDocOpenOfficeHomeDir());
 
-		if (FcsConfig.getInstance().getFcsConversionDocOpenOfficePorts() != null && FcsConfig.getInstance().getFcsConversionDocOpenOfficePorts().length > 0)
-			officeManagerBuild.setPortNumbers(FcsConfig.getInstance().getFcsConversionDocOpenOfficePorts());
-		if (FcsConfig.getInstance().getFcsConversionTimout() > 0)
-			officeManagerBuild.setTaskExecutionTimeout(FcsConfig.getInstance().getFcsConversionTimout());
+		if (config.getFcsConversionDocOpenOfficePorts() != null && config.getFcsConversionDocOpenOfficePorts().length > 0)
+			officeManagerBuild.setPortNumbers(config.getFcsConversionDocOpenOfficePorts());
+		if (config.getFcsConversionTimout() > 0)
+			officeManagerBuild.setTaskExecutionTimeout(config.getFcsConversionTimout());
 
 		this.officeManager = officeManagerBuild.build();
 		this.officeManager.start();
@@ -173,7 +335,9 @@ public abstract class Fcs {
 	private void stopOpenOfficeManager() {
 		try {
 			if (officeManager != null) {
-				officeManager.stop();
+				OfficeManager manager = officeManager;
+				officeManager = null;
+				manager.stop();
 
 				if (logger.isInfoEnabled())
 					logger.info("Fcs.stopOpenOfficeManager(): OfficeManager stopped!");
@@ -193,6 +357,20 @@ public abstract class Fcs {
 	 */
 	public abstract FcsThread getFcsThread(Socket clientSocket) throws Exception;
 
+	/**
+	 * Istanzia l'FcaCommandExecutor per l'elaborazione di una richiesta FCA al di fuori di una connessione Socket (es. elaborazione asincrona
+	 * delle richieste registrate sul journal). L'implementazione di default utilizza l'FcsThread dell'applicazione.
+	 * @param id
+	 * @param convTo
+	 * @param additionalParams
+	 * @param workDir
+	 * @return
+	 * @throws Exception
+	 */
+	public FcaCommandExecutor getFcaCommandExecutor(String id, String[] convTo, String additionalParams, File workDir) throws Exception {
+		return getFcsThread(null).getFcaCommandExecutor(id, convTo, additionalParams, workDir);
+	}
+
 	/**
 	 * Called on shutdown. This gives use a chance to store the keys and to optimize even if the cache manager's shutdown method was not called
 	 * manually.
@@ -208,8 +386,8 @@ public abstract class Fcs {
 			if (logger.isInfoEnabled())
 				logger.info("FcsShutdownHook hook ACTIVATED. Shutdown was not called. CALL onRunFinally().");
 			try {
-				stopOpenOfficeManager();
-				onRunFinally();
+				drain();
+				finish();
 			}
 			catch (Exception e) {
 				logger.error("FcsShutdownHook: got exception on fcs closure... " + e.getMessage(), e);
@@ -1,18 +1,23 @@
 package it.tredi.fcs;
 
 import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import it.tredi.fcs.socket.commands.entity.FcsActivationParams;
+import it.tredi.fcs.workdir.WorkDirJanitor;
 import it.tredi.utils.properties.PropertiesReader;
 
 /**
- * Parametri di configurazione di FCS
+ * Parametri di configurazione di FCS. La configurazione viene pubblicata come snapshot immutabile tramite riferimento atomico: ogni modifica
+ * (ricaricamento del file di properties o nuovi parametri di attivazione inviati da FCA) genera un nuovo snapshot, le richieste in corso
+ * continuano ad utilizzare lo snapshot letto ad inizio elaborazione.
  * @author mbernardini
  */
 public class FcsConfig {
@@ -22,8 +27,37 @@ public class FcsConfig {
 	private static final String PROPERTIES_FILE_NAME = "it.tredi.abstract-fcs.properties";
 	
 	private static final String FCS_PORT_PROPERTY = "fcs.port";
+	private static final String FCS_SOCKET_BACKLOG_PROPERTY = "fcs.socket.backlog";
+	private static final String FCS_SOCKET_ACCEPT_TIMEOUT_PROPERTY = "fcs.socket.accept.timeout";
+	private static final String FCS_SOCKET_READ_TIMEOUT_PROPERTY = "fcs.socket.read.timeout";
+	private static final String FCS_SOCKET_TCP_NODELAY_PROPERTY = "fcs.socket.tcp.nodelay";
+	private static final String FCS_SOCKET_SEND_BUFFER_SIZE_PROPERTY = "fcs.socket.send.buffer.size";
+	private static final String FCS_SOCKET_RECEIVE_BUFFER_SIZE_PROPERTY = "fcs.socket.receive.buffer.size";
+	private static final String FCS_SOCKET_STREAM_BUFFER_SIZE_PROPERTY = "fcs.socket.stream.buffer.size";
+	private static final String FCS_SOCKET_REUSEPORT_PROPERTY = "fcs.socket.reuseport";
+	private static final String FCS_DRAIN_TIMEOUT_PROPERTY = "fcs.drain.timeout";
+	private static final String FCS_CONFIG_WATCH_PROPERTY = "fcs.config.watch";
+	private static final String FCS_SESSION_ENABLED_PROPERTY = "fcs.session.enabled";
+	private static final String FCS_SESSION_IDLE_TIMEOUT_PROPERTY = "fcs.session.idle.timeout";
+	private static final String FCS_FCA_BATCH_PARALLELISM_PROPERTY = "fcs.fca.batch.parallelism";
+	private static final String FCS_FCA_ASYNC_ENABLED_PROPERTY = "fcs.fca.async.enabled";
+	private static final String FCS_FCA_ASYNC_JOURNAL_FOLDER_PROPERTY = "fcs.fca.async.journal.folder";
+	private static final String FCS_FCA_ASYNC_WORKERS_PROPERTY = "fcs.fca.async.workers";
+	private static final String FCS_TRANSFER_COMPRESSION_ENABLED_PROPERTY = "fcs.transfer.compression.enabled";
+	private static final String FCS_TRANSFER_COMPRESSION_THRESHOLD_PROPERTY = "fcs.transfer.compression.threshold";
+	private static final String FCS_TRANSFER_COMPRESSION_INFLATED_MAX_SIZE_PROPERTY = "fcs.transfer.compression.inflated.max.size";
+	private static final String FCS_TRANSFER_UPLOADS_FOLDER_PROPERTY = "fcs.transfer.uploads.folder";
+	private static final String FCS_TRANSFER_UPLOADS_EXPIRY_PROPERTY = "fcs.transfer.uploads.expiry";
+	private static final String FCS_TRANSFER_CHUNK_MAX_SIZE_PROPERTY = "fcs.transfer.chunk.max.size";
+	private static final String FCS_COMPARISON_TEXT_FASTPATH_PROPERTY = "fcs.comparison.text.fastpath";
+	private static final String FCS_MEMORY_BUDGET_PROPERTY = "fcs.memory.budget";
+	private static final String FCS_MEMORY_BUDGET_WAIT_TIMEOUT_PROPERTY = "fcs.memory.budget.wait.timeout";
 	private static final String FCS_WORKING_FOLDER_PROPERTY = "fcs.working.folder";
 	private static final String FCS_WORKING_TIMEOUT_PROPERTY = "fcs.working.timeout";
+	private static final String FCS_WORKING_RAM_FOLDER_PROPERTY = "fcs.working.ram.folder";
+	private static final String FCS_WORKING_RAM_QUOTA_PROPERTY = "fcs.working.ram.quota";
+	private static final String FCS_WORKING_SWEEP_INTERVAL_PROPERTY = "fcs.working.sweep.interval";
+	private static final String FCS_WORKING_ORPHAN_AGE_PROPERTY = "fcs.working.orphan.age";
 	
 	private static final String FCS_CONVERSION_TIMEOUT_PROPERTY = "fcs.conversion.timeout";
 	
@@ -34,8 +68,42 @@ public class FcsConfig {
 	private static final String FCS_CONVERSION_IMAGEMAGICK_EXTENSIONS_PROPERTY = "fcs.conversion.imagemagick.extensions";
 	private static final String FCS_CONVERSION_IMAGEMAGICK_COMMAND_PROPERTY = "fcs.conversion.imagemagick.command";
 	
+	private static final String FCS_OCR_THREADS_PROPERTY = "fcs.ocr.threads";
+	private static final String FCS_OCR_PAGE_TIMEOUT_PROPERTY = "fcs.ocr.page.timeout";
+	private static final String FCS_OCR_EXTENSIONS_PROPERTY = "fcs.ocr.extensions";
+	private static final String FCS_OCR_PDF_DPI_PROPERTY = "fcs.ocr.pdf.dpi";
+	private static final String FCS_OCR_IMAGEMAGICK_SPLIT_COMMAND_PROPERTY = "fcs.ocr.imagemagick.split.command";
+	private static final String FCS_OCR_CACHE_FOLDER_PROPERTY = "fcs.ocr.cache.folder";
+	private static final String FCS_OCR_CACHE_MAX_ENTRIES_PROPERTY = "fcs.ocr.cache.max.entries";
+	
 	private static final int FCS_PORT_DEFAULT_VALUE = 4870;
+	private static final int FCS_SOCKET_BACKLOG_DEFAULT_VALUE = 50;
+	private static final int FCS_SOCKET_ACCEPT_TIMEOUT_DEFAULT_VALUE = 0; // nessun timeout
+	private static final int FCS_SOCKET_READ_TIMEOUT_DEFAULT_VALUE = 0; // nessun timeout
+	private static final boolean FCS_SOCKET_TCP_NODELAY_DEFAULT_VALUE = true;
+	private static final int FCS_SOCKET_SEND_BUFFER_SIZE_DEFAULT_VALUE = 0; // default di sistema
+	private static final int FCS_SOCKET_RECEIVE_BUFFER_SIZE_DEFAULT_VALUE = 0; // default di sistema
+	private static final int FCS_SOCKET_STREAM_BUFFER_SIZE_DEFAULT_VALUE = 65536; // 64 KB
+	private static final boolean FCS_SOCKET_REUSEPORT_DEFAULT_VALUE = false;
+	private static final long FCS_DRAIN_TIMEOUT_DEFAULT_VALUE = 60000;
+	private static final boolean FCS_CONFIG_WATCH_DEFAULT_VALUE = true;
+	private static final boolean FCS_SESSION_ENABLED_DEFAULT_VALUE = false;
+	private static final int FCS_SESSION_IDLE_TIMEOUT_DEFAULT_VALUE = 60000;
+	private static final int FCS_FCA_BATCH_PARALLELISM_DEFAULT_VALUE = 4;
+	private static final boolean FCS_FCA_ASYNC_ENABLED_DEFAULT_VALUE = false;
+	private static final int FCS_FCA_ASYNC_WORKERS_DEFAULT_VALUE = 2;
+	private static final boolean FCS_TRANSFER_COMPRESSION_ENABLED_DEFAULT_VALUE = true;
+	private static final int FCS_TRANSFER_COMPRESSION_THRESHOLD_DEFAULT_VALUE = 65536; // 64 KB
+	private static final long FCS_TRANSFER_COMPRESSION_INFLATED_MAX_SIZE_DEFAULT_VALUE = 268435456; // 256 MB
+	private static final long FCS_TRANSFER_UPLOADS_EXPIRY_DEFAULT_VALUE = 86400000; // 24 ore
+	private static final int FCS_TRANSFER_CHUNK_MAX_SIZE_DEFAULT_VALUE = 16777216; // 16 MB
+	private static final boolean FCS_COMPARISON_TEXT_FASTPATH_DEFAULT_VALUE = false;
+	private static final long FCS_MEMORY_BUDGET_DEFAULT_VALUE = 0; // nessun limite
+	private static final long FCS_MEMORY_BUDGET_WAIT_TIMEOUT_DEFAULT_VALUE = 30000;
 	private static final long FCS_WORKING_TIMEOUT_DEFAULT_VALUE = 60000;
+	private static final long FCS_WORKING_RAM_QUOTA_DEFAULT_VALUE = 268435456; // 256 MB
+	private static final long FCS_WORKING_SWEEP_INTERVAL_DEFAULT_VALUE = 300000; // 5 minuti
+	private static final long FCS_WORKING_ORPHAN_AGE_DEFAULT_VALUE = 3600000; // 1 ora
 	
 	private static final long FCS_CONVERSION_TIMEOUT_DEFAULT_VALUE = 0;
 	
@@ -43,36 +111,99 @@ public class FcsConfig {
 	
 	private static final boolean FCS_CONVERSIONE_DOC_OPENOFFICE_PDFA_DEFAULT_VALUE = false;
 	
-	private int fcsPort = 0;
-	private File fcsWorkingFolder;
-	private long fcsWorkingTimeout = 0; // TODO da rimuovere
+	private static final long FCS_OCR_PAGE_TIMEOUT_DEFAULT_VALUE = 120000;
+	private static final String FCS_OCR_EXTENSIONS_DEFAULT_VALUE = "pdf,tiff,tif";
+	private static final int FCS_OCR_PDF_DPI_DEFAULT_VALUE = 300;
+	private static final int FCS_OCR_CACHE_MAX_ENTRIES_DEFAULT_VALUE = 100000;
+	
+	private final int fcsPort;
+	private final int fcsSocketBacklog;
+	private final int fcsSocketAcceptTimeout;
+	private final int fcsSocketReadTimeout;
+	private final boolean fcsSocketTcpNoDelay;
+	private final int fcsSocketSendBufferSize;
+	private final int fcsSocketReceiveBufferSize;
+	private final int fcsSocketStreamBufferSize;
+	private final boolean fcsSocketReusePort;
+	private final long fcsDrainTimeout;
+	private final boolean fcsConfigWatch;
+	private final boolean fcsSessionEnabled;
+	private final int fcsSessionIdleTimeout;
+	private final int fcsFcaBatchParallelism;
+	private final boolean fcsFcaAsyncEnabled;
+	private final File fcsFcaAsyncJournalFolder;
+	private final int fcsFcaAsyncWorkers;
+	private final boolean fcsTransferCompressionEnabled;
+	private final int fcsTransferCompressionThreshold;
+	private final long fcsTransferCompressionInflatedMaxSize;
+	private final File fcsTransferUploadsFolder;
+	private final long fcsTransferUploadsExpiry;
+	private final int fcsTransferChunkMaxSize;
+	private final boolean fcsComparisonTextFastpath;
+	private final long fcsMemoryBudget;
+	private final long fcsMemoryBudgetWaitTimeout;
+	private final File fcsWorkingFolder;
+	private final long fcsWorkingTimeout; // TODO da rimuovere
+	private final File fcsWorkingRamFolder;
+	private final long fcsWorkingRamQuota;
+	private final long fcsWorkingSweepInterval;
+	private final long fcsWorkingOrphanAge;
+	
+	private final long fcsConversionTimout;
 	
-	private long fcsConversionTimout = 0;
+	private final String fcsConversionDocOpenOfficeHomeDir;
+	private final int[] fcsConversionDocOpenOfficePorts;
+	private final boolean fcsConversionDocOpenOfficePdfA;
 	
-	private String fcsConversionDocOpenOfficeHomeDir;
-	private int[] fcsConversionDocOpenOfficePorts = null;
-	private boolean fcsConversionDocOpenOfficePdfA = false;
+	private final String[] fcsConversionImageMagickExtensions;
+	private final String fcsConversionImageMagickCommand;
 	
-	private String[] fcsConversionImageMagickExtensions = null;
-	private String fcsConversionImageMagickCommand;
+	private final int fcsOcrThreads;
+	private final long fcsOcrPageTimeout;
+	private final String[] fcsOcrExtensions;
+	private final int fcsOcrPdfDpi;
+	private final String fcsOcrImageMagickSplitCommand;
+	private final File fcsOcrCacheFolder;
+	private final int fcsOcrCacheMaxEntries;
 	
-	private FcsActivationParams activationParams = null;
+	private final FcsActivationParams activationParams;
 	
-	// Singleton
-    private static FcsConfig instance = null;
+	// Snapshot corrente della configurazione
+    private static final AtomicReference<FcsConfig> current = new AtomicReference<FcsConfig>();
     
     /**
-     * Costruttore privato
+     * Costruttore privato: lettura della configurazione dal file di properties (parametri di attivazione non valorizzati)
+     * @param propertiesReader Lettore del file di properties
      */
-    private FcsConfig() throws Exception {
-    	PropertiesReader propertiesReader = new PropertiesReader(PROPERTIES_FILE_NAME); 
-    	
-    	this.fcsPort = propertiesReader.getIntProperty(FCS_PORT_PROPERTY, 0);
-    	if (this.fcsPort == 0) {
+    private FcsConfig(PropertiesReader propertiesReader) throws Exception {
+    	int port = propertiesReader.getIntProperty(FCS_PORT_PROPERTY, 0);
+    	if (port == 0) {
     		if (logger.isInfoEnabled())
     			logger.info("FcsConfig: FCS port value not specified, assign default value = " + FCS_PORT_DEFAULT_VALUE);
-    		this.fcsPort = FCS_PORT_DEFAULT_VALUE;
+    		port = FCS_PORT_DEFAULT_VALUE;
     	}
+    	this.fcsPort = port;
+    	
+    	// Parametri TCP del server socket e delle connessioni dei client
+    	this.fcsSocketBacklog = propertiesReader.getIntProperty(FCS_SOCKET_BACKLOG_PROPERTY, FCS_SOCKET_BACKLOG_DEFAULT_VALUE);
+    	this.fcsSocketAcceptTimeout = propertiesReader.getIntProperty(FCS_SOCKET_ACCEPT_TIMEOUT_PROPERTY, FCS_SOCKET_ACCEPT_TIMEOUT_DEFAULT_VALUE);
+    	this.fcsSocketReadTimeout = propertiesReader.getIntProperty(FCS_SOCKET_READ_TIMEOUT_PROPERTY, FCS_SOCKET_READ_TIMEOUT_DEFAULT_VALUE);
+    	this.fcsSocketTcpNoDelay = propertiesReader.getBooleanProperty(FCS_SOCKET_TCP_NODELAY_PROPERTY, FCS_SOCKET_TCP_NODELAY_DEFAULT_VALUE);
+    	this.fcsSocketSendBufferSize = propertiesReader.getIntProperty(FCS_SOCKET_SEND_BUFFER_SIZE_PROPERTY, FCS_SOCKET_SEND_BUFFER_SIZE_DEFAULT_VALUE);
+    	this.fcsSocketReceiveBufferSize = propertiesReader.getIntProperty(FCS_SOCKET_RECEIVE_BUFFER_SIZE_PROPERTY, FCS_SOCKET_RECEIVE_BUFFER_SIZE_DEFAULT_VALUE);
+    	this.fcsSocketStreamBufferSize = propertiesReader.getIntProperty(FCS_SOCKET_STREAM_BUFFER_SIZE_PROPERTY, FCS_SOCKET_STREAM_BUFFER_SIZE_DEFAULT_VALUE);
+    	this.fcsSocketReusePort = propertiesReader.getBooleanProperty(FCS_SOCKET_REUSEPORT_PROPERTY, FCS_SOCKET_REUSEPORT_DEFAULT_VALUE);
+    	
+    	// Arresto controllato del servizio (attesa del completamento delle richieste in corso)
+    	this.fcsDrainTimeout = propertiesReader.getLongProperty(FCS_DRAIN_TIMEOUT_PROPERTY, FCS_DRAIN_TIMEOUT_DEFAULT_VALUE);
+    	this.fcsConfigWatch = propertiesReader.getBooleanProperty(FCS_CONFIG_WATCH_PROPERTY, FCS_CONFIG_WATCH_DEFAULT_VALUE);
+    	
+    	// Sessioni multi-richiesta (piu' comandi sulla stessa connessione)
+    	this.fcsSessionEnabled = propertiesReader.getBooleanProperty(FCS_SESSION_ENABLED_PROPERTY, FCS_SESSION_ENABLED_DEFAULT_VALUE);
+    	this.fcsSessionIdleTimeout = propertiesReader.getIntProperty(FCS_SESSION_IDLE_TIMEOUT_PROPERTY, FCS_SESSION_IDLE_TIMEOUT_DEFAULT_VALUE);
+    	
+    	// Numero massimo di documenti elaborati in parallelo per una richiesta FCA batch
+    	this.fcsFcaBatchParallelism = propertiesReader.getIntProperty(FCS_FCA_BATCH_PARALLELISM_PROPERTY, FCS_FCA_BATCH_PARALLELISM_DEFAULT_VALUE);
     	
     	String strWorkingFolder = propertiesReader.getProperty(FCS_WORKING_FOLDER_PROPERTY, null);
     	if (strWorkingFolder == null || strWorkingFolder.isEmpty()) {
@@ -83,47 +214,222 @@ public class FcsConfig {
     	}
     	this.fcsWorkingFolder = new File(strWorkingFolder);
     	
-    	// Cancellazione della directory di lavoro con successiva rigenerazione (svuoto eventuali file temporanei di precedenti elaborazioni)
-    	if (this.fcsWorkingFolder.exists()) 
-    		FileUtils.deleteDirectory(this.fcsWorkingFolder); 
-    	if (!this.fcsWorkingFolder.mkdirs())
-    		throw new Exception("Unable to create FCS working folder... " + strWorkingFolder);
+    	// Elaborazione asincrona delle richieste FCA (journal locale e coda di worker)
+    	this.fcsFcaAsyncEnabled = propertiesReader.getBooleanProperty(FCS_FCA_ASYNC_ENABLED_PROPERTY, FCS_FCA_ASYNC_ENABLED_DEFAULT_VALUE);
+    	String strJournalFolder = propertiesReader.getProperty(FCS_FCA_ASYNC_JOURNAL_FOLDER_PROPERTY, null);
+    	if (strJournalFolder == null || strJournalFolder.isEmpty()) {
+    		// il journal non puo' risiedere nella directory di lavoro (svuotata ad ogni avvio)
+    		strJournalFolder = this.fcsWorkingFolder.getAbsolutePath() + "-journal";
+    	}
+    	this.fcsFcaAsyncJournalFolder = new File(strJournalFolder);
+    	this.fcsFcaAsyncWorkers = propertiesReader.getIntProperty(FCS_FCA_ASYNC_WORKERS_PROPERTY, FCS_FCA_ASYNC_WORKERS_DEFAULT_VALUE);
+    	
+    	// Compressione dei file trasferiti sui comandi CONV e DIFF
+    	this.fcsTransferCompressionEnabled = propertiesReader.getBooleanProperty(FCS_TRANSFER_COMPRESSION_ENABLED_PROPERTY, FCS_TRANSFER_COMPRESSION_ENABLED_DEFAULT_VALUE);
+    	this.fcsTransferCompressionThreshold = propertiesReader.getIntProperty(FCS_TRANSFER_COMPRESSION_THRESHOLD_PROPERTY, FCS_TRANSFER_COMPRESSION_THRESHOLD_DEFAULT_VALUE);
+    	this.fcsTransferCompressionInflatedMaxSize = propertiesReader.getLongProperty(FCS_TRANSFER_COMPRESSION_INFLATED_MAX_SIZE_PROPERTY, FCS_TRANSFER_COMPRESSION_INFLATED_MAX_SIZE_DEFAULT_VALUE);
+    	
+    	// Trasferimento a blocchi (con ripresa) dei file di grandi dimensioni
+    	String strUploadsFolder = propertiesReader.getProperty(FCS_TRANSFER_UPLOADS_FOLDER_PROPERTY, null);
+    	if (strUploadsFolder == null || strUploadsFolder.isEmpty()) {
+    		// gli upload parziali non possono risiedere nella directory di lavoro (svuotata ad ogni avvio)
+    		strUploadsFolder = this.fcsWorkingFolder.getAbsolutePath() + "-uploads";
+    	}
+    	this.fcsTransferUploadsFolder = new File(strUploadsFolder);
+    	this.fcsTransferUploadsExpiry = propertiesReader.getLongProperty(FCS_TRANSFER_UPLOADS_EXPIRY_PROPERTY, FCS_TRANSFER_UPLOADS_EXPIRY_DEFAULT_VALUE);
+    	this.fcsTransferChunkMaxSize = propertiesReader.getIntProperty(FCS_TRANSFER_CHUNK_MAX_SIZE_PROPERTY, FCS_TRANSFER_CHUNK_MAX_SIZE_DEFAULT_VALUE);
+    	
+    	// Verifica preliminare (sul testo) di versioni identiche in comparazione
+    	this.fcsComparisonTextFastpath = propertiesReader.getBooleanProperty(FCS_COMPARISON_TEXT_FASTPATH_PROPERTY, FCS_COMPARISON_TEXT_FASTPATH_DEFAULT_VALUE);
+    	
+    	// Budget di memoria per i contenuti mantenuti in memoria dalle richieste in corso
+    	this.fcsMemoryBudget = propertiesReader.getLongProperty(FCS_MEMORY_BUDGET_PROPERTY, FCS_MEMORY_BUDGET_DEFAULT_VALUE);
+    	this.fcsMemoryBudgetWaitTimeout = propertiesReader.getLongProperty(FCS_MEMORY_BUDGET_WAIT_TIMEOUT_PROPERTY, FCS_MEMORY_BUDGET_WAIT_TIMEOUT_DEFAULT_VALUE);
     	
     	this.fcsWorkingTimeout = propertiesReader.getLongProperty(FCS_WORKING_TIMEOUT_PROPERTY, FCS_WORKING_TIMEOUT_DEFAULT_VALUE);
     	
+    	// Eventuale area di lavoro in RAM (es. tmpfs)
+    	String strWorkingRamFolder = propertiesReader.getProperty(FCS_WORKING_RAM_FOLDER_PROPERTY, null);
+    	this.fcsWorkingRamFolder = (strWorkingRamFolder != null && !strWorkingRamFolder.isEmpty()) ? new File(strWorkingRamFolder) : null;
+    	this.fcsWorkingRamQuota = propertiesReader.getLongProperty(FCS_WORKING_RAM_QUOTA_PROPERTY, FCS_WORKING_RAM_QUOTA_DEFAULT_VALUE);
+    	
+    	// Pulizia periodica delle directory di lavoro orfane
+    	this.fcsWorkingSweepInterval = propertiesReader.getLongProperty(FCS_WORKING_SWEEP_INTERVAL_PROPERTY, FCS_WORKING_SWEEP_INTERVAL_DEFAULT_VALUE);
+    	this.fcsWorkingOrphanAge = propertiesReader.getLongProperty(FCS_WORKING_ORPHAN_AGE_PROPERTY, FCS_WORKING_ORPHAN_AGE_DEFAULT_VALUE);
+    	
     	// Lettura di tutti i parametri di configurazione degli strumenti di conversione (OpenOffice, ImageMagick, ecc.)
     	
     	this.fcsConversionTimout = propertiesReader.getLongProperty(FCS_CONVERSION_TIMEOUT_PROPERTY, FCS_CONVERSION_TIMEOUT_DEFAULT_VALUE);
     	
     	this.fcsConversionDocOpenOfficeHomeDir = propertiesReader.getProperty(FCS_CONVERSION_DOC_OPENOFFICE_HOMEDIR_PROPERTY, null);
     	String[] ooPorts = propertiesReader.getProperty(FCS_CONVERSION_DOC_OPENOFFICE_PORTS_PROPERTY, "").split(",");
+    	int[] ports = null;
     	if (ooPorts.length > 0) {
-    		this.fcsConversionDocOpenOfficePorts = new int[ooPorts.length];
+    		ports = new int[ooPorts.length];
     		int i = 0;
-    		for (String port : ooPorts) {
-				this.fcsConversionDocOpenOfficePorts[i] = Integer.parseInt(port);
+    		for (String ooPort : ooPorts) {
+				ports[i] = Integer.parseInt(ooPort);
 				i++;
 			}
     	}
+    	this.fcsConversionDocOpenOfficePorts = ports;
     	this.fcsConversionDocOpenOfficePdfA = propertiesReader.getBooleanProperty(FCS_CONVERSION_DOC_OPENOFFICE_PDFA_PROPERTY, FCS_CONVERSIONE_DOC_OPENOFFICE_PDFA_DEFAULT_VALUE);
     	
     	this.fcsConversionImageMagickExtensions = propertiesReader.getProperty(FCS_CONVERSION_IMAGEMAGICK_EXTENSIONS_PROPERTY, FCS_CONVERSION_IMAGEMAGICK_EXTENSIONS_DEFAULT_VALUE).split(",");
     	this.fcsConversionImageMagickCommand = propertiesReader.getProperty(FCS_CONVERSION_IMAGEMAGICK_COMMAND_PROPERTY, null);
     	
+    	// Lettura dei parametri di configurazione dell'OCR parallelo (pool di thread dedicato)
+    	
+    	this.fcsOcrThreads = propertiesReader.getIntProperty(FCS_OCR_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    	this.fcsOcrPageTimeout = propertiesReader.getLongProperty(FCS_OCR_PAGE_TIMEOUT_PROPERTY, FCS_OCR_PAGE_TIMEOUT_DEFAULT_VALUE);
+    	this.fcsOcrExtensions = propertiesReader.getProperty(FCS_OCR_EXTENSIONS_PROPERTY, FCS_OCR_EXTENSIONS_DEFAULT_VALUE).split(",");
+    	this.fcsOcrPdfDpi = propertiesReader.getIntProperty(FCS_OCR_PDF_DPI_PROPERTY, FCS_OCR_PDF_DPI_DEFAULT_VALUE);
+    	this.fcsOcrImageMagickSplitCommand = propertiesReader.getProperty(FCS_OCR_IMAGEMAGICK_SPLIT_COMMAND_PROPERTY, null);
+    	String strOcrCacheFolder = propertiesReader.getProperty(FCS_OCR_CACHE_FOLDER_PROPERTY, null);
+    	this.fcsOcrCacheFolder = (strOcrCacheFolder != null && !strOcrCacheFolder.isEmpty()) ? new File(strOcrCacheFolder) : null;
+    	this.fcsOcrCacheMaxEntries = propertiesReader.getIntProperty(FCS_OCR_CACHE_MAX_ENTRIES_PROPERTY, FCS_OCR_CACHE_MAX_ENTRIES_DEFAULT_VALUE);
+    	
+    	this.activationParams = null;
+    }
+    
+    /**
+     * Costruttore privato: creazione di un nuovo snapshot a partire da uno snapshot esistente
+     * @param source Snapshot dal quale copiare i parametri modificabili senza riavvio del servizio
+     * @param restartSource Snapshot dal quale copiare i parametri modificabili solo con il riavvio del servizio (socket, directory di lavoro,
+     * pool di OpenOffice e OCR, elaborazione asincrona)
+     * @param activationParams Parametri di attivazione del nuovo snapshot
+     */
+    private FcsConfig(FcsConfig source, FcsConfig restartSource, FcsActivationParams activationParams) {
+    	this.fcsPort = restartSource.fcsPort;
+    	this.fcsSocketBacklog = restartSource.fcsSocketBacklog;
+    	this.fcsSocketAcceptTimeout = restartSource.fcsSocketAcceptTimeout;
+    	this.fcsSocketReadTimeout = source.fcsSocketReadTimeout;
+    	this.fcsSocketTcpNoDelay = source.fcsSocketTcpNoDelay;
+    	this.fcsSocketSendBufferSize = source.fcsSocketSendBufferSize;
+    	this.fcsSocketReceiveBufferSize = source.fcsSocketReceiveBufferSize;
+    	this.fcsSocketStreamBufferSize = source.fcsSocketStreamBufferSize;
+    	this.fcsSocketReusePort = restartSource.fcsSocketReusePort;
+    	this.fcsDrainTimeout = source.fcsDrainTimeout;
+    	this.fcsConfigWatch = source.fcsConfigWatch;
+    	this.fcsSessionEnabled = source.fcsSessionEnabled;
+    	this.fcsSessionIdleTimeout = source.fcsSessionIdleTimeout;
+    	this.fcsFcaBatchParallelism = source.fcsFcaBatchParallelism;
+    	this.fcsFcaAsyncEnabled = restartSource.fcsFcaAsyncEnabled;
+    	this.fcsFcaAsyncJournalFolder = restartSource.fcsFcaAsyncJournalFolder;
+    	this.fcsFcaAsyncWorkers = restartSource.fcsFcaAsyncWorkers;
+    	this.fcsTransferCompressionEnabled = source.fcsTransferCompressionEnabled;
+    	this.fcsTransferCompressionThreshold = source.fcsTransferCompressionThreshold;
+    	this.fcsTransferCompressionInflatedMaxSize = source.fcsTransferCompressionInflatedMaxSize;
+    	this.fcsTransferUploadsFolder = source.fcsTransferUploadsFolder;
+    	this.fcsTransferUploadsExpiry = source.fcsTransferUploadsExpiry;
+    	this.fcsTransferChunkMaxSize = source.fcsTransferChunkMaxSize;
+    	this.fcsComparisonTextFastpath = source.fcsComparisonTextFastpath;
+    	this.fcsMemoryBudget = source.fcsMemoryBudget;
+    	this.fcsMemoryBudgetWaitTimeout = source.fcsMemoryBudgetWaitTimeout;
+    	this.fcsWorkingFolder = restartSource.fcsWorkingFolder;
+    	this.fcsWorkingTimeout = source.fcsWorkingTimeout;
+    	this.fcsWorkingRamFolder = restartSource.fcsWorkingRamFolder;
+    	this.fcsWorkingRamQuota = restartSource.fcsWorkingRamQuota;
+    	this.fcsWorkingSweepInterval = source.fcsWorkingSweepInterval;
+    	this.fcsWorkingOrphanAge = source.fcsWorkingOrphanAge;
+    	this.fcsConversionTimout = source.fcsConversionTimout;
+    	this.fcsConversionDocOpenOfficeHomeDir = restartSource.fcsConversionDocOpenOfficeHomeDir;
+    	this.fcsConversionDocOpenOfficePorts = restartSource.fcsConversionDocOpenOfficePorts;
+    	this.fcsConversionDocOpenOfficePdfA = source.fcsConversionDocOpenOfficePdfA;
+    	this.fcsConversionImageMagickExtensions = source.fcsConversionImageMagickExtensions;
+    	this.fcsConversionImageMagickCommand = source.fcsConversionImageMagickCommand;
+    	this.fcsOcrThreads = restartSource.fcsOcrThreads;
+    	this.fcsOcrPageTimeout = source.fcsOcrPageTimeout;
+    	this.fcsOcrExtensions = source.fcsOcrExtensions;
+    	this.fcsOcrPdfDpi = source.fcsOcrPdfDpi;
+    	this.fcsOcrImageMagickSplitCommand = source.fcsOcrImageMagickSplitCommand;
+    	this.fcsOcrCacheFolder = restartSource.fcsOcrCacheFolder;
+    	this.fcsOcrCacheMaxEntries = restartSource.fcsOcrCacheMaxEntries;
+    	this.activationParams = activationParams;
+    }
+    
+    /**
+     * Segnalazione su log della modifica di parametri per i quali e' richiesto il riavvio del servizio
+     * @param previous Snapshot precedente della configurazione
+     */
+    private void checkRestartRequiredParams(FcsConfig previous) {
+    	if (this.fcsPort != previous.fcsPort
+    			|| this.fcsSocketBacklog != previous.fcsSocketBacklog
+    			|| this.fcsSocketAcceptTimeout != previous.fcsSocketAcceptTimeout
+    			|| this.fcsSocketReusePort != previous.fcsSocketReusePort
+    			|| !this.fcsWorkingFolder.equals(previous.fcsWorkingFolder)
+    			|| !equalsNullable(this.fcsWorkingRamFolder, previous.fcsWorkingRamFolder)
+    			|| this.fcsWorkingRamQuota != previous.fcsWorkingRamQuota
+    			|| !equalsNullable(this.fcsConversionDocOpenOfficeHomeDir, previous.fcsConversionDocOpenOfficeHomeDir)
+    			|| !Arrays.equals(this.fcsConversionDocOpenOfficePorts, previous.fcsConversionDocOpenOfficePorts)
+    			|| this.fcsOcrThreads != previous.fcsOcrThreads
+    			|| !equalsNullable(this.fcsOcrCacheFolder, previous.fcsOcrCacheFolder)
+    			|| this.fcsOcrCacheMaxEntries != previous.fcsOcrCacheMaxEntries
+    			|| this.fcsFcaAsyncEnabled != previous.fcsFcaAsyncEnabled
+    			|| !this.fcsFcaAsyncJournalFolder.equals(previous.fcsFcaAsyncJournalFolder)
+    			|| this.fcsFcaAsyncWorkers != previous.fcsFcaAsyncWorkers)
+    		logger.warn("FcsConfig: port, working folders, OpenOffice, OCR pool and FCA async parameters changed... FCS restart required to apply them");
+    }
+    
+    private static boolean equalsNullable(Object o1, Object o2) {
+    	return (o1 == null) ? o2 == null : o1.equals(o2);
+    }
+    
+    /**
+     * Scrittura su log dei parametri di configurazione
+     */
+    private void logConfiguration() {
     	if (logger.isDebugEnabled()) {
     		logger.debug("------------------- FCS CONFIGURATION PARAMETERS -------------------");
     		logger.debug(FCS_PORT_PROPERTY + " = " + this.fcsPort);
+    		logger.debug(FCS_SOCKET_BACKLOG_PROPERTY + " = " + this.fcsSocketBacklog);
+    		logger.debug(FCS_SOCKET_ACCEPT_TIMEOUT_PROPERTY + " = " + this.fcsSocketAcceptTimeout);
+    		logger.debug(FCS_SOCKET_READ_TIMEOUT_PROPERTY + " = " + this.fcsSocketReadTimeout);
+    		logger.debug(FCS_SOCKET_TCP_NODELAY_PROPERTY + " = " + this.fcsSocketTcpNoDelay);
+    		logger.debug(FCS_SOCKET_SEND_BUFFER_SIZE_PROPERTY + " = " + this.fcsSocketSendBufferSize);
+    		logger.debug(FCS_SOCKET_RECEIVE_BUFFER_SIZE_PROPERTY + " = " + this.fcsSocketReceiveBufferSize);
+    		logger.debug(FCS_SOCKET_STREAM_BUFFER_SIZE_PROPERTY + " = " + this.fcsSocketStreamBufferSize);
+    		logger.debug(FCS_SOCKET_REUSEPORT_PROPERTY + " = " + this.fcsSocketReusePort);
+    		logger.debug(FCS_DRAIN_TIMEOUT_PROPERTY + " = " + this.fcsDrainTimeout);
+    		logger.debug(FCS_CONFIG_WATCH_PROPERTY + " = " + this.fcsConfigWatch);
+    		logger.debug(FCS_SESSION_ENABLED_PROPERTY + " = " + this.fcsSessionEnabled);
+    		logger.debug(FCS_SESSION_IDLE_TIMEOUT_PROPERTY + " = " + this.fcsSessionIdleTimeout);
+    		logger.debug(FCS_FCA_BATCH_PARALLELISM_PROPERTY + " = " + this.fcsFcaBatchParallelism);
+    		logger.debug(FCS_FCA_ASYNC_ENABLED_PROPERTY + " = " + this.fcsFcaAsyncEnabled);
+    		logger.debug(FCS_FCA_ASYNC_JOURNAL_FOLDER_PROPERTY + " = " + this.fcsFcaAsyncJournalFolder.getAbsolutePath());
+    		logger.debug(FCS_FCA_ASYNC_WORKERS_PROPERTY + " = " + this.fcsFcaAsyncWorkers);
+    		logger.debug(FCS_TRANSFER_COMPRESSION_ENABLED_PROPERTY + " = " + this.fcsTransferCompressionEnabled);
+    		logger.debug(FCS_TRANSFER_COMPRESSION_THRESHOLD_PROPERTY + " = " + this.fcsTransferCompressionThreshold);
+    		logger.debug(FCS_TRANSFER_COMPRESSION_INFLATED_MAX_SIZE_PROPERTY + " = " + this.fcsTransferCompressionInflatedMaxSize);
+    		logger.debug(FCS_TRANSFER_UPLOADS_FOLDER_PROPERTY + " = " + this.fcsTransferUploadsFolder.getAbsolutePath());
+    		logger.debug(FCS_TRANSFER_UPLOADS_EXPIRY_PROPERTY + " = " + this.fcsTransferUploadsExpiry);
+    		logger.debug(FCS_TRANSFER_CHUNK_MAX_SIZE_PROPERTY + " = " + this.fcsTransferChunkMaxSize);
+    		logger.debug(FCS_COMPARISON_TEXT_FASTPATH_PROPERTY + " = " + this.fcsComparisonTextFastpath);
+    		logger.debug(FCS_MEMORY_BUDGET_PROPERTY + " = " + this.fcsMemoryBudget);
+    		logger.debug(FCS_MEMORY_BUDGET_WAIT_TIMEOUT_PROPERTY + " = " + this.fcsMemoryBudgetWaitTimeout);
     		logger.debug(FCS_WORKING_FOLDER_PROPERTY + " = " + this.fcsWorkingFolder.getAbsolutePath());
     		logger.debug(FCS_WORKING_TIMEOUT_PROPERTY + " = " + this.fcsWorkingTimeout);
+    		logger.debug(FCS_WORKING_RAM_FOLDER_PROPERTY + " = " + (this.fcsWorkingRamFolder != null ? this.fcsWorkingRamFolder.getAbsolutePath() : "NULL"));
+    		logger.debug(FCS_WORKING_RAM_QUOTA_PROPERTY + " = " + this.fcsWorkingRamQuota);
+    		logger.debug(FCS_WORKING_SWEEP_INTERVAL_PROPERTY + " = " + this.fcsWorkingSweepInterval);
+    		logger.debug(FCS_WORKING_ORPHAN_AGE_PROPERTY + " = " + this.fcsWorkingOrphanAge);
     		
     		logger.debug(FCS_CONVERSION_TIMEOUT_PROPERTY + " = " + this.fcsConversionTimout);
     		
     		logger.debug(FCS_CONVERSION_DOC_OPENOFFICE_HOMEDIR_PROPERTY + " = " + this.fcsConversionDocOpenOfficeHomeDir);
     		logger.debug(FCS_CONVERSION_DOC_OPENOFFICE_PDFA_PROPERTY + " = " + String.valueOf(this.fcsConversionDocOpenOfficePdfA));
-    		logger.debug(FCS_CONVERSION_DOC_OPENOFFICE_PORTS_PROPERTY + " = " + (this.fcsConversionDocOpenOfficePorts != null ? String.join(", ", ooPorts) : "NULL"));
+    		logger.debug(FCS_CONVERSION_DOC_OPENOFFICE_PORTS_PROPERTY + " = " + (this.fcsConversionDocOpenOfficePorts != null ? Arrays.toString(this.fcsConversionDocOpenOfficePorts) : "NULL"));
     		
     		logger.debug(FCS_CONVERSION_IMAGEMAGICK_EXTENSIONS_PROPERTY + " = " + String.join(", ", this.fcsConversionImageMagickExtensions));
     		logger.debug(FCS_CONVERSION_IMAGEMAGICK_COMMAND_PROPERTY + " = " + this.fcsConversionImageMagickCommand);
+    		
+    		logger.debug(FCS_OCR_THREADS_PROPERTY + " = " + this.fcsOcrThreads);
+    		logger.debug(FCS_OCR_PAGE_TIMEOUT_PROPERTY + " = " + this.fcsOcrPageTimeout);
+    		logger.debug(FCS_OCR_EXTENSIONS_PROPERTY + " = " + String.join(", ", this.fcsOcrExtensions));
+    		logger.debug(FCS_OCR_PDF_DPI_PROPERTY + " = " + this.fcsOcrPdfDpi);
+    		logger.debug(FCS_OCR_IMAGEMAGICK_SPLIT_COMMAND_PROPERTY + " = " + this.fcsOcrImageMagickSplitCommand);
+    		logger.debug(FCS_OCR_CACHE_FOLDER_PROPERTY + " = " + (this.fcsOcrCacheFolder != null ? this.fcsOcrCacheFolder.getAbsolutePath() : "NULL"));
+    		logger.debug(FCS_OCR_CACHE_MAX_ENTRIES_PROPERTY + " = " + this.fcsOcrCacheMaxEntries);
     	}
     	
     	if (this.fcsConversionImageMagickCommand == null || this.fcsConversionImageMagickCommand.isEmpty()) {
@@ -132,27 +438,203 @@ public class FcsConfig {
     	}
     }
     
+    /**
+     * Rinomina della directory di lavoro con successiva rigenerazione (eventuali file temporanei di precedenti elaborazioni vengono cancellati
+     * in background)
+     */
+    private void initWorkingFolder() throws Exception {
+    	WorkDirJanitor.moveToTrash(this.fcsWorkingFolder);
+    	if (!this.fcsWorkingFolder.mkdirs())
+    		throw new Exception("Unable to create FCS working folder... " + this.fcsWorkingFolder.getAbsolutePath());
+    }
+    
 	/**
-     * Ritorna l'oggetto contenente tutte le configurazioni di FCA (e parametri di indicizzazione/conversione da inviare agli host FCS)
+     * Ritorna lo snapshot corrente di tutte le configurazioni di FCS (e dei parametri di indicizzazione/conversione inviati da FCA). Lo snapshot
+     * e' immutabile: deve essere letto una sola volta per richiesta in modo da garantire una configurazione coerente durante l'elaborazione.
 	 * @return
 	 */
 	public static FcsConfig getInstance() throws Exception {
-		if (instance == null) {
+		FcsConfig config = current.get();
+		if (config == null) {
 			synchronized (FcsConfig.class) {
-				if (instance == null) {
+				config = current.get();
+				if (config == null) {
 					if (logger.isInfoEnabled())
 						logger.info("FcsConfig instance is null... create one");
-					instance = new FcsConfig();
+					config = new FcsConfig(new PropertiesReader(PROPERTIES_FILE_NAME));
+					config.logConfiguration();
+					config.initWorkingFolder();
+					current.set(config);
 				}
 			}
 		}
-		return instance;
+		return config;
+	}
+	
+	/**
+	 * Ricaricamento della configurazione dal file di properties. Vengono applicate immediatamente le modifiche ai timeout, ai parametri di
+	 * ImageMagick e OCR e ai limiti di dimensione; porta, directory di lavoro e pool di OpenOffice/OCR richiedono il riavvio del servizio.
+	 * @throws Exception
+	 */
+	public static void reload() throws Exception {
+		synchronized (FcsConfig.class) {
+			FcsConfig read = new FcsConfig(new PropertiesReader(PROPERTIES_FILE_NAME));
+			read.checkRestartRequiredParams(getInstance());
+			
+			// i parametri modificabili solo con il riavvio del servizio vengono mantenuti dallo snapshot corrente; i parametri di attivazione
+			// potrebbero essere stati aggiornati da FCA durante la lettura del file
+			FcsConfig previous;
+			FcsConfig reloaded;
+			do {
+				previous = current.get();
+				reloaded = new FcsConfig(read, previous, previous.activationParams);
+			} while (!current.compareAndSet(previous, reloaded));
+			reloaded.logConfiguration();
+			
+			if (logger.isInfoEnabled())
+				logger.info("FcsConfig.reload(): FCS configuration reloaded from " + PROPERTIES_FILE_NAME);
+		}
+	}
+	
+	/**
+	 * Ritorna il file di properties di FCS (NULL se il file non e' presente su filesystem, es. contenuto in un jar)
+	 * @return
+	 */
+	static File getPropertiesFile() {
+		try {
+			URL url = FcsConfig.class.getClassLoader().getResource(PROPERTIES_FILE_NAME);
+			if (url != null && "file".equals(url.getProtocol()))
+				return new File(url.toURI());
+		}
+		catch (Exception e) {
+			logger.warn("FcsConfig.getPropertiesFile(): unable to locate " + PROPERTIES_FILE_NAME + "... " + e.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * Creazione di un nuovo snapshot della configurazione con i parametri di attivazione indicati
+	 */
+	private FcsConfig withActivationParams(FcsActivationParams activationParams) {
+		return new FcsConfig(this, this, activationParams);
+	}
+	
+	/**
+	 * Pubblicazione di un nuovo snapshot della configurazione contenente i parametri di attivazione indicati
+	 */
+	private static void publishActivationParams(FcsActivationParams activationParams) {
+		FcsConfig previous;
+		FcsConfig next;
+		do {
+			previous = current.get();
+			next = previous.withActivationParams(activationParams);
+		} while (!current.compareAndSet(previous, next));
 	}
 	
 	public int getFcsPort() {
 		return fcsPort;
 	}
 
+	public int getFcsSocketBacklog() {
+		return fcsSocketBacklog;
+	}
+
+	public int getFcsSocketAcceptTimeout() {
+		return fcsSocketAcceptTimeout;
+	}
+
+	public int getFcsSocketReadTimeout() {
+		return fcsSocketReadTimeout;
+	}
+
+	public boolean isFcsSocketTcpNoDelay() {
+		return fcsSocketTcpNoDelay;
+	}
+
+	public int getFcsSocketSendBufferSize() {
+		return fcsSocketSendBufferSize;
+	}
+
+	public int getFcsSocketReceiveBufferSize() {
+		return fcsSocketReceiveBufferSize;
+	}
+
+	public int getFcsSocketStreamBufferSize() {
+		return fcsSocketStreamBufferSize;
+	}
+
+	public boolean isFcsSocketReusePort() {
+		return fcsSocketReusePort;
+	}
+
+	public long getFcsDrainTimeout() {
+		return fcsDrainTimeout;
+	}
+
+	public boolean isFcsConfigWatch() {
+		return fcsConfigWatch;
+	}
+
+	public boolean isFcsSessionEnabled() {
+		return fcsSessionEnabled;
+	}
+
+	public int getFcsSessionIdleTimeout() {
+		return fcsSessionIdleTimeout;
+	}
+
+	public int getFcsFcaBatchParallelism() {
+		return fcsFcaBatchParallelism;
+	}
+
+	public boolean isFcsFcaAsyncEnabled() {
+		return fcsFcaAsyncEnabled;
+	}
+
+	public File getFcsFcaAsyncJournalFolder() {
+		return fcsFcaAsyncJournalFolder;
+	}
+
+	public int getFcsFcaAsyncWorkers() {
+		return fcsFcaAsyncWorkers;
+	}
+
+	public boolean isFcsTransferCompressionEnabled() {
+		return fcsTransferCompressionEnabled;
+	}
+
+	public int getFcsTransferCompressionThreshold() {
+		return fcsTransferCompressionThreshold;
+	}
+
+	public long getFcsTransferCompressionInflatedMaxSize() {
+		return fcsTransferCompressionInflatedMaxSize;
+	}
+
+	public File getFcsTransferUploadsFolder() {
+		return fcsTransferUploadsFolder;
+	}
+
+	public long getFcsTransferUploadsExpiry() {
+		return fcsTransferUploadsExpiry;
+	}
+
+	public int getFcsTransferChunkMaxSize() {
+		return fcsTransferChunkMaxSize;
+	}
+
+	public boolean isFcsComparisonTextFastpath() {
+		return fcsComparisonTextFastpath;
+	}
+
+	public long getFcsMemoryBudget() {
+		return fcsMemoryBudget;
+	}
+
+	public long getFcsMemoryBudgetWaitTimeout() {
+		return fcsMemoryBudgetWaitTimeout;
+	}
+
 	public File getFcsWorkingFolder() {
 		return fcsWorkingFolder;
 	}
@@ -160,6 +642,22 @@ public class FcsConfig {
 	public long getFcsWorkingTimeout() {
 		return fcsWorkingTimeout;
 	}
+
+	public File getFcsWorkingRamFolder() {
+		return fcsWorkingRamFolder;
+	}
+
+	public long getFcsWorkingRamQuota() {
+		return fcsWorkingRamQuota;
+	}
+
+	public long getFcsWorkingSweepInterval() {
+		return fcsWorkingSweepInterval;
+	}
+
+	public long getFcsWorkingOrphanAge() {
+		return fcsWorkingOrphanAge;
+	}
 	
 	public long getFcsConversionTimout() {
 		return fcsConversionTimout;
@@ -169,37 +667,82 @@ public class FcsConfig {
 		return fcsConversionDocOpenOfficeHomeDir;
 	}
 
+	/**
+	 * Ritorna una copia dell'elenco (lo snapshot della configurazione non puo' essere modificato)
+	 * @return
+	 */
 	public int[] getFcsConversionDocOpenOfficePorts() {
-		return fcsConversionDocOpenOfficePorts;
+		return (fcsConversionDocOpenOfficePorts != null) ? fcsConversionDocOpenOfficePorts.clone() : null;
 	}
 
 	public boolean isFcsConversionDocOpenOfficePdfA() {
 		return fcsConversionDocOpenOfficePdfA;
 	}
 
+	/**
+	 * Ritorna una copia dell'elenco (lo snapshot della configurazione non puo' essere modificato)
+	 * @return
+	 */
 	public String[] getFcsConversionImageMagickExtensions() {
-		return fcsConversionImageMagickExtensions;
+		return (fcsConversionImageMagickExtensions != null) ? fcsConversionImageMagickExtensions.clone() : null;
 	}
 
 	public String getFcsConversionImageMagickCommand() {
 		return fcsConversionImageMagickCommand;
 	}
 	
+	public int getFcsOcrThreads() {
+		return fcsOcrThreads;
+	}
+
+	public long getFcsOcrPageTimeout() {
+		return fcsOcrPageTimeout;
+	}
+
+	/**
+	 * Ritorna una copia dell'elenco (lo snapshot della configurazione non puo' essere modificato)
+	 * @return
+	 */
+	public String[] getFcsOcrExtensions() {
+		return (fcsOcrExtensions != null) ? fcsOcrExtensions.clone() : null;
+	}
+
+	public int getFcsOcrPdfDpi() {
+		return fcsOcrPdfDpi;
+	}
+
+	public String getFcsOcrImageMagickSplitCommand() {
+		return fcsOcrImageMagickSplitCommand;
+	}
+
+	public File getFcsOcrCacheFolder() {
+		return fcsOcrCacheFolder;
+	}
+
+	public int getFcsOcrCacheMaxEntries() {
+		return fcsOcrCacheMaxEntries;
+	}
+	
 	public FcsActivationParams getActivationParams() {
 		return activationParams;
 	}
 
+	/**
+	 * Impostazione dei parametri di attivazione di FCS. Lo snapshot corrente non viene modificato, viene pubblicato un nuovo snapshot
+	 * utilizzato dalle richieste successive.
+	 * @param activationParams
+	 */
 	public void setActivationParams(FcsActivationParams activationParams) {
-		this.activationParams = activationParams;
+		publishActivationParams(activationParams);
 	}
 	
 	/**
-	 * Impostazione dei parametri di attivazione di FCS in base al JSON di configurazione inviato da FCA
+	 * Impostazione dei parametri di attivazione di FCS in base al JSON di configurazione inviato da FCA (pubblicazione di un nuovo snapshot)
 	 * @param json
 	 */
 	public void setActivationParamsFromJson(String json) throws Exception {
 		if (json != null)
-			this.activationParams = new ObjectMapper().readValue(json, FcsActivationParams.class);
+			publishActivationParams(new ObjectMapper().readValue(json, FcsActivationParams.class));
 	}
 
 }
@@ -0,0 +1,101 @@
+package it.tredi.fcs;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Monitoraggio del file di properties di FCS tramite WatchService. Ad ogni modifica del file la configurazione viene ricaricata e pubblicata
+ * come nuovo snapshot senza necessita' di riavviare il servizio (e quindi il pool di OpenOffice).
+ */
+public class FcsConfigWatcher implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	// Attesa prima del ricaricamento, per evitare di leggere il file durante la scrittura da parte dell'editor
+	private static final long RELOAD_DELAY_MILLIS = 500;
+
+	private final File propertiesFile;
+
+	private FcsConfigWatcher(File propertiesFile) {
+		this.propertiesFile = propertiesFile;
+	}
+
+	/**
+	 * Avvio del monitoraggio del file di properties (se abilitato in configurazione e se il file risulta presente su filesystem)
+	 * @throws Exception
+	 */
+	public static void start() throws Exception {
+		if (!FcsConfig.getInstance().isFcsConfigWatch())
+			return;
+
+		File propertiesFile = FcsConfig.getPropertiesFile();
+		if (propertiesFile == null) {
+			if (logger.isInfoEnabled())
+				logger.info("FcsConfigWatcher.start(): FCS properties file not found on filesystem, configuration hot reload DISABLED");
+			return;
+		}
+
+		Thread thread = new Thread(new FcsConfigWatcher(propertiesFile), "fcs-config-watcher");
+		thread.setDaemon(true);
+		thread.start();
+
+		if (logger.isInfoEnabled())
+			logger.info("FcsConfigWatcher.start(): watching " + propertiesFile.getAbsolutePath() + " for configuration changes");
+	}
+
+	@Override
+	public void run() {
+		Path dir = propertiesFile.getAbsoluteFile().getParentFile().toPath();
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+			while (true) {
+				WatchKey key = watchService.take();
+
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					Object context = event.context();
+					if (context instanceof Path && ((Path) context).getFileName().toString().equals(propertiesFile.getName()))
+						changed = true;
+				}
+				if (changed) {
+					Thread.sleep(RELOAD_DELAY_MILLIS);
+					key.pollEvents(); // eventuali ulteriori notifiche relative alla stessa scrittura
+					reload();
+				}
+
+				if (!key.reset()) {
+					logger.warn("FcsConfigWatcher.run(): " + dir + " no longer accessible, configuration hot reload DISABLED");
+					return;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			logger.error("FcsConfigWatcher.run(): got exception watching FCS configuration... " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Ricaricamento della configurazione. In caso di errore (es. file non valido) resta attiva la configurazione precedente.
+	 */
+	private void reload() {
+		try {
+			FcsConfig.reload();
+		}
+		catch (Exception e) {
+			logger.error("FcsConfigWatcher.reload(): unable to reload FCS configuration, previous configuration kept... " + e.getMessage(), e);
+		}
+	}
+
+}
@@ -1,25 +1,38 @@
 package it.tredi.fcs;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jodconverter.office.OfficeManager;
 
 import it.tredi.fcs.command.FcaCommandExecutor;
+import it.tredi.fcs.command.async.FcaJobQueue;
 import it.tredi.fcs.command.comparison.Compare;
 import it.tredi.fcs.command.comparison.CompareResult;
 import it.tredi.fcs.command.conversion.Convert;
+import it.tredi.fcs.memory.MemoryBudget;
 import it.tredi.fcs.socket.commands.HeaderRequest;
 import it.tredi.fcs.socket.commands.HeaderResponse;
 import it.tredi.fcs.socket.commands.Protocol;
+import it.tredi.fcs.transfer.PayloadTransfer;
+import it.tredi.fcs.transfer.PayloadTransfer.PayloadDescriptor;
+import it.tredi.fcs.transfer.SocketTransport;
+import it.tredi.fcs.transfer.SocketTransport.BufferedSocketOutputStream;
+import it.tredi.fcs.workdir.WorkDir;
+import it.tredi.fcs.workdir.WorkDirManager;
 
 /**
  * Thread di richiesta di indicizzazione/conversione da parte di un client al socket FCS
@@ -29,6 +42,13 @@ public abstract class FcsThread extends Thread {
 
 	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
 
+	/** Prefisso del docId che identifica una richiesta FCA batch (elenco di docId separati da virgola) **/
+	public static final String FCA_BATCH_PREFIX = "batch:";
+
+	/** Prefisso del primo parametro di una richiesta DIFF multi-versione ('multi;numeroVersioni' o 'multi;numeroVersioni;cumulative') **/
+	public static final String DIFF_MULTI_PREFIX = "multi;";
+	private static final String DIFF_MULTI_CUMULATIVE = "cumulative";
+
 	private DataInputStream dis = null;
 	private DataOutputStream dos = null;
 	private Socket clientSocket = null;
@@ -36,6 +56,11 @@ public abstract class FcsThread extends Thread {
 	/** Manager di connessione OpenOffice (o LibreOffice) **/
 	private OfficeManager officeManager;
 
+	/** Arresto controllato in corso: al termine del comando corrente la sessione viene chiusa **/
+	private volatile boolean draining = false;
+	/** Thread in attesa di un nuovo comando della sessione **/
+	private volatile boolean waitingCommand = false;
+
 	public FcsThread(Socket client) {
 		this.clientSocket = client;
 	}
@@ -48,13 +73,32 @@ public abstract class FcsThread extends Thread {
 		this.officeManager = manager;
 	}
 
+	/**
+	 * Richiesta di arresto controllato: il comando in corso viene completato, la sessione non accetta ulteriori comandi. Se il thread e' in
+	 * attesa di un nuovo comando della sessione la connessione viene chiusa immediatamente.
+	 */
+	public void drain() {
+		draining = true;
+		if (waitingCommand && clientSocket != null) {
+			try {
+				clientSocket.close();
+			}
+			catch (Exception e) {
+				logger.warn("FcsThread.drain(): unable to close idle session connection... " + e.getMessage());
+			}
+		}
+	}
+
 	@Override
 	public void run() {
-		File workDir = null;
 		try {
-			// inizializza i buffer in entrata e uscita
-			dis = new DataInputStream(clientSocket.getInputStream());
-			dos = new DataOutputStream(clientSocket.getOutputStream());
+			// configurazione della connessione (parametri TCP) e inizializzazione dei buffer in entrata e uscita (riutilizzati fra le connessioni).
+			// Il buffer in uscita viene svuotato prima di ogni lettura dalla connessione
+			FcsConfig config = FcsConfig.getInstance();
+			SocketTransport.configure(clientSocket, config);
+			BufferedSocketOutputStream out = SocketTransport.openOutputStream(clientSocket);
+			dos = new DataOutputStream(out);
+			dis = new DataInputStream(SocketTransport.openInputStream(clientSocket, out));
 
 			if (logger.isDebugEnabled())
 				logger.debug("FcsThread.run(): receiving data from client " + clientSocket.getInetAddress());
@@ -70,7 +114,7 @@ public abstract class FcsThread extends Thread {
 			if (initReq == HeaderRequest.INIT_HEADER || initReq == HeaderRequest.ALIVE_HEADER) {
 				// inizializzazione del processo
 
-				if (initReq == HeaderRequest.ALIVE_HEADER && FcsConfig.getInstance().getActivationParams() == null) {
+				if (initReq == HeaderRequest.ALIVE_HEADER && config.getActivationParams() == null) {
 					if (logger.isInfoEnabled())
 						logger.info("FcsThread.run(): alive header received, but empty activation params...");
 
@@ -81,7 +125,7 @@ public abstract class FcsThread extends Thread {
 
 					HeaderRequest configReq = HeaderRequest.getHeaderRequest(protocol.receiveHeader());
 					if (configReq == HeaderRequest.FCS_CONF_HEADER) {
-						FcsConfig.getInstance().setActivationParamsFromJson(fcsConfigJson);
+						config.setActivationParamsFromJson(fcsConfigJson);
 
 						protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes()); // configurazione di FCS completata con successo
 					}
@@ -95,156 +139,13 @@ public abstract class FcsThread extends Thread {
 				}
 
 				if (initReq == HeaderRequest.INIT_HEADER) {
-					try {
-						HeaderRequest commandReq = HeaderRequest.getHeaderRequest(protocol.receiveHeader());
-						if (logger.isInfoEnabled())
-							logger.info("FcsThread.run(): command header received from client... " + commandReq.header());
-
-						// istanzio la directory di lavoro
-						workDir = new File(FcsConfig.getInstance().getFcsWorkingFolder(), String.valueOf(currentThread().getId()));
-						if (!workDir.exists()) {
-							if (!workDir.mkdirs())
-								throw new Exception("Impossible to create work dir: " + workDir.getAbsolutePath());
-						}
-						logger.info("FcsThread.run(): thread work dir = " + workDir);
-
-
-						if (commandReq == HeaderRequest.FCA_HEADER) {
-							// richiesta di indicizzazione/conversione da parte di FCA
-
-							protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes()); // invio acknowledge al client
-
-							// lettura dei parametri necessari al completamento dell'attivita'
-							String docId = protocol.receiveString();
-							String[] convTo = {};
-							String paramConvTo = protocol.receiveString();
-							if (paramConvTo != null && !paramConvTo.isEmpty())
-								convTo = paramConvTo.split(",");
-							String additionalParams = protocol.receiveString();
-
-							// elaborazione della richiesta ricevuta da FCA
-							FcaCommandExecutor fcaCommandExecutor = getFcaCommandExecutor(docId, convTo, additionalParams, workDir);
-							fcaCommandExecutor.setOfficeManager(officeManager);
-
-							boolean done = fcaCommandExecutor.processDocumento();
-							if (done)
-								protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
-							else
-								protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
-						}
-						else if (commandReq == HeaderRequest.CONV_HEADER) {
-							// conversione di un file verso PDF o altro/i formato/i
-
-							protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes()); // invio acknowledge al client
-
-							ByteArrayOutputStream baos = null;
-							try {
-								// lettura dei parametri necessari al completamento dell'attivita'
-
-								int fileSize = Integer.parseInt(protocol.receiveString()); // lettura della dimensione del file di input
-								baos = new ByteArrayOutputStream();
-								protocol.receiveFile(baos, fileSize); // lettura del file da convertire
-								byte[] inputFile = baos.toByteArray();
-								String fromExt = protocol.receiveString(); // lettura dell'estensione di input
-								String toExt = protocol.receiveString(); // lettura dell'estensione di output
-
-								// elaborazione della richiesta di conversione
-								byte[] convFile = null;
-								boolean done = false;
-								try {
-									convFile = Convert.convertToByteArray(officeManager, workDir, inputFile, fromExt, toExt);
-									done = true;
-								}
-								catch (Exception e) {
-									logger.warn("FcsThread.run(): got execption on conversion command from FcsBridge... " + e.getMessage(), e);
-									done = false;
-								}
-
-								if (done && convFile != null) {
-									protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
-									// invio del risultato della conversione
-									protocol.sendString(String.valueOf(convFile.length)); // invio dimensione del file convertito
-									protocol.sendFile(new ByteArrayInputStream(convFile), convFile.length); // invio del contenuto del file convertito
-								}
-								else {
-									protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
-								}
-							}
-							finally {
-								try {
-									if (baos != null)
-										baos.close();
-								}
-								catch(Exception e) {
-									logger.warn("FcsThread.run(): unable to close OutputStream... " + e.getMessage());
-								}
-							}
-						}
-						else if (commandReq == HeaderRequest.DIFF_HEADER) {
-							// differenza fra 2 files
-
-							protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes()); // invio acknowledge al client
-
-							ByteArrayOutputStream baos = null;
-							try {
-								// lettura dei parametri necessari al completamento dell'attivita'
-
-								int fileSize = Integer.parseInt(protocol.receiveString()); // lettura della dimensione del primo file da comparare
-								baos = new ByteArrayOutputStream();
-								protocol.receiveFile(baos, fileSize); // lettura del primo file da comparare
-								byte[] firstFile = baos.toByteArray();
-								String firstFileExt = protocol.receiveString(); // lettura dell'estensione del primo file da comparare
-								fileSize = Integer.parseInt(protocol.receiveString()); // lettura della dimensione del secondo file da comparare
-								baos = new ByteArrayOutputStream();
-								protocol.receiveFile(baos, fileSize); // lettura del secondo file da comparare
-								byte[] secondFile = baos.toByteArray();
-								String secondFileExt = protocol.receiveString(); // lettura dell'estensione del secondo file da comparare
-
-								String outExt = protocol.receiveString(); // lettura dell'estensione del file di output della comparazione (valori possibili 'pdf', 'od')
-								boolean outPdf = false;
-								if (outExt != null && outExt.toLowerCase().equals("pdf"))
-									outPdf = true;
-
-								// elaborazione della richiesta di confronto
-								CompareResult result = null;
-								try {
-									result = Compare.compareToByteArray(officeManager, workDir, firstFile, secondFile, firstFileExt, secondFileExt, outPdf);
-								}
-								catch (Exception e) {
-									logger.warn("FcsThread.run(): got execption on comparison command from FcsBridge... " + e.getMessage(), e);
-								}
-
-								if (result != null && result.getContent() != null) {
-									protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
-									// invio del risultato della comparazione
-									protocol.sendString(result.getFileExtension()); // invio dell'estensione prodotta
-									byte[] content = result.getContent();
-									protocol.sendString(String.valueOf(content.length)); // invio dimensione del file di comparazione
-									protocol.sendFile(new ByteArrayInputStream(content), content.length); // invio del contenuto del file di comparazione
-								}
-								else {
-									protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
-								}
-							}
-							finally {
-								try {
-									if (baos != null)
-										baos.close();
-								}
-								catch(Exception e) {
-									logger.warn("FcsThread.run(): unable to close OutputStream... " + e.getMessage());
-								}
-							}
-
-						}
-						else
-							throw new Exception("Unable to recognize command type: " + commandReq.header());
+					HeaderRequest commandReq = HeaderRequest.getHeaderRequest(protocol.receiveHeader());
+					boolean completed = executeCommand(protocol, commandReq);
 
-					}
-					catch (Exception e) {
-						logger.error("FcsThread.run(): Action FAILED! Got exception on index/conversion... " + e.getMessage(), e);
-						protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
-					}
+					// modalita' sessione: il client puo' inviare ulteriori comandi sulla stessa connessione senza ripetere l'handshake (solo se il
+					// comando e' stato completato, altrimenti la connessione potrebbe contenere dati del comando non ancora letti)
+					if (completed && config.isFcsSessionEnabled())
+						runSession(protocol, config.getFcsSessionIdleTimeout(), config.getFcsSocketReadTimeout());
 				}
 			}
 			else {
@@ -256,20 +157,20 @@ public abstract class FcsThread extends Thread {
 			logger.error("FcsThread.run(): Action FAILED! Got exception on socket protocol... " + e.getMessage(), e);
 		}
 		finally {
-			// chiusura dei buffer e del socket
+			// chiusura dei buffer e del socket (il buffer in uscita deve essere svuotato prima della chiusura della connessione)
 			try {
-				if (dis != null)
-					dis.close();
+				if (dos != null)
+					dos.close();
 			}
 			catch(Exception e) {
-				logger.warn("FcsThread.run(): unable to close InputStream... " + e.getMessage());
+				logger.warn("FcsThread.run(): unable to close OutputStream... " + e.getMessage());
 			}
 			try {
-				if (dos != null)
-					dos.close();
+				if (dis != null)
+					dis.close();
 			}
 			catch(Exception e) {
-				logger.warn("FcsThread.run(): unable to close OutputStream... " + e.getMessage());
+				logger.warn("FcsThread.run(): unable to close InputStream... " + e.getMessage());
 			}
 			try {
 				if (clientSocket != null)
@@ -278,15 +179,407 @@ public abstract class FcsThread extends Thread {
 			catch(Exception e) {
 				logger.warn("FcsThread.run(): unable to close socket connection... " + e.getMessage(), e);
 			}
+		}
+	}
+
+	/**
+	 * Gestione della sessione: attesa di ulteriori comandi (FCA, CONV, DIFF) inviati dal client sulla stessa connessione. La sessione termina
+	 * alla chiusura della connessione da parte del client, allo scadere del tempo massimo di inattivita' o in caso di comando interrotto da
+	 * un errore.
+	 * @param protocol
+	 * @param idleTimeout Tempo massimo (in millisecondi) di attesa del comando successivo
+	 * @param readTimeout Timeout di lettura (in millisecondi) da ripristinare alla ricezione del comando
+	 * @throws Exception
+	 */
+	private void runSession(Protocol protocol, int idleTimeout, int readTimeout) throws Exception {
+		int commands = 1;
+		while (true) {
+			HeaderRequest commandReq = null;
+			waitingCommand = true;
+			try {
+				if (draining) {
+					if (logger.isInfoEnabled())
+						logger.info("FcsThread.runSession(): FCS draining, close session");
+					break;
+				}
+				clientSocket.setSoTimeout(idleTimeout);
+				commandReq = HeaderRequest.getHeaderRequest(protocol.receiveHeader());
+			}
+			catch (SocketTimeoutException e) {
+				if (logger.isInfoEnabled())
+					logger.info("FcsThread.runSession(): session idle timeout expired, close connection");
+				break;
+			}
+			catch (EOFException e) {
+				// chiusura della connessione da parte del client
+				break;
+			}
+			catch (SocketException e) {
+				if (draining)
+					break; // connessione chiusa dall'arresto controllato di FCS
+				throw e;
+			}
+			finally {
+				waitingCommand = false;
+				if (!clientSocket.isClosed()) {
+					try {
+						clientSocket.setSoTimeout(readTimeout);
+					}
+					catch (SocketException e) {
+						// connessione chiusa nel frattempo
+					}
+				}
+			}
+			if (commandReq == null)
+				break;
+
+			if (commandReq == HeaderRequest.INIT_HEADER || commandReq == HeaderRequest.ALIVE_HEADER) {
+				// handshake ripetuto dal client, gia' completato in apertura della sessione
+				protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes());
+				continue;
+			}
+
+			boolean completed = executeCommand(protocol, commandReq);
+			commands++;
+			if (!completed) {
+				// comando interrotto da un errore: la connessione potrebbe contenere dati del comando non ancora letti
+				if (logger.isInfoEnabled())
+					logger.info("FcsThread.runSession(): command failed, close session");
+				break;
+			}
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("FcsThread.runSession(): session closed after " + commands + " commands");
+	}
+
+	/**
+	 * Esecuzione di un comando (FCA, CONV, DIFF) ricevuto dal client. Per ogni comando viene istanziata una directory di lavoro dedicata e
+	 * letto lo snapshot della configurazione valido per tutta l'elaborazione del comando.
+	 * @param protocol
+	 * @param commandReq Header del comando ricevuto
+	 * @return true se il comando e' stato completato (esito DONE o ERRORS inviato al client), false se il comando e' stato interrotto da
+	 * un'eccezione (in questo caso la connessione non puo' essere riutilizzata per ulteriori comandi)
+	 * @throws Exception
+	 */
+	private boolean executeCommand(Protocol protocol, HeaderRequest commandReq) throws Exception {
+		WorkDir requestWorkDir = null;
+		File workDir = null;
+		FcsConfig config = FcsConfig.getInstance();
+		try {
+			if (logger.isInfoEnabled())
+				logger.info("FcsThread.executeCommand(): command header received from client... " + (commandReq != null ? commandReq.header() : "NULL"));
+			if (commandReq == null)
+				throw new Exception("Unable to recognize command header");
+
+			// istanzio la directory di lavoro (eventualmente sull'area in RAM)
+			requestWorkDir = WorkDirManager.getInstance().allocate(currentThread().getId());
+			workDir = requestWorkDir.getDir();
+			logger.info("FcsThread.executeCommand(): thread work dir = " + requestWorkDir);
+
+			if (commandReq == HeaderRequest.FCA_HEADER) {
+				// richiesta di indicizzazione/conversione da parte di FCA
+
+				protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes()); // invio acknowledge al client
+
+				// lettura dei parametri necessari al completamento dell'attivita'
+				String docId = protocol.receiveString();
+				String[] convTo = {};
+				String paramConvTo = protocol.receiveString();
+				if (paramConvTo != null && !paramConvTo.isEmpty())
+					convTo = paramConvTo.split(",");
+				String additionalParams = protocol.receiveString();
+
+				if (docId != null && docId.startsWith(FCA_BATCH_PREFIX)) {
+					// richiesta batch: elaborazione in parallelo di piu' documenti
+					executeFcaBatch(protocol, docId.substring(FCA_BATCH_PREFIX.length()).split(","), convTo, additionalParams, config);
+					return true;
+				}
+
+				if (config.isFcsFcaAsyncEnabled()) {
+					// elaborazione asincrona: registrazione della richiesta sul journal e conferma immediata al client
+					FcaJobQueue.getInstance().submit(docId, convTo, additionalParams);
+					protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
+					return true;
+				}
+
+				// elaborazione della richiesta ricevuta da FCA
+				FcaCommandExecutor fcaCommandExecutor = getFcaCommandExecutor(docId, convTo, additionalParams, workDir);
+				fcaCommandExecutor.setOfficeManager(officeManager);
+				fcaCommandExecutor.setConfig(config);
+
+				boolean done = fcaCommandExecutor.processDocumento();
+				if (done)
+					protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
+				else
+					protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
+			}
+			else if (commandReq == HeaderRequest.CONV_HEADER) {
+				// conversione di un file verso PDF o altro/i formato/i
+
+				protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes()); // invio acknowledge al client
+
+				// lettura dei parametri necessari al completamento dell'attivita' (il file viene ricevuto direttamente nella directory di lavoro)
+
+				PayloadDescriptor descriptor = PayloadTransfer.receiveDescriptor(protocol); // lettura della dimensione (ed eventuale codec) del file di input
+				File inputFile = PayloadTransfer.receiveToFile(protocol, descriptor, workDir, "conv_", config); // lettura del file da convertire
+				String fromExt = protocol.receiveString(); // lettura dell'estensione di input
+				String toExt = protocol.receiveString(); // lettura dell'estensione di output
+
+				// elaborazione della richiesta di conversione
+				File convFile = null;
+				boolean done = false;
+				try {
+					convFile = Convert.convertReceivedFile(officeManager, workDir, PayloadTransfer.renameWithExtension(inputFile, fromExt), fromExt, toExt);
+					done = true;
+				}
+				catch (Exception e) {
+					logger.warn("FcsThread.executeCommand(): got execption on conversion command from FcsBridge... " + e.getMessage(), e);
+					done = false;
+				}
+
+				if (done && convFile != null) {
+					protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
+					// invio del risultato della conversione
+					PayloadTransfer.send(protocol, convFile, descriptor.isCodecAware(), config); // invio dimensione e contenuto del file convertito
+				}
+				else {
+					protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
+				}
+			}
+			else if (commandReq == HeaderRequest.DIFF_HEADER) {
+				// differenza fra 2 files
+
+				protocol.sendHeader(HeaderResponse.ACK_HEADER.bytes()); // invio acknowledge al client
+
+				// lettura dei parametri necessari al completamento dell'attivita' (i file vengono ricevuti direttamente nella directory di lavoro)
+
+				String firstParam = protocol.receiveString();
+				if (firstParam != null && firstParam.startsWith(DIFF_MULTI_PREFIX)) {
+					// comparazione di una sequenza di versioni
+					executeMultiDiff(protocol, firstParam.substring(DIFF_MULTI_PREFIX.length()), workDir, config);
+					return true;
+				}
 
-			// cancellazione della directory di lavoro dello specifico thread
-			if (workDir != null && workDir.exists()) {
+				PayloadDescriptor descriptor = PayloadTransfer.parseDescriptor(firstParam); // dimensione del primo file da comparare
+				File firstFile = PayloadTransfer.receiveToFile(protocol, descriptor, workDir, "comp_prev_", config); // lettura del primo file da comparare
+				String firstFileExt = protocol.receiveString(); // lettura dell'estensione del primo file da comparare
+				PayloadDescriptor secondDescriptor = PayloadTransfer.receiveDescriptor(protocol); // lettura della dimensione del secondo file da comparare
+				File secondFile = PayloadTransfer.receiveToFile(protocol, secondDescriptor, workDir, "comp_next_", config); // lettura del secondo file da comparare
+				String secondFileExt = protocol.receiveString(); // lettura dell'estensione del secondo file da comparare
+
+				String outExt = protocol.receiveString(); // lettura dell'estensione del file di output della comparazione (valori possibili 'pdf', 'od')
+				boolean outPdf = false;
+				if (outExt != null && outExt.toLowerCase().equals("pdf"))
+					outPdf = true;
+
+				// il risultato della comparazione viene mantenuto in memoria fino all'invio (dimensione stimata pari alla somma dei file comparati)
+				try (MemoryBudget.Reservation reservation = MemoryBudget.getInstance().reserve(firstFile.length() + secondFile.length(), "DIFF")) {
+					// elaborazione della richiesta di confronto
+					CompareResult result = null;
+					try {
+						result = Compare.compare(officeManager, workDir, PayloadTransfer.renameWithExtension(firstFile, firstFileExt), PayloadTransfer.renameWithExtension(secondFile, secondFileExt),
+								firstFileExt, secondFileExt, outPdf, config);
+					}
+					catch (Exception e) {
+						logger.warn("FcsThread.executeCommand(): got execption on comparison command from FcsBridge... " + e.getMessage(), e);
+					}
+
+					if (result != null && result.getContent() != null) {
+						protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
+						// invio del risultato della comparazione
+						protocol.sendString(result.getFileExtension()); // invio dell'estensione prodotta ('identical' in caso di versioni identiche)
+						// invio dimensione e contenuto del file di comparazione (vuoto in caso di versioni identiche)
+						PayloadTransfer.send(protocol, result.getContent(), descriptor.isCodecAware() || secondDescriptor.isCodecAware(), config);
+					}
+					else {
+						protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
+					}
+				}
+			}
+			else
+				throw new Exception("Unable to recognize command type: " + commandReq.header());
+			return true;
+		}
+		catch (Exception e) {
+			logger.error("FcsThread.executeCommand(): Action FAILED! Got exception on index/conversion... " + e.getMessage(), e);
+			protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
+			return false;
+		}
+		finally {
+			// cancellazione della directory di lavoro dello specifico comando
+			if (requestWorkDir != null) {
 				try {
-					FileUtils.deleteDirectory(workDir);
-				} catch (IOException e) {
-					logger.error("FcsThread.run(): unable to remove work dir... " + e.getMessage(), e);
+					// cancellazione delegata al thread di pulizia
+					WorkDirManager.getInstance().release(requestWorkDir);
+				} catch (Exception e) {
+					logger.error("FcsThread.executeCommand(): unable to remove work dir... " + e.getMessage(), e);
 				}
 			}
+			if (logger.isDebugEnabled())
+				logger.debug("FcsThread.executeCommand(): memory budget [" + MemoryBudget.getInstance() + "]");
+		}
+	}
+
+	/**
+	 * Elaborazione di una richiesta DIFF multi-versione. Il client invia il numero di versioni (eventualmente seguito da 'cumulative'), per ogni
+	 * versione (dalla meno recente alla piu' recente) dimensione, contenuto ed estensione del file e infine l'estensione di output. Per ogni
+	 * coppia di versioni consecutive (e per l'eventuale differenza cumulativa fra la prima e l'ultima versione) viene inviato l'header DONE
+	 * seguito da estensione e contenuto del risultato, o l'header ERRORS in caso di errore; la fine della richiesta viene segnalata con
+	 * l'header DONE se tutte le comparazioni sono state completate con successo, ERRORS altrimenti.
+	 * @param protocol
+	 * @param params Parametri della richiesta ('numeroVersioni' o 'numeroVersioni;cumulative')
+	 * @param workDir Directory di lavoro della richiesta
+	 * @param config Snapshot della configurazione della richiesta
+	 * @throws Exception
+	 */
+	private void executeMultiDiff(Protocol protocol, String params, File workDir, FcsConfig config) throws Exception {
+		String[] parts = params.split(";");
+		int count = Integer.parseInt(parts[0].trim());
+		boolean cumulative = parts.length > 1 && parts[1].trim().equalsIgnoreCase(DIFF_MULTI_CUMULATIVE);
+		if (count < 2)
+			throw new Exception("At least 2 versions are required for comparison: " + count);
+
+		List<File> versionFiles = new ArrayList<File>(count);
+		List<String> versionExts = new ArrayList<String>(count);
+		boolean codecAware = false;
+		for (int i = 0; i < count; i++) {
+			PayloadDescriptor descriptor = PayloadTransfer.receiveDescriptor(protocol); // dimensione della versione
+			File versionFile = PayloadTransfer.receiveToFile(protocol, descriptor, workDir, "comp_v" + i + "_", config); // contenuto della versione
+			String versionExt = protocol.receiveString(); // estensione della versione
+			versionFiles.add(PayloadTransfer.renameWithExtension(versionFile, versionExt));
+			versionExts.add(versionExt);
+			codecAware = codecAware || descriptor.isCodecAware();
+		}
+		String outExt = protocol.receiveString(); // estensione del file di output della comparazione (valori possibili 'pdf', 'od')
+		boolean outPdf = outExt != null && outExt.toLowerCase().equals("pdf");
+
+		if (logger.isInfoEnabled())
+			logger.info("FcsThread.executeMultiDiff(): comparing " + count + " versions [cumulative = " + cumulative + ", outPdf = " + outPdf + "]");
+
+		// i risultati delle comparazioni vengono mantenuti in memoria fino all'invio; gli export PDF eseguiti in parallelo possono completarsi
+		// prima dell'invio dei risultati precedenti, quindi la dimensione stimata resta pari alla somma delle coppie comparate
+		long estimatedBytes = 0;
+		for (int i = 1; i < count; i++)
+			estimatedBytes += versionFiles.get(i-1).length() + versionFiles.get(i).length();
+		if (cumulative)
+			estimatedBytes += versionFiles.get(0).length() + versionFiles.get(count-1).length();
+
+		final boolean resultCodecAware = codecAware;
+		boolean allDone;
+		try (MemoryBudget.Reservation reservation = MemoryBudget.getInstance().reserve(estimatedBytes, "DIFF multi-version")) {
+			// ogni risultato viene inviato appena disponibile, senza attendere le comparazioni successive
+			allDone = Compare.compareVersions(officeManager, workDir, versionFiles, versionExts, outPdf, cumulative, (index, result) -> {
+				if (result != null && result.getContent() != null) {
+					protocol.sendHeader(HeaderResponse.DONE_HEADER.bytes());
+					protocol.sendString(result.getFileExtension()); // invio dell'estensione prodotta
+					PayloadTransfer.send(protocol, result.getContent(), resultCodecAware, config);
+				}
+				else {
+					protocol.sendHeader(HeaderResponse.ERRORS_HEADER.bytes());
+				}
+				dos.flush();
+			}, config);
+		}
+		protocol.sendHeader(allDone ? HeaderResponse.DONE_HEADER.bytes() : HeaderResponse.ERRORS_HEADER.bytes());
+	}
+
+	/**
+	 * Elaborazione di una richiesta FCA batch. I documenti vengono elaborati in parallelo (fino al numero massimo di elaborazioni concorrenti
+	 * indicato in configurazione), ognuno su una propria directory di lavoro rilasciata al termine dell'elaborazione del documento. L'esito di
+	 * ogni documento viene inviato al client al termine della relativa elaborazione (docId seguito dall'header DONE o ERRORS); la fine del batch
+	 * viene segnalata con un docId vuoto seguito dall'header DONE se tutti i documenti sono stati elaborati con successo, ERRORS altrimenti.
+	 * @param protocol
+	 * @param docIds Identificativi dei documenti da elaborare
+	 * @param convTo Conversioni richieste
+	 * @param additionalParams Parametri aggiuntivi
+	 * @param config Snapshot della configurazione della richiesta
+	 * @throws Exception
+	 */
+	private void executeFcaBatch(Protocol protocol, String[] docIds, String[] convTo, String additionalParams, FcsConfig config) throws Exception {
+		long start = System.currentTimeMillis();
+
+		List<String> ids = new ArrayList<String>();
+		for (String id : docIds) {
+			if (id != null && !id.trim().isEmpty())
+				ids.add(id.trim());
+		}
+
+		int parallelism = Math.max(1, Math.min(config.getFcsFcaBatchParallelism(), ids.size()));
+		if (logger.isInfoEnabled())
+			logger.info("FcsThread.executeFcaBatch(): batch of " + ids.size() + " documents [parallelism = " + parallelism + "]");
+
+		int errors = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			CompletionService<BatchResult> completionService = new ExecutorCompletionService<BatchResult>(executor);
+			for (String id : ids)
+				completionService.submit(() -> new BatchResult(id, processBatchDocumento(id, convTo, additionalParams, config)));
+
+			// invio degli esiti nell'ordine di completamento delle elaborazioni
+			for (int i = 0; i < ids.size(); i++) {
+				BatchResult result = completionService.take().get();
+				if (!result.done)
+					errors++;
+				protocol.sendString(result.docId);
+				protocol.sendHeader(result.done ? HeaderResponse.DONE_HEADER.bytes() : HeaderResponse.ERRORS_HEADER.bytes());
+				dos.flush(); // invio immediato dell'esito, senza attendere gli altri documenti
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		// fine del batch
+		protocol.sendString("");
+		protocol.sendHeader(errors == 0 ? HeaderResponse.DONE_HEADER.bytes() : HeaderResponse.ERRORS_HEADER.bytes());
+
+		if (logger.isInfoEnabled())
+			logger.info("FcsThread.executeFcaBatch(): batch of " + ids.size() + " documents completed in " + (System.currentTimeMillis()-start) + " millis. [errors = " + errors + "]");
+	}
+
+	/**
+	 * Elaborazione di un singolo documento di una richiesta batch. Il documento viene elaborato su una propria directory di lavoro (nel rispetto
+	 * della quota dell'eventuale area in RAM), rilasciata al termine dell'elaborazione in modo che i file del documento non restino sul
+	 * filesystem fino alla fine dell'intero batch.
+	 * @return true in caso di elaborazione terminata con successo, false altrimenti
+	 */
+	private boolean processBatchDocumento(String docId, String[] convTo, String additionalParams, FcsConfig config) {
+		WorkDir docWorkDir = null;
+		try {
+			docWorkDir = WorkDirManager.getInstance().allocate(Thread.currentThread().getId());
+
+			FcaCommandExecutor fcaCommandExecutor = getFcaCommandExecutor(docId, convTo, additionalParams, docWorkDir.getDir());
+			fcaCommandExecutor.setOfficeManager(officeManager);
+			fcaCommandExecutor.setConfig(config);
+			return fcaCommandExecutor.processDocumento();
+		}
+		catch (Exception e) {
+			logger.error("FcsThread.processBatchDocumento(): Action FAILED on document " + docId + "... " + e.getMessage(), e);
+			return false;
+		}
+		finally {
+			try {
+				if (docWorkDir != null)
+					WorkDirManager.getInstance().release(docWorkDir);
+			}
+			catch (Exception e) {
+				logger.error("FcsThread.processBatchDocumento(): unable to remove work dir... " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Esito dell'elaborazione di un documento di una richiesta batch
+	 */
+	private static class BatchResult {
+
+		private final String docId;
+		private final boolean done;
+
+		public BatchResult(String docId, boolean done) {
+			this.docId = docId;
+			this.done = done;
 		}
 	}
 
@@ -1,7 +1,15 @@
 package it.tredi.fcs.command;
 
 import java.io.File;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,12 +19,20 @@ import org.jodconverter.office.OfficeManager;
 import it.tredi.fcs.Fcs;
 import it.tredi.fcs.FcsConfig;
 import it.tredi.fcs.command.conversion.Convert;
+import it.tredi.fcs.command.detection.FileTypeDetector;
+import it.tredi.fcs.command.extraction.TikaParserRegistry;
+import it.tredi.fcs.command.ocr.OcrExecutor;
+import it.tredi.fcs.command.signature.SignedEnvelopeUnwrapper;
 import it.tredi.fcs.entity.ConversionTo;
 import it.tredi.fcs.entity.Documento;
 import it.tredi.fcs.entity.FileActionState;
 import it.tredi.fcs.entity.FileToWork;
+import it.tredi.fcs.entity.FileType;
+import it.tredi.fcs.entity.InputSource;
 import it.tredi.fcs.entity.Metadata;
-import it.tredi.textextractor.TextExtractor;
+import it.tredi.fcs.memory.MemoryBudget;
+import it.tredi.fcs.socket.commands.entity.FcsActivationParams;
+import it.tredi.fcs.workdir.WorkDirManager;
 
 /**
  * Elaborazione di un comando inviato da FCA (indicizzazione ed eventuale conversione di tutti i file allegati ad un documento)
@@ -25,6 +41,8 @@ import it.tredi.textextractor.TextExtractor;
 public abstract class FcaCommandExecutor {
 	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
 
+	private static final String P7M_EXTENSION = "p7m";
+
 	// TODO dovrebbe diventare un thread che riceve un Interrupt da FcsThread se il tempo di esecuzione supera il timeout impostato. In caso di interrupt bisogna salvare il documento con l'indicazione del fallimento.
 
 	/** Manager di connessione OpenOffice (o LibreOffice) **/
@@ -35,6 +53,15 @@ public abstract class FcaCommandExecutor {
 	private String additionalParameters;
 	private File workDir;
 
+	/** Snapshot della configurazione valido per tutta la richiesta (se non impostato viene letto ad inizio elaborazione) **/
+	private FcsConfig config;
+
+	/** Parametri di attivazione dello snapshot della configurazione **/
+	private FcsActivationParams activationParams;
+
+	/** Hash del contenuto dei file recuperati da sorgenti remote, calcolato durante il salvataggio in locale **/
+	private final Map<FileToWork, String> inputHashes = new HashMap<FileToWork, String>();
+
 	/**
 	 * Costruttore. Viene richiesto il caricamento del documento.
 	 * @param docId
@@ -56,6 +83,14 @@ public abstract class FcaCommandExecutor {
 		this.officeManager = manager;
 	}
 
+	/**
+	 * Setta lo snapshot della configurazione da utilizzare per l'elaborazione della richiesta
+	 * @param config
+	 */
+	public void setConfig(FcsConfig config) {
+		this.config = config;
+	}
+
 	/**
 	 * Elaborazione del documento (indicizzazione degli allegati ed eventuali conversioni). Viene lanciata la procedura di aggiornamento (salvataggio) del documento.
 	 * @return true in caso di elaborazione terminata con successo, false altrimento
@@ -66,16 +101,68 @@ public abstract class FcaCommandExecutor {
 
 		long start = System.currentTimeMillis();
 
+		if (this.config == null)
+			this.config = FcsConfig.getInstance();
+		this.activationParams = this.config.getActivationParams();
+
 		Documento documento = getDocumento(docId, workDir);
+		// addebito sulla quota dell'area di lavoro in RAM dei file scaricati dall'implementazione senza passare da WorkDirManager
+		WorkDirManager.getInstance().reconcile(workDir);
 		if (documento != null) {
+			List<FileToWork> filesToWork = new ArrayList<FileToWork>();
 			for(FileToWork fileToWork : documento.getFilesToWork()) {
-				// Estrazione del testo (e di eventuali metadati) dal file
-				indexFile(fileToWork);
+				// Verifiche preliminari su nome e dimensione dichiarati (stati ignore, limiti di dimensione, estensioni supportate): i file sui
+				// quali non e' richiesta alcuna elaborazione non vengono recuperati
+				if (!checkWorkNeeded(fileToWork))
+					continue;
+
+				// Recupero del contenuto del file (solo per le sorgenti remote, una sola volta per file)
+				if (!fetchInputFile(fileToWork))
+					continue;
 
-				// Conversione del file in base alle specifiche inviate
-				convertFile(fileToWork);
+				filesToWork.add(fileToWork);
+			}
+
+			// I file con contenuto identico (e stesse elaborazioni richieste) vengono elaborati una sola volta
+			List<List<FileToWork>> groups = groupIdenticalFiles(filesToWork);
+
+			// Memoria riservata per il testo estratto da tutti i file del documento con un'unica richiesta al budget (limitata al budget stesso),
+			// in modo che l'elaborazione non resti in attesa di memoria mantenendo gia' memoria riservata. In caso di budget esaurito (oltre il
+			// tempo massimo di attesa) l'elaborazione del documento viene interrotta. La memoria del singolo file viene rilasciata al salvataggio
+			// incrementale dei risultati, quella restante al salvataggio del documento.
+			long[] groupTextBytes = new long[groups.size()];
+			long textBytes = 0;
+			for (int i = 0; i < groups.size(); i++) {
+				groupTextBytes[i] = estimateTextBytes(groups.get(i).get(0));
+				textBytes += groupTextBytes[i];
+			}
+			MemoryBudget.Reservation reservation = null;
+			if (textBytes > 0)
+				reservation = MemoryBudget.getInstance().reserve(textBytes, "FCA " + docId + " [" + groups.size() + " files]");
+			try {
+				for (int g = 0; g < groups.size(); g++) {
+					List<FileToWork> group = groups.get(g);
+					FileToWork fileToWork = group.get(0);
+
+					boolean processed = processFileToWork(fileToWork);
+					for (int i = 1; i < group.size(); i++)
+						group.get(i).copyResultsFrom(fileToWork);
+
+					// Salvataggio incrementale dei risultati dei file (se gestito dall'implementazione)
+					if (processed && commitFilesToWork(documento, group) && reservation != null)
+						reservation.release(groupTextBytes[g]);
+				}
+				done = saveDocumento(documento);
+			}
+			finally {
+				if (reservation != null)
+					reservation.close();
+
+				// chiusura degli stream delle sorgenti remote eventualmente lasciati aperti per la ripresa della lettura
+				for (FileToWork fileToWork : documento.getFilesToWork())
+					if (fileToWork.getInputSource() != null)
+						fileToWork.getInputSource().release();
 			}
-			done = saveDocumento(documento);
 		}
 
 		if (logger.isInfoEnabled())
@@ -84,6 +171,316 @@ public abstract class FcaCommandExecutor {
 		return done;
 	}
 
+	/**
+	 * Verifiche preliminari sul file eseguite sul nome e sulla dimensione dichiarati, prima del recupero del contenuto. Le attivita' che
+	 * risulterebbero comunque ignorate (indicizzazione o conversione disabilitate, dimensione oltre i limiti, estensione non supportata)
+	 * vengono settate subito come ignorate. Per le buste firmate la verifica sull'estensione viene rimandata all'estrazione del contenuto.
+	 * Se la dimensione non e' nota la verifica dei limiti viene ripetuta a contenuto recuperato (vedi {@link #fetchInputFile(FileToWork)}).
+	 * @param fileToWork File da processare
+	 * @return true se sul file e' richiesta almeno un'elaborazione, false altrimenti
+	 * @throws Exception
+	 */
+	private boolean checkWorkNeeded(FileToWork fileToWork) throws Exception {
+		if (!fileToWork.hasTodoActions())
+			return false;
+
+		long size = fileToWork.getInputSize();
+		String ext = getFileExtension(fileToWork.getFileName());
+		boolean checkExt = ext != null && !ext.isEmpty() && !ext.equalsIgnoreCase(P7M_EXTENSION);
+
+		if (fileToWork.getIndex() == FileActionState.TODO || fileToWork.getMeta() == FileActionState.TODO) {
+			if (!activationParams.isIndexEnabled()
+					|| (activationParams.getIndexMaxFileSize() > 0 && size > activationParams.getIndexMaxFileSize())
+					|| (checkExt && !activationParams.checkIndexFileExtensionValid(ext))) {
+				fileToWork.setIndexIgnore();
+				fileToWork.setMetadataIgnore();
+			}
+		}
+
+		if (!fileToWork.getTodoConversionsTo().isEmpty()) {
+			if (!activationParams.isConvertEnabled()
+					|| (activationParams.getConvertMaxFileSize() > 0 && size > activationParams.getConvertMaxFileSize())
+					|| (checkExt && !activationParams.checkConvertFileExtensionValid(ext))) {
+				fileToWork.setAllConversionIgnore();
+			}
+		}
+
+		if (!fileToWork.hasTodoActions()) {
+			if (logger.isDebugEnabled())
+				logger.debug("FcaCommandExecutor.checkWorkNeeded(): File: " + fileToWork.getFileName() + " skipped, no work needed [size = " + size + "]");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Ritorna la dimensione massima del contenuto del file in base ai limiti delle attivita' richieste (indicizzazione e conversione)
+	 * @param fileToWork File da processare
+	 * @return Dimensione massima in byte, 0 se almeno una delle attivita' richieste non prevede limiti
+	 */
+	private long getMaxInputSize(FileToWork fileToWork) {
+		long maxSize = 0;
+		boolean unlimited = false;
+		if (fileToWork.getIndex() == FileActionState.TODO || fileToWork.getMeta() == FileActionState.TODO) {
+			if (activationParams.getIndexMaxFileSize() > 0)
+				maxSize = Math.max(maxSize, activationParams.getIndexMaxFileSize());
+			else
+				unlimited = true;
+		}
+		if (!fileToWork.getTodoConversionsTo().isEmpty()) {
+			if (activationParams.getConvertMaxFileSize() > 0)
+				maxSize = Math.max(maxSize, activationParams.getConvertMaxFileSize());
+			else
+				unlimited = true;
+		}
+		return unlimited ? 0 : maxSize;
+	}
+
+	/**
+	 * Recupero del contenuto del file nella directory di lavoro nel caso di sorgenti remote (la cui lettura richiede un download ad ogni
+	 * apertura dello stream): l'estrazione del testo e dei metadati e gli strumenti di conversione richiedono un file locale, il contenuto
+	 * viene quindi scaricato una sola volta prima del riconoscimento della tipologia. I file sui quali non e' richiesta alcuna elaborazione
+	 * sono gia' stati scartati da {@link #checkWorkNeeded(FileToWork)} e non vengono scaricati. In caso di errore vengono settate come fallite
+	 * tutte le attivita' previste sul file.
+	 * Se la dimensione della sorgente non e' nota i limiti di dimensione vengono verificati sui byte letti: il recupero viene interrotto al
+	 * superamento del limite massimo delle attivita' richieste e le verifiche preliminari vengono ripetute sulla dimensione effettiva.
+	 * @param fileToWork File da processare
+	 * @return false se il contenuto non e' stato recuperato o se sul file non e' richiesta alcuna elaborazione, true altrimenti
+	 */
+	private boolean fetchInputFile(FileToWork fileToWork) {
+		if (fileToWork.getInputSource() == null || !fileToWork.getInputSource().requiresFetch())
+			return true;
+
+		try {
+			boolean unknownSize = fileToWork.getInputSize() < 0;
+			long maxSize = unknownSize ? getMaxInputSize(fileToWork) : 0;
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			if (materializeInputFile(fileToWork, maxSize, digest) == null) {
+				if (logger.isDebugEnabled())
+					logger.debug("FcaCommandExecutor.fetchInputFile(): File: " + fileToWork.getFileName() + " skipped, size greater than " + maxSize + " bytes");
+				fileToWork.setIndexIgnore();
+				fileToWork.setMetadataIgnore();
+				fileToWork.setAllConversionIgnore();
+				return false;
+			}
+			// hash del contenuto calcolato in fase di salvataggio (raggruppamento dei file identici senza ulteriore lettura)
+			inputHashes.put(fileToWork, Base64.getEncoder().encodeToString(digest.digest()));
+
+			// verifica dei limiti di dimensione sulla dimensione effettiva del contenuto
+			return !unknownSize || checkWorkNeeded(fileToWork);
+		}
+		catch (Exception e) {
+			logger.error("FcaCommandExecutor.fetchInputFile(): unable to fetch content of file " + fileToWork.getFileName() + "... " + e.getMessage(), e);
+			fileToWork.setAllFailed();
+			return false;
+		}
+	}
+
+	/**
+	 * Elaborazione di un singolo file (riconoscimento della tipologia, estrazione di eventuali buste firmate, estrazione del testo e conversioni)
+	 * @param fileToWork File da processare
+	 * @return false se il file e' stato scartato prima dell'elaborazione, true altrimenti
+	 * @throws Exception
+	 */
+	private boolean processFileToWork(FileToWork fileToWork) throws Exception {
+		// Riconoscimento della tipologia del file in base al contenuto (scarto immediato di file cifrati o non supportati)
+		if (!detectFileType(fileToWork))
+			return false;
+
+		// Estrazione del contenuto di eventuali buste firmate (P7M), l'elaborazione viene eseguita sul file contenuto nella busta
+		if (!unwrapSignedEnvelope(fileToWork))
+			return false;
+
+		// Estrazione del testo (e di eventuali metadati) dal file
+		indexFile(fileToWork);
+
+		// Conversione del file in base alle specifiche inviate
+		convertFile(fileToWork);
+		return true;
+	}
+
+	/**
+	 * Raggruppamento dei file con contenuto identico (hash SHA-256) e stesse elaborazioni richieste, in modo da elaborare una sola volta ogni
+	 * contenuto distinto. L'hash viene calcolato solo per i file con dimensione uguale a quella di almeno un altro file (o non nota); per i file
+	 * recuperati da sorgenti remote viene utilizzato l'hash calcolato durante il salvataggio in locale, le sorgenti remote non salvate in
+	 * locale non vengono raggruppate (il calcolo dell'hash richiederebbe un ulteriore download del contenuto).
+	 * @param filesToWork File da processare
+	 * @return Gruppi di file (nell'ordine originale), il primo file di ogni gruppo e' quello da elaborare
+	 */
+	private List<List<FileToWork>> groupIdenticalFiles(List<FileToWork> filesToWork) {
+		Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+		for (FileToWork fileToWork : filesToWork)
+			sizes.merge(fileToWork.getInputSize(), 1, Integer::sum);
+
+		Map<Object, List<FileToWork>> groups = new LinkedHashMap<Object, List<FileToWork>>();
+		int duplicates = 0;
+		for (FileToWork fileToWork : filesToWork) {
+			Object key = fileToWork;
+			long size = fileToWork.getInputSize();
+			InputSource source = fileToWork.getInputSource();
+			boolean remote = source != null && source.requiresFetch() && source.getFile() == null;
+			if (source != null && !remote && (size < 0 || sizes.get(size) > 1)) {
+				try {
+					key = hashInput(fileToWork) + ";" + getRequestedActionsKey(fileToWork);
+				}
+				catch (Exception e) {
+					logger.warn("FcaCommandExecutor.groupIdenticalFiles(): unable to hash file " + fileToWork.getFileName() + "... " + e.getMessage(), e);
+				}
+			}
+
+			List<FileToWork> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<FileToWork>();
+				groups.put(key, group);
+			}
+			else {
+				duplicates++;
+			}
+			group.add(fileToWork);
+		}
+
+		if (duplicates > 0 && logger.isInfoEnabled())
+			logger.info("FcaCommandExecutor.groupIdenticalFiles(): " + duplicates + " duplicated files found on document " + docId + ", processed once [distinct = " + groups.size() + "]");
+		return new ArrayList<List<FileToWork>>(groups.values());
+	}
+
+	/**
+	 * Hash SHA-256 del contenuto del file
+	 */
+	private String hashInput(FileToWork fileToWork) throws Exception {
+		String hash = inputHashes.get(fileToWork);
+		if (hash != null)
+			return hash;
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		try (InputStream in = fileToWork.getInputSource().openStream()) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		}
+		return Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	/**
+	 * Chiave delle elaborazioni richieste sul file (estensione dichiarata, stati di indicizzazione ed estrazione metadati, conversioni da eseguire)
+	 */
+	private String getRequestedActionsKey(FileToWork fileToWork) {
+		TreeSet<String> conversions = new TreeSet<String>();
+		for (ConversionTo convTo : fileToWork.getTodoConversionsTo())
+			if (convTo.getExtension() != null)
+				conversions.add(convTo.getExtension().toLowerCase());
+		String ext = getFileExtension(fileToWork.getFileName());
+		return ((ext != null) ? ext.toLowerCase() : "") + ";" + fileToWork.getIndex() + ";" + fileToWork.getMeta() + ";" + conversions;
+	}
+
+	/**
+	 * Salvataggio incrementale dei risultati di un gruppo di file con contenuto identico. Se il salvataggio viene eseguito dall'implementazione,
+	 * il testo estratto viene rilasciato immediatamente (senza attendere il termine dell'elaborazione del documento); i file convertiti,
+	 * condivisi fra i file del gruppo, vengono rilasciati solo se il salvataggio e' stato eseguito per tutti i file del gruppo. In caso di
+	 * errore i risultati vengono mantenuti e saranno salvati tramite saveDocumento().
+	 * @param documento Documento in elaborazione
+	 * @param group File elaborati (con contenuto identico)
+	 * @return true se i risultati sono stati salvati (e rilasciati) per tutti i file del gruppo, false altrimenti
+	 */
+	private boolean commitFilesToWork(Documento documento, List<FileToWork> group) {
+		List<FileToWork> saved = new ArrayList<FileToWork>(group.size());
+		for (FileToWork fileToWork : group) {
+			try {
+				long start = System.currentTimeMillis();
+				if (saveFileToWork(documento, fileToWork)) {
+					saved.add(fileToWork);
+
+					if (logger.isDebugEnabled())
+						logger.debug("FcaCommandExecutor.commitFilesToWork(): File: " + fileToWork.getFileName() + " saved in " + (System.currentTimeMillis()-start) + " millis.");
+				}
+			}
+			catch (Exception e) {
+				logger.error("FcaCommandExecutor.commitFilesToWork(): unable to save file " + fileToWork.getFileName() + " of document " + docId + "... " + e.getMessage(), e);
+			}
+		}
+
+		boolean allSaved = saved.size() == group.size();
+		for (FileToWork fileToWork : saved) {
+			if (allSaved)
+				fileToWork.releaseOutputs();
+			else
+				fileToWork.releaseText();
+		}
+		return allSaved;
+	}
+
+	/**
+	 * Stima della memoria (in byte) occupata dal testo estratto dal file: dimensione del file (o numero massimo di caratteri estratti se
+	 * inferiore o se la dimensione non e' nota) moltiplicata per la dimensione di un carattere
+	 * @param fileToWork File da processare
+	 * @return Memoria stimata, 0 se sul file non e' richiesta l'estrazione del testo
+	 * @throws Exception
+	 */
+	private long estimateTextBytes(FileToWork fileToWork) throws Exception {
+		if (fileToWork.getIndex() != FileActionState.TODO)
+			return 0;
+
+		long maxChars = activationParams.getIndexMaxChars();
+		long size = fileToWork.getInputSize();
+		long chars;
+		if (maxChars > 0)
+			chars = (size >= 0) ? Math.min(size, maxChars) : maxChars;
+		else
+			chars = Math.max(size, 0);
+		return 2 * chars;
+	}
+
+	/**
+	 * Riconoscimento della tipologia del file in base al contenuto (magic bytes). Il riconoscimento viene eseguito una sola volta per file e il
+	 * risultato viene memorizzato sul FileToWork. In caso di file cifrati o non supportati vengono settate come fallite tutte le attivita'
+	 * previste sul file, senza passare il file agli strumenti di estrazione testo e conversione.
+	 * @param fileToWork File da processare
+	 * @return false se il file e' stato scartato, true altrimenti
+	 */
+	private boolean detectFileType(FileToWork fileToWork) {
+		if (fileToWork.getInputSource() == null || fileToWork.getFileType() != null)
+			return fileToWork.getFileType() == null || !fileToWork.getFileType().isRejected();
+
+		try {
+			FileType fileType = FileTypeDetector.getInstance().detect(fileToWork.getInputSource(), fileToWork.getWorkFileName());
+			fileToWork.setFileType(fileType);
+
+			if (fileType.isRejected()) {
+				logger.warn("FcaCommandExecutor.detectFileType(): File: " + fileToWork.getFileName() + " rejected, detected type " + fileType);
+				fileToWork.setAllFailed();
+				return false;
+			}
+		}
+		catch (Exception e) {
+			// In caso di errore sul riconoscimento si procede in base all'estensione dichiarata
+			logger.warn("FcaCommandExecutor.detectFileType(): unable to detect type of file " + fileToWork.getFileName() + "... " + e.getMessage(), e);
+		}
+		return true;
+	}
+
+	/**
+	 * Estrazione in streaming del contenuto di una busta firmata (P7M, anche annidata) nella directory di lavoro. Il file estratto sostituisce
+	 * il file di input e viene nuovamente sottoposto al riconoscimento della tipologia. In caso di errore sull'estrazione il file viene
+	 * elaborato come busta (solo indicizzazione).
+	 * @param fileToWork File da processare
+	 * @return false se il file estratto e' stato scartato, true altrimenti
+	 */
+	private boolean unwrapSignedEnvelope(FileToWork fileToWork) {
+		if (fileToWork.getFileType() == null || !fileToWork.getFileType().isSigned())
+			return true;
+
+		try {
+			SignedEnvelopeUnwrapper.UnwrappedFile unwrapped = SignedEnvelopeUnwrapper.unwrap(fileToWork.getInputSource(), fileToWork.getFileName(), workDir);
+			fileToWork.setUnwrappedFile(unwrapped.getFile(), unwrapped.getFileName());
+		}
+		catch (Exception e) {
+			logger.warn("FcaCommandExecutor.unwrapSignedEnvelope(): unable to extract signed content from " + fileToWork.getFileName() + "... " + e.getMessage(), e);
+			return true;
+		}
+		return detectFileType(fileToWork);
+	}
+
 	/**
 	 * Conversione del file
 	 * @param fileToWork
@@ -93,22 +490,29 @@ public abstract class FcaCommandExecutor {
 		boolean convEnabled = true;
 
 		// Verifico che le conversioni dei file siano abilitate sul sistema
-		if (!FcsConfig.getInstance().getActivationParams().isConvertEnabled()) {
+		if (!activationParams.isConvertEnabled()) {
 			if (logger.isDebugEnabled())
 				logger.debug("FcaCommandExecutor.convertFile(): File: " + fileToWork.getFileName() + " not converted because isConvertEnabled = false.");
 			convEnabled = false;
 		}
 		else {
 			// Verifico che la dimensione del file non sia superiore all'eventuale limite massimo impostato
-			if (FcsConfig.getInstance().getActivationParams().getConvertMaxFileSize() > 0 && fileToWork.getInputFile().length() > FcsConfig.getInstance().getActivationParams().getConvertMaxFileSize()) {
+			if (activationParams.getConvertMaxFileSize() > 0 && fileToWork.getInputSize() > activationParams.getConvertMaxFileSize()) {
+				if (logger.isDebugEnabled())
+					logger.debug("FcaCommandExecutor.convertFile(): File: " + fileToWork.getFileName() + " not converted because file size ( = " + fileToWork.getInputSize() + " bytes) greater than ConvertMaxFileSize (=" + activationParams.getConvertMaxFileSize() + ")");
+				convEnabled = false;
+			}
+
+			// Verifico che il file non sia una busta firmata (il contenuto non e' convertibile)
+			if (convEnabled && fileToWork.getFileType() != null && fileToWork.getFileType().isSigned()) {
 				if (logger.isDebugEnabled())
-					logger.debug("FcaCommandExecutor.convertFile(): File: " + fileToWork.getFileName() + " not converted because file size ( = " + fileToWork.getInputFile().length() + " bytes) greater than ConvertMaxFileSize (=" + FcsConfig.getInstance().getActivationParams().getConvertMaxFileSize() + ")");
+					logger.debug("FcaCommandExecutor.convertFile(): File: " + fileToWork.getFileName() + " not converted because it is a signed envelope");
 				convEnabled = false;
 			}
 
 			// Verifico che l'estensione del file sia fra quelle supportate
-			String ext = getFileExtension(fileToWork.getFileName());
-			if (convEnabled && !FcsConfig.getInstance().getActivationParams().checkConvertFileExtensionValid(ext)) {
+			String ext = getWorkFileExtension(fileToWork);
+			if (convEnabled && !activationParams.checkConvertFileExtensionValid(ext)) {
 				if (logger.isDebugEnabled())
 					logger.debug("FcaCommandExecutor.convertFile(): File: " + fileToWork.getFileName() + " not converted because extension " + ext + " not included on valid extensions");
 				convEnabled = false;
@@ -133,7 +537,7 @@ public abstract class FcaCommandExecutor {
 									if (!ext.toLowerCase().equals(extTo.toLowerCase())) {
 
 										if (extTo.toLowerCase().equals("pdf")) { // conversione in PDF
-											outFile = Convert.convert(officeManager, workDir, fileToWork.getInputFile(), ext, extTo);
+											outFile = Convert.convert(officeManager, workDir, materializeInputFile(fileToWork), ext, extTo);
 										}
 										// TODO Gestire eventuali altre tipologie di conversione, per il momento gestiamo solo la destinazione PDF
 
@@ -168,7 +572,7 @@ public abstract class FcaCommandExecutor {
 		boolean indexEnabled = true;
 
 		// Verifico che l'estrazione del testo (indicizzazione) dai file sia abilitata sul sistema
-		if (!FcsConfig.getInstance().getActivationParams().isIndexEnabled()) {
+		if (!activationParams.isIndexEnabled()) {
 			if (logger.isDebugEnabled())
 				logger.debug("FcaCommandExecutor.indexFile(): File: " + fileToWork.getFileName() + " not indexed because isIndexEnabled = false.");
 			indexEnabled = false;
@@ -177,15 +581,15 @@ public abstract class FcaCommandExecutor {
 			org.apache.tika.metadata.Metadata tikaMetadata = new org.apache.tika.metadata.Metadata();
 
 			// Verifico che la dimensione del file non sia superiore all'eventuale limite massimo impostato
-			if (FcsConfig.getInstance().getActivationParams().getIndexMaxFileSize() > 0 && fileToWork.getInputFile().length() > FcsConfig.getInstance().getActivationParams().getIndexMaxFileSize()) {
+			if (activationParams.getIndexMaxFileSize() > 0 && fileToWork.getInputSize() > activationParams.getIndexMaxFileSize()) {
 				if (logger.isDebugEnabled())
-					logger.debug("FcaCommandExecutor.indexFile(): File: " + fileToWork.getFileName() + " not indexed because file size ( = " + fileToWork.getInputFile().length() + " bytes) greater than IndexMaxFileSize (=" + FcsConfig.getInstance().getActivationParams().getIndexMaxFileSize() + ")");
+					logger.debug("FcaCommandExecutor.indexFile(): File: " + fileToWork.getFileName() + " not indexed because file size ( = " + fileToWork.getInputSize() + " bytes) greater than IndexMaxFileSize (=" + activationParams.getIndexMaxFileSize() + ")");
 				indexEnabled = false;
 			}
 
 			// Verifico che l'estensione del file sia fra quelle supportate
-			String ext = getFileExtension(fileToWork.getFileName());
-			if (indexEnabled && !FcsConfig.getInstance().getActivationParams().checkIndexFileExtensionValid(ext)) {
+			String ext = getWorkFileExtension(fileToWork);
+			if (indexEnabled && !activationParams.checkIndexFileExtensionValid(ext)) {
 				if (logger.isDebugEnabled())
 					logger.debug("FcaCommandExecutor.indexFile(): File: " + fileToWork.getFileName() + " not indexed because extension " + ext + " not included on valid extensions");
 				indexEnabled = false;
@@ -203,8 +607,8 @@ public abstract class FcaCommandExecutor {
 									logger.info("FcaCommandExecutor.indexFile(): OCR disabled for extension " + ext + " parse only metadata on file " + fileToWork.getFileName());
 
 								long start = System.currentTimeMillis();
-								tikaMetadata = TextExtractor.parseMetadata(fileToWork.getInputFile());
-								fileToWork.setOutMetadata(metadataFromTikaMetadata(ext, fileToWork.getInputFile().length(), tikaMetadata));
+								tikaMetadata = TikaParserRegistry.getInstance().parseMetadata(materializeInputFile(fileToWork));
+								fileToWork.setOutMetadata(metadataFromTikaMetadata(ext, fileToWork.getInputSize(), fileToWork.getFileType(), tikaMetadata));
 								fileToWork.setIndexIgnore();
 
 								if (logger.isDebugEnabled())
@@ -236,8 +640,8 @@ public abstract class FcaCommandExecutor {
 
 								// Devo parsare il file
 								tikaMetadata = new org.apache.tika.metadata.Metadata();
-								fileToWork.setOutFileText(TextExtractor.parse(fileToWork.getInputFile(), tikaMetadata, FcsConfig.getInstance().getActivationParams().getIndexMaxChars()));
-								fileToWork.setOutMetadata(metadataFromTikaMetadata(ext, fileToWork.getInputFile().length(), tikaMetadata));
+								fileToWork.setOutFileText(extractText(fileToWork, ext, tikaMetadata));
+								fileToWork.setOutMetadata(metadataFromTikaMetadata(ext, fileToWork.getInputSize(), fileToWork.getFileType(), tikaMetadata));
 
 								if (logger.isDebugEnabled())
 									logger.debug("FcaCommandExecutor.indexFile(): File: " + fileToWork.getFileName() + " index and meta extracted.");
@@ -260,7 +664,7 @@ public abstract class FcaCommandExecutor {
 
 								// Devo parsare il file
 								tikaMetadata = new org.apache.tika.metadata.Metadata();
-								fileToWork.setOutFileText(TextExtractor.parse(fileToWork.getInputFile(), tikaMetadata, FcsConfig.getInstance().getActivationParams().getIndexMaxChars()));
+								fileToWork.setOutFileText(extractText(fileToWork, ext, tikaMetadata));
 
 								if (logger.isDebugEnabled())
 									logger.debug("FcaCommandExecutor.indexFile(): File: " + fileToWork.getFileName() + " index extracted.");
@@ -283,8 +687,8 @@ public abstract class FcaCommandExecutor {
 								logger.info("FcaCommandExecutor.indexFile(): parse only metadata on file " + fileToWork.getFileName());
 
 							long start = System.currentTimeMillis();
-							tikaMetadata = TextExtractor.parseMetadata(fileToWork.getInputFile());
-							fileToWork.setOutMetadata(metadataFromTikaMetadata(ext, fileToWork.getInputFile().length(), tikaMetadata));
+							tikaMetadata = TikaParserRegistry.getInstance().parseMetadata(materializeInputFile(fileToWork));
+							fileToWork.setOutMetadata(metadataFromTikaMetadata(ext, fileToWork.getInputSize(), fileToWork.getFileType(), tikaMetadata));
 
 							if (logger.isDebugEnabled())
 								logger.debug("FcaCommandExecutor.indexFile(): File: " + fileToWork.getFileName() + " meta extracted.");
@@ -307,9 +711,88 @@ public abstract class FcaCommandExecutor {
 		}
 	}
 
+	/**
+	 * Estrazione del testo dal file passato. Per i documenti scansionati (PDF e TIFF) viene tentato l'OCR parallelo per pagina sul pool
+	 * dedicato, altrimenti il testo viene estratto sul thread corrente
+	 * @param fileToWork File da processare
+	 * @param ext Estensione del file
+	 * @param tikaMetadata Metadati da valorizzare
+	 * @return Testo estratto dal file
+	 * @throws Exception
+	 */
+	private String extractText(FileToWork fileToWork, String ext, org.apache.tika.metadata.Metadata tikaMetadata) throws Exception {
+		OcrExecutor ocrExecutor = OcrExecutor.getInstance();
+		if (ocrExecutor.isEnabledFor(ext, config)) {
+			String text = null;
+			try {
+				text = ocrExecutor.ocr(materializeInputFile(fileToWork), ext, workDir, (int) activationParams.getIndexMaxChars(), config);
+			}
+			catch (Exception e) {
+				logger.warn("FcaCommandExecutor.extractText(): parallel OCR failed on file " + fileToWork.getFileName() + ", fallback to sequential parse... " + e.getMessage(), e);
+			}
+			if (text != null) {
+				// Il testo e' stato estratto tramite OCR per pagina, recupero i soli metadati del file
+				org.apache.tika.metadata.Metadata fileMetadata = TikaParserRegistry.getInstance().parseMetadata(materializeInputFile(fileToWork));
+				if (fileMetadata != null)
+					for (String name : fileMetadata.names())
+						for (String value : fileMetadata.getValues(name))
+							tikaMetadata.add(name, value);
+				return text;
+			}
+		}
+		return TikaParserRegistry.getInstance().parse(materializeInputFile(fileToWork), tikaMetadata, activationParams.getIndexMaxChars());
+	}
+
+	/**
+	 * Ritorna il file locale del file da processare, richiesto dagli strumenti che non accettano stream (OpenOffice, OCR). Se il contenuto
+	 * non e' disponibile su filesystem (sorgente stream o buffer) viene salvato nella directory di lavoro una sola volta, il file salvato
+	 * sostituisce la sorgente per le elaborazioni successive.
+	 * @param fileToWork File da processare
+	 * @return File locale
+	 * @throws Exception
+	 */
+	private File materializeInputFile(FileToWork fileToWork) throws Exception {
+		File file = materializeInputFile(fileToWork, 0, null);
+		if (file == null)
+			throw new Exception("Unable to save content of file " + fileToWork.getFileName());
+		return file;
+	}
+
+	/**
+	 * Ritorna il file locale del file da processare (vedi {@link #materializeInputFile(FileToWork)}), con interruzione del salvataggio al
+	 * superamento della dimensione massima indicata
+	 * @param fileToWork File da processare
+	 * @param maxSize Dimensione massima del contenuto in byte (valore minore o uguale a 0 per nessun limite)
+	 * @param digest Digest da aggiornare con il contenuto salvato (NULL se non richiesto, non aggiornato se il file e' gia' locale)
+	 * @return File locale, NULL se il contenuto supera la dimensione massima
+	 * @throws Exception
+	 */
+	private File materializeInputFile(FileToWork fileToWork, long maxSize, MessageDigest digest) throws Exception {
+		InputSource source = fileToWork.getInputSource();
+		if (source == null)
+			throw new Exception("Input source is NULL for file " + fileToWork.getFileName());
+		if (source.getFile() != null)
+			return source.getFile();
+
+		long start = System.currentTimeMillis();
+		String ext = getWorkFileExtension(fileToWork);
+		WorkDirManager workDirManager = WorkDirManager.getInstance();
+		File file = workDirManager.createTempFile(workDir, "in_", (ext != null && !ext.isEmpty()) ? "." + ext : "", Math.max(source.getSize(), 0));
+		long size = source.writeTo(file, maxSize, digest);
+		if (source.getSize() < 0)
+			workDirManager.reconcile(workDir); // addebito sulla quota dell'area in RAM della dimensione effettiva
+		if (size < 0)
+			return null;
+		fileToWork.setInputFile(file);
+
+		if (logger.isDebugEnabled())
+			logger.debug("FcaCommandExecutor.materializeInputFile(): " + fileToWork.getFileName() + " saved to " + file.getName() + " [size = " + file.length() + "] in " + (System.currentTimeMillis()-start) + " millis.");
+		return file;
+	}
+
 	private boolean checkOcrDisabledForFileExtension(String ext) {
 		try {
-			if (!FcsConfig.getInstance().getActivationParams().isOcrEnabled() && FcsConfig.getInstance().getActivationParams().getOcrFileTypesExclude().contains(ext.toLowerCase())) {
+			if (!activationParams.isOcrEnabled() && activationParams.getOcrFileTypesExclude().contains(ext.toLowerCase())) {
 				return true;
 			}
 		}
@@ -320,10 +803,12 @@ public abstract class FcaCommandExecutor {
 	}
 
 	@SuppressWarnings("deprecation")
-	private Metadata metadataFromTikaMetadata(String extension, long size, org.apache.tika.metadata.Metadata tikaMetadata) {
+	private Metadata metadataFromTikaMetadata(String extension, long size, FileType fileType, org.apache.tika.metadata.Metadata tikaMetadata) {
 		Metadata metadata = null;
 		if (tikaMetadata != null) {
 			metadata = new Metadata(extension, size);
+			if (fileType != null)
+				metadata.addMeta(Metadata.DETECTED_MIME_TYPE, fileType.getMimeType());
 			setMetadataProperty(metadata, tikaMetadata, org.apache.tika.metadata.Metadata.CONTRIBUTOR);
 			setMetadataProperty(metadata, tikaMetadata, org.apache.tika.metadata.Metadata.COVERAGE);
 			setMetadataProperty(metadata, tikaMetadata, org.apache.tika.metadata.Metadata.CREATOR);
@@ -452,6 +937,18 @@ public abstract class FcaCommandExecutor {
 		return metadata;
 	}
 
+	/**
+	 * Ritorna l'estensione da utilizzare per l'elaborazione del file: estensione corrispondente al tipo riconosciuto in base al contenuto
+	 * o, in caso di riconoscimento non eseguito, estensione del nome del file
+	 * @param fileToWork
+	 * @return
+	 */
+	private String getWorkFileExtension(FileToWork fileToWork) {
+		if (fileToWork.getFileType() != null && fileToWork.getFileType().getExtension() != null && !fileToWork.getFileType().getExtension().isEmpty())
+			return fileToWork.getFileType().getExtension();
+		return getFileExtension(fileToWork.getWorkFileName());
+	}
+
 	/**
 	 * Ritorna l'estensione del file di cui viene passato il nome
 	 * @param filename
@@ -496,9 +993,24 @@ public abstract class FcaCommandExecutor {
 	 */
 	public abstract boolean saveDocumento(Documento documento) throws Exception;
 
+	/**
+	 * Salvataggio incrementale dei risultati di un singolo file, invocato al termine dell'elaborazione di ogni file del documento.
+	 * L'implementazione di default non esegue alcun salvataggio: tutti i risultati vengono salvati tramite saveDocumento(). Le implementazioni
+	 * che salvano il file devono ritornare true: testo estratto e file convertiti vengono rilasciati, mentre gli stati delle attivita'
+	 * restano disponibili su saveDocumento() (che rimane il salvataggio conclusivo del documento).
+	 * @param documento Documento in elaborazione
+	 * @param fileToWork File elaborato
+	 * @return true se i risultati del file sono stati salvati (e possono essere rilasciati), false altrimenti
+	 * @throws Exception
+	 */
+	public boolean saveFileToWork(Documento documento, FileToWork fileToWork) throws Exception {
+		return false;
+	}
+
 	/**
 	 * Recupero del documento da elaborare in base all'identificativo passato. Il documento risultante contiene l'elenco dei files da elaborare
-	 * e la tipologia di elaborazione (indicizzazione/conversione)
+	 * e la tipologia di elaborazione (indicizzazione/conversione). I file salvati nella directory di lavoro dovrebbero essere creati tramite
+	 * WorkDirManager.createTempFile() (indicando la dimensione prevista), in modo da rispettare la quota dell'eventuale area di lavoro in RAM.
 	 * @param id Identificativo del documento da caricare
 	 * @param workDir Directory di lavoro dello specifico thread (da utilizzare come directory di appoggio per il salvataggio dei file di lavoro)
 	 * @return
@@ -0,0 +1,104 @@
+package it.tredi.fcs.command.async;
+
+/**
+ * Record del journal delle richieste FCA asincrone. Un record di tipo ENQ registra la richiesta ricevuta da FCA, un record di tipo ATT l'avvio
+ * di un tentativo di elaborazione (numero del tentativo in attempts), un record di tipo END ne registra il completamento.
+ */
+public class FcaJob {
+
+	public static final String TYPE_ENQUEUED = "ENQ";
+	public static final String TYPE_ATTEMPT = "ATT";
+	public static final String TYPE_END = "END";
+
+	private String type;
+	private String id;
+	private String docId;
+	private String[] convTo;
+	private String additionalParams;
+	private long time;
+	private boolean done;
+	private int attempts;
+
+	public FcaJob() {
+	}
+
+	public FcaJob(String type, String id) {
+		this.type = type;
+		this.id = id;
+		this.time = System.currentTimeMillis();
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getDocId() {
+		return docId;
+	}
+
+	public void setDocId(String docId) {
+		this.docId = docId;
+	}
+
+	public String[] getConvTo() {
+		return convTo;
+	}
+
+	public void setConvTo(String[] convTo) {
+		this.convTo = convTo;
+	}
+
+	public String getAdditionalParams() {
+		return additionalParams;
+	}
+
+	public void setAdditionalParams(String additionalParams) {
+		this.additionalParams = additionalParams;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	public void setDone(boolean done) {
+		this.done = done;
+	}
+
+	/**
+	 * Numero di tentativi di elaborazione avviati (anche prima di un riavvio del servizio)
+	 * @return
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	@Override
+	public String toString() {
+		return id + " [docId = " + docId + "]";
+	}
+
+}
@@ -0,0 +1,179 @@
+package it.tredi.fcs.command.async;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.tredi.fcs.Fcs;
+
+/**
+ * Journal locale append-only delle richieste FCA asincrone. Ogni record (una riga JSON) viene scritto e sincronizzato su disco prima di
+ * rispondere al client, in modo che le richieste non completate possano essere rielaborate dopo un crash del servizio.
+ */
+public class FcaJobJournal {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private static final String JOURNAL_FILE_NAME = "fca-jobs.journal";
+
+	private final File file;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private FileChannel channel;
+
+	/**
+	 * Costruttore
+	 * @param folder Directory nella quale salvare il journal
+	 * @throws Exception
+	 */
+	public FcaJobJournal(File folder) throws Exception {
+		if (!folder.exists() && !folder.mkdirs())
+			throw new Exception("Unable to create FCA journal folder... " + folder.getAbsolutePath());
+		this.file = new File(folder, JOURNAL_FILE_NAME);
+	}
+
+	/**
+	 * Lettura del journal e ricostruzione delle richieste non ancora completate (nell'ordine di ricezione), con il numero di tentativi di
+	 * elaborazione gia' avviati. Il journal viene quindi riscritto con le sole richieste pendenti e aperto in scrittura.
+	 * @return Richieste da rielaborare
+	 * @throws Exception
+	 */
+	public synchronized List<FcaJob> open() throws Exception {
+		Map<String, FcaJob> pending = new LinkedHashMap<String, FcaJob>();
+		if (file.exists()) {
+			try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().isEmpty())
+						continue;
+					try {
+						FcaJob job = mapper.readValue(line, FcaJob.class);
+						if (FcaJob.TYPE_ENQUEUED.equals(job.getType()))
+							pending.put(job.getId(), job);
+						else if (FcaJob.TYPE_ATTEMPT.equals(job.getType())) {
+							FcaJob enqueued = pending.get(job.getId());
+							if (enqueued != null)
+								enqueued.setAttempts(Math.max(enqueued.getAttempts(), job.getAttempts()));
+						}
+						else if (FcaJob.TYPE_END.equals(job.getType()))
+							pending.remove(job.getId());
+					}
+					catch (Exception e) {
+						// record parziale (es. crash durante la scrittura), viene ignorato
+						logger.warn("FcaJobJournal.open(): invalid journal record ignored... " + e.getMessage());
+					}
+				}
+			}
+		}
+
+		// compattazione del journal: vengono mantenute le sole richieste pendenti (il record ENQ riporta i tentativi gia' avviati)
+		List<FcaJob> jobs = new ArrayList<FcaJob>(pending.values());
+		rewrite(jobs);
+
+		if (logger.isInfoEnabled())
+			logger.info("FcaJobJournal.open(): journal " + file.getAbsolutePath() + " opened [pending jobs = " + jobs.size() + "]");
+		return jobs;
+	}
+
+	/**
+	 * Aggiunta di un record al journal (con sincronizzazione su disco)
+	 * @param job
+	 * @throws Exception
+	 */
+	public synchronized void append(FcaJob job) throws Exception {
+		if (channel == null)
+			throw new Exception("FCA journal not opened");
+		channel.write(toRecord(job));
+		channel.force(false);
+	}
+
+	/**
+	 * Compattazione del journal: il journal viene riscritto (in modo atomico) con le sole richieste pendenti indicate e riaperto in scrittura
+	 * @param jobs Richieste pendenti (nell'ordine di ricezione)
+	 * @throws Exception
+	 */
+	public synchronized void compact(Collection<FcaJob> jobs) throws Exception {
+		if (channel == null)
+			throw new Exception("FCA journal not opened");
+		long size = channel.size();
+		rewrite(jobs);
+
+		if (logger.isDebugEnabled())
+			logger.debug("FcaJobJournal.compact(): journal compacted from " + size + " to " + channel.size() + " bytes [pending jobs = " + jobs.size() + "]");
+	}
+
+	/**
+	 * Riscrittura del journal con le richieste indicate (su file temporaneo, sostituito in modo atomico) e apertura in scrittura
+	 */
+	private void rewrite(Collection<FcaJob> jobs) throws Exception {
+		File tmp = new File(file.getParentFile(), JOURNAL_FILE_NAME + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for (FcaJob job : jobs)
+				out.write(toRecord(job));
+			out.force(true);
+		}
+
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+	}
+
+	/**
+	 * Svuotamento del journal (da richiamare in assenza di richieste pendenti)
+	 * @throws Exception
+	 */
+	public synchronized void truncate() throws Exception {
+		if (channel != null) {
+			channel.truncate(0);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Ritorna la dimensione corrente del journal (in byte)
+	 * @return
+	 */
+	public synchronized long size() throws Exception {
+		return (channel != null) ? channel.size() : 0;
+	}
+
+	/**
+	 * Chiusura del journal
+	 */
+	public synchronized void close() {
+		try {
+			if (channel != null)
+				channel.close();
+		}
+		catch (Exception e) {
+			logger.warn("FcaJobJournal.close(): unable to close journal... " + e.getMessage());
+		}
+		channel = null;
+	}
+
+	private ByteBuffer toRecord(FcaJob job) throws Exception {
+		return ByteBuffer.wrap((mapper.writeValueAsString(job) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,294 @@
+package it.tredi.fcs.command.async;
+
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jodconverter.office.OfficeManager;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.command.FcaCommandExecutor;
+import it.tredi.fcs.workdir.WorkDir;
+import it.tredi.fcs.workdir.WorkDirManager;
+
+/**
+ * Coda di elaborazione delle richieste FCA asincrone. Le richieste vengono registrate sul journal locale, confermate immediatamente al client
+ * ed elaborate da un pool di worker dedicato. All'avvio vengono rielaborate le richieste non completate prima di un eventuale crash.
+ */
+public class FcaJobQueue {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private final Fcs fcs;
+	private final OfficeManager officeManager;
+	private final FcaJobJournal journal;
+	private final ExecutorService workers;
+
+	// Numero massimo di tentativi di elaborazione di una richiesta fallita per eccezione (conteggiati anche fra i riavvii del servizio)
+	private static final int MAX_ATTEMPTS = 3;
+
+	// Dimensione del journal (in byte) oltre la quale il journal viene compattato
+	private static final long JOURNAL_COMPACT_SIZE = 4 * 1024 * 1024;
+
+	// richieste registrate sul journal e non ancora completate (nell'ordine di ricezione), accesso sincronizzato sul journal
+	private final Map<String, FcaJob> pending = new LinkedHashMap<String, FcaJob>();
+
+	// Singleton
+	private static volatile FcaJobQueue instance = null;
+
+	/**
+	 * Costruttore privato
+	 */
+	private FcaJobQueue(Fcs fcs, OfficeManager officeManager, FcsConfig config) throws Exception {
+		this.fcs = fcs;
+		this.officeManager = officeManager;
+		this.journal = new FcaJobJournal(config.getFcsFcaAsyncJournalFolder());
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(Math.max(1, config.getFcsFcaAsyncWorkers()), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "fcs-fca-async-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// rielaborazione delle richieste non completate: le richieste che hanno gia' esaurito i tentativi previsti (es. crash del servizio
+		// durante l'elaborazione) vengono registrate come fallite
+		List<FcaJob> jobs = journal.open();
+		int retired = 0;
+		synchronized (journal) {
+			for (FcaJob job : jobs)
+				pending.put(job.getId(), job);
+			for (FcaJob job : jobs) {
+				if (job.getAttempts() >= MAX_ATTEMPTS) {
+					logger.error("FcaJobQueue: FCA job " + job + " FAILED after " + job.getAttempts() + " attempts, retired from journal");
+					end(job, false);
+					retired++;
+				}
+				else {
+					workers.submit(() -> process(job, job.getAttempts() + 1));
+				}
+			}
+		}
+		if (!jobs.isEmpty() && logger.isInfoEnabled())
+			logger.info("FcaJobQueue: " + (jobs.size() - retired) + " unfinished FCA jobs replayed from journal [retired = " + retired + "]");
+	}
+
+	/**
+	 * Inizializzazione della coda di elaborazione (con rielaborazione delle richieste presenti sul journal)
+	 * @param fcs Servizio FCS (istanzia gli FcaCommandExecutor)
+	 * @param officeManager Manager di OpenOffice
+	 * @return
+	 * @throws Exception
+	 */
+	public static FcaJobQueue init(Fcs fcs, OfficeManager officeManager) throws Exception {
+		if (instance == null) {
+			synchronized (FcaJobQueue.class) {
+				if (instance == null)
+					instance = new FcaJobQueue(fcs, officeManager, FcsConfig.getInstance());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Ritorna l'istanza della coda di elaborazione
+	 * @return
+	 * @throws Exception
+	 */
+	public static FcaJobQueue getInstance() throws Exception {
+		if (instance == null)
+			throw new Exception("FCA async queue not initialized");
+		return instance;
+	}
+
+	/**
+	 * Registrazione di una nuova richiesta FCA sul journal e accodamento per l'elaborazione. Al ritorno del metodo la richiesta risulta salvata
+	 * su disco.
+	 * @param docId
+	 * @param convTo
+	 * @param additionalParams
+	 * @return Job registrato
+	 * @throws Exception
+	 */
+	public FcaJob submit(String docId, String[] convTo, String additionalParams) throws Exception {
+		FcaJob job = new FcaJob(FcaJob.TYPE_ENQUEUED, UUID.randomUUID().toString());
+		job.setDocId(docId);
+		job.setConvTo(convTo);
+		job.setAdditionalParams(additionalParams);
+
+		synchronized (journal) {
+			journal.append(job);
+			pending.put(job.getId(), job);
+		}
+		workers.submit(() -> process(job, 1));
+
+		if (logger.isDebugEnabled())
+			logger.debug("FcaJobQueue.submit(): FCA job " + job + " enqueued [pending = " + getPendingCount() + "]");
+		return job;
+	}
+
+	/**
+	 * Elaborazione di una richiesta. L'avvio di ogni tentativo viene registrato sul journal, il completamento solo se l'elaborazione termina
+	 * con un esito (positivo o negativo) oppure se falliscono tutti i tentativi previsti. Le richieste interrotte dall'arresto del servizio
+	 * restano pendenti sul journal e vengono rielaborate al successivo avvio (a partire dal tentativo successivo all'ultimo avviato).
+	 * @param job Richiesta da elaborare
+	 * @param attempt Tentativo corrente (a partire da 1)
+	 */
+	private void process(FcaJob job, int attempt) {
+		long start = System.currentTimeMillis();
+		boolean done = false;
+		Throwable failure = null;
+		WorkDir workDir = null;
+		try {
+			attempt(job, attempt);
+			workDir = WorkDirManager.getInstance().allocate(Thread.currentThread().getId());
+
+			FcaCommandExecutor fcaCommandExecutor = fcs.getFcaCommandExecutor(job.getDocId(), job.getConvTo() != null ? job.getConvTo() : new String[0], job.getAdditionalParams(), workDir.getDir());
+			fcaCommandExecutor.setOfficeManager(officeManager);
+			done = fcaCommandExecutor.processDocumento();
+		}
+		catch (Throwable t) {
+			failure = t;
+		}
+		finally {
+			try {
+				if (workDir != null)
+					WorkDirManager.getInstance().release(workDir);
+			}
+			catch (Exception e) {
+				logger.error("FcaJobQueue.process(): unable to remove work dir... " + e.getMessage(), e);
+			}
+		}
+
+		if (failure != null) {
+			if (isInterruption(failure)) {
+				logger.warn("FcaJobQueue.process(): FCA job " + job + " interrupted by shutdown, it will be replayed on next start... " + failure.getMessage());
+				return;
+			}
+			if (attempt < MAX_ATTEMPTS && !workers.isShutdown()) {
+				logger.warn("FcaJobQueue.process(): FCA job " + job + " FAILED (attempt " + attempt + " of " + MAX_ATTEMPTS + "), retry... " + failure.getMessage(), failure);
+				try {
+					workers.submit(() -> process(job, attempt + 1));
+					return;
+				}
+				catch (RejectedExecutionException e) {
+					// arresto del servizio in corso, la richiesta verra' rielaborata al successivo avvio
+					return;
+				}
+			}
+			if (workers.isShutdown()) {
+				logger.warn("FcaJobQueue.process(): FCA job " + job + " FAILED during shutdown, it will be replayed on next start... " + failure.getMessage());
+				return;
+			}
+			logger.error("FcaJobQueue.process(): FCA job " + job + " FAILED after " + attempt + " attempts... " + failure.getMessage(), failure);
+		}
+
+		end(job, done);
+
+		if (logger.isInfoEnabled())
+			logger.info("FcaJobQueue.process(): FCA job " + job + " completed in " + (System.currentTimeMillis()-start) + " millis. [done = " + done + ", pending = " + getPendingCount() + "]");
+	}
+
+	/**
+	 * Ritorna true se l'eccezione e' dovuta all'interruzione del worker (arresto del servizio)
+	 */
+	private boolean isInterruption(Throwable t) {
+		if (Thread.currentThread().isInterrupted())
+			return true;
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof InterruptedException || cause instanceof InterruptedIOException || cause instanceof ClosedByInterruptException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Registrazione dell'avvio di un tentativo di elaborazione sul journal (con sincronizzazione su disco)
+	 */
+	private void attempt(FcaJob job, int attempt) throws Exception {
+		FcaJob record = new FcaJob(FcaJob.TYPE_ATTEMPT, job.getId());
+		record.setAttempts(attempt);
+		synchronized (journal) {
+			journal.append(record);
+			job.setAttempts(attempt);
+		}
+	}
+
+	/**
+	 * Registrazione del completamento della richiesta sul journal. In assenza di ulteriori richieste pendenti il journal viene svuotato, oltre
+	 * la dimensione massima viene compattato (riscritto con le sole richieste pendenti).
+	 */
+	private void end(FcaJob job, boolean done) {
+		FcaJob end = new FcaJob(FcaJob.TYPE_END, job.getId());
+		end.setDone(done);
+		try {
+			synchronized (journal) {
+				journal.append(end);
+				pending.remove(job.getId());
+				if (pending.isEmpty())
+					journal.truncate();
+				else if (journal.size() > JOURNAL_COMPACT_SIZE)
+					journal.compact(pending.values());
+			}
+		}
+		catch (Exception e) {
+			logger.error("FcaJobQueue.end(): unable to write journal record for FCA job " + job + "... " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Ritorna il numero di richieste in attesa o in corso di elaborazione
+	 * @return
+	 */
+	public int getPendingCount() {
+		synchronized (journal) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Arresto controllato dei worker: non vengono accettate nuove richieste e viene atteso il completamento delle richieste in corso fino al
+	 * tempo massimo indicato, dopo il quale i worker vengono interrotti e il journal chiuso. Le richieste non completate verranno rielaborate
+	 * al successivo avvio.
+	 * @param timeout Tempo massimo di attesa (in millisecondi)
+	 * @return true se tutte le richieste in corso sono state completate entro il tempo massimo, false altrimenti
+	 */
+	public boolean drain(long timeout) {
+		workers.shutdown();
+		boolean completed = false;
+		try {
+			completed = workers.awaitTermination(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+			if (!completed)
+				logger.warn("FcaJobQueue.drain(): " + getPendingCount() + " FCA jobs not completed, they will be replayed on next start");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		shutdown();
+		return completed;
+	}
+
+	/**
+	 * Arresto dei worker e chiusura del journal. Le richieste non completate verranno rielaborate al successivo avvio.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+		journal.close();
+	}
+
+}
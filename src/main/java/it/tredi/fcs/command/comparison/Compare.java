@@ -1,19 +1,60 @@
 package it.tredi.fcs.command.comparison;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jodconverter.OfficeDocumentCompare;
 import org.jodconverter.office.OfficeManager;
 
 import com.google.common.io.Files;
 
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.command.conversion.Convert;
+import it.tredi.fcs.command.conversion.OpenOfficeConversionExecutor;
+import it.tredi.fcs.command.extraction.TikaParserRegistry;
+import it.tredi.fcs.workdir.WorkDirManager;
+
 /**
  * Conversione da un formato all'altro
  */
 public class Compare {
-	
-	/**
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	// Formato nativo OpenOffice al quale vengono normalizzate versioni in formato differente (per famiglia di documento)
+	private static final Map<String, String> NATIVE_FORMATS = new HashMap<String, String>();
+	static {
+		for (String ext : new String[] { "doc", "docx", "rtf", "odt" })
+			NATIVE_FORMATS.put(ext, "odt");
+		for (String ext : new String[] { "xls", "xlsx", "ods" })
+			NATIVE_FORMATS.put(ext, "ods");
+		for (String ext : new String[] { "ppt", "pptx", "odp" })
+			NATIVE_FORMATS.put(ext, "odp");
+	}
+
+	// Pool di thread per le conversioni concorrenti (normalizzazione delle versioni ed export PDF) sui processi OpenOffice disponibili
+	private static volatile ExecutorService officePool = null;
+
+/**
 	 * Effettua la comparazione di due versioni di un file ritornando un byteArray
 	 * @param officeManager l'OfficeManager di libre office
 	 * @param workDir la directory di lavoro su cui appoggiarsi
@@ -22,15 +63,16 @@ public class Compare {
 	 * @param prevVersionExt l'estensione della versione precedente
 	 * @param nextVersionExt l'estensione della versione successiva
 	 * @param outputPdf true se e' richiesto un output file in formato PDF, false in caso di output in formato OpenOffice
+	 * @param config Snapshot della configurazione della richiesta
 	 * @return
 	 */
 	public static CompareResult compareToByteArray(OfficeManager officeManager, File workDir, byte[] prevVersionByteArray, byte[] nextVersionByteArray,
-			String prevVersionExt, String nextVersionExt, boolean outputPdf) throws Exception {
-		File prevVersionFile = File.createTempFile("comp_prev_", "."+prevVersionExt, workDir);
+			String prevVersionExt, String nextVersionExt, boolean outputPdf, FcsConfig config) throws Exception {
+		File prevVersionFile = WorkDirManager.getInstance().createTempFile(workDir, "comp_prev_", "."+prevVersionExt, prevVersionByteArray.length);
 		FileUtils.writeByteArrayToFile(prevVersionFile, prevVersionByteArray);
-		File nextVersionFile = File.createTempFile("comp_next_", "."+nextVersionExt, workDir);
+		File nextVersionFile = WorkDirManager.getInstance().createTempFile(workDir, "comp_next_", "."+nextVersionExt, nextVersionByteArray.length);
 		FileUtils.writeByteArrayToFile(nextVersionFile, nextVersionByteArray);
-		return compare(officeManager, workDir, prevVersionFile, nextVersionFile, prevVersionExt, nextVersionExt, outputPdf);
+		return compare(officeManager, workDir, prevVersionFile, nextVersionFile, prevVersionExt, nextVersionExt, outputPdf, config);
 	}
 
 	/**
@@ -43,11 +85,12 @@ public class Compare {
 	 * @param prevVersionExt l'estensione della versione precedente
 	 * @param nextVersionExt l'estensione della versione successiva
 	 * @param outputPdf true se e' richiesto un output file in formato PDF, false in caso di output in formato OpenOffice
+	 * @param config Snapshot della configurazione della richiesta
 	 * @return
 	 * @throws Exception
 	 */
 	public static CompareResult compare(OfficeManager officeManager, File workDir, File prevVersionFile, File nextVersionFile,
-					String prevVersionExt, String nextVersionExt, boolean outputPdf) throws Exception {
+					String prevVersionExt, String nextVersionExt, boolean outputPdf, FcsConfig config) throws Exception {
 		
 		String outputExt = "";
 		if (outputPdf)
@@ -55,11 +98,312 @@ public class Compare {
 		else 
 			outputExt = prevVersionExt; // se non e' richiesta la conversione in pdf il formato di output e' lo stesso di quello ricevuto in input
 		
-		File outputFile = File.createTempFile("comp_", "."+outputExt, workDir);
-		OfficeDocumentCompare comparer = new OfficeDocumentCompare(officeManager);
-		comparer.compare(prevVersionFile, nextVersionFile, outputFile, prevVersionExt, nextVersionExt, outputExt);
-		
+		CompareResult identical = checkIdentical(prevVersionFile, nextVersionFile, config);
+		if (identical != null)
+			return identical;
+
+		File outputFile = compareToFile(officeManager, workDir, prevVersionFile, nextVersionFile, prevVersionExt, nextVersionExt, outputExt);
 		return new CompareResult(outputExt, Files.toByteArray(outputFile));
 	}
 
+	/**
+	 * Verifica preliminare di versioni identiche (se abilitata in configurazione)
+	 * @return Risultato che indica versioni identiche, NULL se le versioni differiscono o se la verifica non e' abilitata
+	 */
+	private static CompareResult checkIdentical(File prevVersionFile, File nextVersionFile, FcsConfig config) {
+		if (config.isFcsComparisonTextFastpath() && isSameContent(prevVersionFile, nextVersionFile))
+			return CompareResult.identical();
+		return null;
+	}
+
+	/**
+	 * Compara due versioni di un file salvando il risultato nel formato indicato. Le versioni in formato differente vengono normalizzate in
+	 * parallelo (su due processi OpenOffice) al formato nativo OpenOffice prima della comparazione.
+	 * @return File risultante dalla comparazione
+	 */
+	private static File compareToFile(OfficeManager officeManager, File workDir, File prevVersionFile, File nextVersionFile,
+			String prevVersionExt, String nextVersionExt, String outputExt) throws Exception {
+		List<File> files = new ArrayList<File>(Arrays.asList(prevVersionFile, nextVersionFile));
+		List<String> exts = new ArrayList<String>(Arrays.asList(prevVersionExt, nextVersionExt));
+		normalize(officeManager, workDir, files, exts);
+
+		// dimensione prevista dell'output: somma delle due versioni
+		File outputFile = WorkDirManager.getInstance().createTempFile(workDir, "comp_", "."+outputExt, prevVersionFile.length() + nextVersionFile.length());
+		OfficeDocumentCompare comparer = new OfficeDocumentCompare(officeManager);
+		comparer.compare(files.get(0), files.get(1), outputFile, exts.get(0), exts.get(1), outputExt);
+		return outputFile;
+	}
+
+	/**
+	 * Destinatario dei risultati della comparazione multi-versione, notificato per ogni comparazione nell'ordine delle comparazioni
+	 */
+	public interface CompareResultListener {
+
+		/**
+		 * Risultato di una comparazione
+		 * @param index Indice della comparazione (le differenze fra versioni consecutive seguite dall'eventuale differenza cumulativa)
+		 * @param result Risultato della comparazione, NULL in caso di errore sulla singola comparazione
+		 * @throws Exception
+		 */
+		void onResult(int index, CompareResult result) throws Exception;
+	}
+
+	/**
+	 * Compara una sequenza ordinata di versioni di un file producendo le differenze fra versioni consecutive (ed eventualmente la differenza
+	 * cumulativa fra la prima e l'ultima versione). Le versioni in formato differente vengono convertite in parallelo, una sola volta e prima
+	 * delle comparazioni, al formato nativo OpenOffice, in modo che le versioni intermedie (utilizzate in due comparazioni) non vengano
+	 * normalizzate due volte. In caso di output PDF l'export di ogni differenza viene eseguito in parallelo alla comparazione successiva.
+	 * Ogni risultato viene passato al listener (nell'ordine delle comparazioni) appena disponibile, senza attendere le comparazioni successive,
+	 * in modo da non mantenere in memoria tutti i risultati.
+	 * @param officeManager l'OfficeManager di libre office
+	 * @param workDir la directory di lavoro su cui appoggiarsi
+	 * @param versionFiles le versioni del file (dalla meno recente alla piu' recente)
+	 * @param versionExts le estensioni delle versioni
+	 * @param outputPdf true se e' richiesto un output file in formato PDF, false in caso di output in formato OpenOffice
+	 * @param cumulative true se oltre alle differenze fra versioni consecutive e' richiesta la differenza fra la prima e l'ultima versione
+	 * @param listener Destinatario dei risultati delle comparazioni
+	 * @param config Snapshot della configurazione della richiesta
+	 * @return true se tutte le comparazioni sono state completate con successo, false altrimenti
+	 * @throws Exception
+	 */
+	public static boolean compareVersions(OfficeManager officeManager, File workDir, List<File> versionFiles, List<String> versionExts,
+			boolean outputPdf, boolean cumulative, CompareResultListener listener, FcsConfig config) throws Exception {
+		if (versionFiles == null || versionExts == null || versionFiles.size() != versionExts.size())
+			throw new Exception("Versions and extensions mismatch");
+		if (versionFiles.size() < 2)
+			throw new Exception("At least 2 versions are required for comparison");
+
+		long start = System.currentTimeMillis();
+
+		// normalizzazione (una sola volta per versione) al formato nativo OpenOffice
+		List<File> files = new ArrayList<File>(versionFiles);
+		List<String> exts = new ArrayList<String>(versionExts);
+		normalize(officeManager, workDir, files, exts);
+
+		int total = files.size() - 1 + (cumulative ? 1 : 0);
+		boolean allDone = true;
+		int delivered = 0;
+		LinkedList<Future<CompareResult>> pipeline = new LinkedList<Future<CompareResult>>();
+		try {
+			for (int i = 0; i < total; i++) {
+				int prev = (i < files.size()-1) ? i : 0; // l'ultima comparazione dell'elenco e' l'eventuale differenza cumulativa
+				int next = (i < files.size()-1) ? i+1 : files.size()-1;
+				pipeline.add(compareQuietly(officeManager, workDir, files.get(prev), files.get(next), exts.get(prev), exts.get(next), outputPdf, config));
+
+				// invio dei risultati gia' disponibili (rispettando l'ordine delle comparazioni)
+				while (!pipeline.isEmpty() && pipeline.getFirst().isDone())
+					allDone &= deliver(pipeline.removeFirst(), delivered++, total, outputPdf, listener);
+			}
+			while (!pipeline.isEmpty())
+				allDone &= deliver(pipeline.removeFirst(), delivered++, total, outputPdf, listener);
+		}
+		finally {
+			// in caso di errore (es. invio al client fallito) gli export ancora in corso vengono annullati
+			for (Future<CompareResult> future : pipeline)
+				future.cancel(true);
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("Compare.compareVersions(): " + files.size() + " versions compared in " + (System.currentTimeMillis()-start) + " millis. [cumulative = " + cumulative + "]");
+		return allDone;
+	}
+
+	/**
+	 * Attesa del risultato di una comparazione e notifica al listener
+	 * @return true se la comparazione e' stata completata con successo, false altrimenti
+	 */
+	private static boolean deliver(Future<CompareResult> future, int index, int total, boolean outputPdf, CompareResultListener listener) throws Exception {
+		CompareResult result = null;
+		try {
+			result = future.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			logger.warn("Compare.compareVersions(): " + (outputPdf ? "PDF export of comparison " : "comparison ") + (index+1) + " of " + total + " failed... " + cause.getMessage(), cause);
+		}
+		listener.onResult(index, result);
+		return result != null && result.getContent() != null;
+	}
+
+	/**
+	 * Verifica se due versioni di un file hanno lo stesso contenuto: confronto dell'hash del contenuto binario e, se differente, dell'hash del
+	 * testo estratto tramite Tika. In caso di errore sull'estrazione del testo le versioni vengono considerate differenti.
+	 * @param prevVersionFile la versione precedente del file
+	 * @param nextVersionFile la versione successiva del file
+	 * @return true se le due versioni hanno lo stesso contenuto testuale, false altrimenti
+	 */
+	private static boolean isSameContent(File prevVersionFile, File nextVersionFile) {
+		long start = System.currentTimeMillis();
+		try {
+			boolean same = false;
+			if (prevVersionFile.length() == nextVersionFile.length() && Arrays.equals(fileHash(prevVersionFile), fileHash(nextVersionFile))) {
+				same = true;
+			}
+			else {
+				// l'hash del testo della prima versione viene calcolato prima dell'estrazione della seconda (un solo testo in memoria)
+				byte[] prevTextHash = textHash(prevVersionFile);
+				same = prevTextHash != null && Arrays.equals(prevTextHash, textHash(nextVersionFile));
+			}
+
+			if (logger.isInfoEnabled())
+				logger.info("Compare.isSameContent(): " + prevVersionFile.getName() + " and " + nextVersionFile.getName() + (same ? " are identical" : " differ") + ", checked in " + (System.currentTimeMillis()-start) + " millis.");
+			return same;
+		}
+		catch (Exception e) {
+			logger.warn("Compare.isSameContent(): unable to check " + prevVersionFile.getName() + " and " + nextVersionFile.getName() + ", full comparison required... " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Hash SHA-256 del contenuto del file
+	 */
+	private static byte[] fileHash(File file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		try (InputStream in = java.nio.file.Files.newInputStream(file.toPath())) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Hash SHA-256 del testo estratto dal file (NULL in caso di testo vuoto, versioni senza testo non vengono considerate identiche)
+	 */
+	private static byte[] textHash(File file) throws Exception {
+		String text = TikaParserRegistry.getInstance().parse(file, new org.apache.tika.metadata.Metadata(), 0);
+		if (text == null || text.trim().isEmpty())
+			return null;
+		return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Comparazione di due versioni con gestione dell'errore (in caso di errore viene ritornato NULL in modo da non interrompere la comparazione
+	 * delle versioni successive). In caso di output PDF la comparazione viene prodotta in formato OpenOffice e l'export in PDF viene eseguito
+	 * sul pool di conversione, in parallelo alla comparazione successiva.
+	 */
+	private static Future<CompareResult> compareQuietly(OfficeManager officeManager, File workDir, File prevVersionFile, File nextVersionFile,
+			String prevVersionExt, String nextVersionExt, boolean outputPdf, FcsConfig config) {
+		try {
+			if (!outputPdf)
+				return CompletableFuture.completedFuture(compare(officeManager, workDir, prevVersionFile, nextVersionFile, prevVersionExt, nextVersionExt, false, config));
+
+			CompareResult identical = checkIdentical(prevVersionFile, nextVersionFile, config);
+			if (identical != null)
+				return CompletableFuture.completedFuture(identical);
+
+			File diffFile = compareToFile(officeManager, workDir, prevVersionFile, nextVersionFile, prevVersionExt, nextVersionExt, prevVersionExt);
+			return getOfficePool().submit(() -> {
+				File pdfFile = Convert.convert(officeManager, workDir, diffFile, prevVersionExt, "pdf");
+				return (pdfFile != null && pdfFile.exists()) ? new CompareResult("pdf", Files.toByteArray(pdfFile)) : null;
+			});
+		}
+		catch (Exception e) {
+			logger.warn("Compare.compareVersions(): unable to compare " + prevVersionFile.getName() + " with " + nextVersionFile.getName() + "... " + e.getMessage(), e);
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	/**
+	 * Normalizzazione delle versioni in formato differente al formato nativo OpenOffice della relativa famiglia di documenti. Le conversioni
+	 * vengono eseguite in parallelo sul pool di conversione (ogni conversione impegna un processo OpenOffice). Gli elenchi passati vengono
+	 * aggiornati con i file normalizzati; in caso di errore sulla conversione viene mantenuto il file originale.
+	 * @param officeManager l'OfficeManager di libre office
+	 * @param workDir la directory di lavoro su cui appoggiarsi
+	 * @param files le versioni del file
+	 * @param exts le estensioni delle versioni
+	 * @throws Exception
+	 */
+	private static void normalize(OfficeManager officeManager, File workDir, List<File> files, List<String> exts) throws Exception {
+		String nativeExt = getNativeFormat(exts);
+		if (nativeExt == null)
+			return;
+
+		long start = System.currentTimeMillis();
+		List<Future<File>> conversions = new ArrayList<Future<File>>(files.size());
+		for (int i = 0; i < files.size(); i++) {
+			if (exts.get(i).equalsIgnoreCase(nativeExt)) {
+				conversions.add(null);
+				continue;
+			}
+			File file = files.get(i);
+			File normalized = new File(WorkDirManager.getInstance().getOutputDir(workDir, file.length()), "comp_norm_" + i + "_" + System.nanoTime() + "." + nativeExt);
+			conversions.add(getOfficePool().submit(() -> new OpenOfficeConversionExecutor(officeManager).convert(file, normalized) ? normalized : null));
+		}
+
+		for (int i = 0; i < conversions.size(); i++) {
+			if (conversions.get(i) == null)
+				continue;
+			File normalized = conversions.get(i).get();
+			if (normalized != null) {
+				files.set(i, normalized);
+				exts.set(i, nativeExt);
+			}
+			else {
+				logger.warn("Compare.normalize(): unable to normalize " + files.get(i).getName() + " to " + nativeExt + ", original format used");
+			}
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("Compare.normalize(): " + files.size() + " versions normalized to " + nativeExt + " in " + (System.currentTimeMillis()-start) + " millis.");
+	}
+
+	/**
+	 * Ritorna il formato nativo OpenOffice al quale normalizzare le versioni passate. Ritorna NULL se le versioni sono gia' nello stesso formato
+	 * o se appartengono a famiglie di documenti differenti (o non note).
+	 */
+	private static String getNativeFormat(List<String> exts) {
+		boolean sameFormat = true;
+		String nativeExt = null;
+		for (String ext : exts) {
+			if (ext == null)
+				return null;
+			if (!ext.equalsIgnoreCase(exts.get(0)))
+				sameFormat = false;
+			String format = NATIVE_FORMATS.get(ext.toLowerCase());
+			if (format == null || (nativeExt != null && !nativeExt.equals(format)))
+				return null;
+			nativeExt = format;
+		}
+		return sameFormat ? null : nativeExt;
+	}
+
+	/**
+	 * Arresto del pool di thread per le conversioni concorrenti, se avviato
+	 */
+	public static void shutdown() {
+		synchronized (Compare.class) {
+			if (officePool != null) {
+				officePool.shutdownNow();
+				officePool = null;
+			}
+		}
+	}
+
+	/**
+	 * Ritorna il pool di thread per le conversioni concorrenti (dimensionato sul numero di processi OpenOffice configurati)
+	 */
+	private static ExecutorService getOfficePool() throws Exception {
+		if (officePool == null) {
+			synchronized (Compare.class) {
+				if (officePool == null) {
+					int[] ports = FcsConfig.getInstance().getFcsConversionDocOpenOfficePorts();
+					int threads = Math.max(2, ports != null ? ports.length : 0);
+					final AtomicInteger counter = new AtomicInteger();
+					officePool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "fcs-compare-" + counter.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+				}
+			}
+		}
+		return officePool;
+	}
+
 }
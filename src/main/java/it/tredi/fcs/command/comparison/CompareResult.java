@@ -5,8 +5,12 @@ package it.tredi.fcs.command.comparison;
  */
 public class CompareResult {
 
+	/** Estensione restituita al client in caso di versioni identiche (contenuto vuoto, comparazione non eseguita) **/
+	public static final String IDENTICAL_EXTENSION = "identical";
+
 	private String fileExtension;
 	private byte[] content;
+	private boolean identical = false;
 	
 	/**
 	 * Costruttore
@@ -17,6 +21,16 @@ public class CompareResult {
 		this.fileExtension = extension;
 		this.content = content;
 	}
+
+	/**
+	 * Ritorna il risultato di una comparazione fra versioni identiche (verifica preliminare del contenuto, nessun documento prodotto)
+	 * @return
+	 */
+	public static CompareResult identical() {
+		CompareResult result = new CompareResult(IDENTICAL_EXTENSION, new byte[0]);
+		result.identical = true;
+		return result;
+	}
 	
 	public String getFileExtension() {
 		return fileExtension;
@@ -25,5 +39,13 @@ public class CompareResult {
 	public byte[] getContent() {
 		return content;
 	}
+
+	/**
+	 * Ritorna true se le versioni comparate sono risultate identiche (il contenuto restituito e' vuoto)
+	 * @return
+	 */
+	public boolean isIdentical() {
+		return identical;
+	}
 	
 }
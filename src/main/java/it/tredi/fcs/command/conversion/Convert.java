@@ -5,17 +5,26 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jodconverter.office.OfficeManager;
 
 import com.google.common.io.Files;
 
+import it.tredi.fcs.Fcs;
 import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.command.detection.FileTypeDetector;
+import it.tredi.fcs.command.signature.SignedEnvelopeUnwrapper;
+import it.tredi.fcs.entity.FileType;
+import it.tredi.fcs.workdir.WorkDirManager;
 
 /**
  * Conversione da un formato all'altro
  */
 public class Convert {
 	
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+	
 	// Elenco di estensioni da gestire tramite ImageMagick
 	private static final String[] IMAGEMAGICK_EXTENSIONS_DEFAULT_VALUE = { "bmp", "jpeg", "jpg", "png", "tif", "tiff", "gif" }; // TODO da verificare se devono essere specificate altre estensioni
 
@@ -28,9 +37,7 @@ public class Convert {
 	 * @return
 	 */
 	public static byte[] convertToByteArray(OfficeManager officeManager, File workDir, byte[] inputByteArray, String extFrom, String extTo) throws Exception {
-		File inputFile = File.createTempFile("conv_", extFrom, workDir);
-		FileUtils.writeByteArrayToFile(inputFile, inputByteArray);
-		File output = convert(officeManager, workDir, inputFile, extFrom, extTo);
+		File output = convert(officeManager, workDir, inputByteArray, extFrom, extTo);
 		return Files.toByteArray(output);
 	}
 
@@ -43,9 +50,59 @@ public class Convert {
 	 * @return
 	 */
 	public static File convert(OfficeManager officeManager, File workDir, byte[] inputByteArray, String extFrom, String extTo) throws Exception {
-		File inputFile = File.createTempFile("conv_", extFrom, workDir);
+		File inputFile = WorkDirManager.getInstance().createTempFile(workDir, "conv_", extFrom, inputByteArray.length);
 		FileUtils.writeByteArrayToFile(inputFile, inputByteArray);
-		return convert(officeManager, workDir, inputFile, extFrom, extTo);
+		return convertReceivedFile(officeManager, workDir, inputFile, extFrom, extTo);
+	}
+
+	/**
+	 * Effettua la conversione del file ricevuto dal client (gia' salvato nella directory di lavoro) al formato di cui viene passata l'estensione
+	 * extTo. La tipologia del file viene verificata in base al contenuto e le eventuali buste firmate vengono aperte prima della conversione.
+	 * @param officeManager l'OfficeManager di libre office
+	 * @param workDir la directory di lavoro su cui appoggiarsi
+	 * @param inputFile il file da convertire
+	 * @param extFrom l'estensione dichiarata del file da convertire
+	 * @param extTo l'estensione in cui convertire il file
+	 * @return
+	 */
+	public static File convertReceivedFile(OfficeManager officeManager, File workDir, File inputFile, String extFrom, String extTo) throws Exception {
+		FileType fileType = FileTypeDetector.getInstance().detect(inputFile, "input." + extFrom);
+		if (fileType.isSigned()) {
+			// busta firmata: la conversione viene eseguita sul contenuto della busta
+			SignedEnvelopeUnwrapper.UnwrappedFile unwrapped = SignedEnvelopeUnwrapper.unwrap(inputFile, "input." + extFrom, workDir);
+			inputFile = unwrapped.getFile();
+			extFrom = getFileExtension(unwrapped.getFileName());
+			fileType = FileTypeDetector.getInstance().detect(inputFile, unwrapped.getFileName());
+		}
+		
+		String realExt = checkFileType(fileType, extFrom);
+		if (!realExt.equalsIgnoreCase(extFrom)) {
+			// il file viene rinominato con l'estensione reale in modo che gli strumenti di conversione lo riconoscano correttamente
+			File renamed = new File(inputFile.getParentFile(), inputFile.getName() + "." + realExt);
+			if (inputFile.renameTo(renamed))
+				inputFile = renamed;
+		}
+		return convert(officeManager, workDir, inputFile, realExt, extTo);
+	}
+
+	/**
+	 * Verifica della tipologia del file ricevuto riconosciuta in base al contenuto. Se il file risulta cifrato o non supportato la conversione
+	 * fallisce immediatamente (senza attendere il timeout di conversione)
+	 * @param fileType la tipologia riconosciuta per il file da convertire
+	 * @param extFrom l'estensione dichiarata del file
+	 * @return l'estensione corrispondente al contenuto del file
+	 * @throws Exception
+	 */
+	private static String checkFileType(FileType fileType, String extFrom) throws Exception {
+		if (fileType.isRejected() || fileType.isSigned())
+			throw new Exception("Converter - file content not convertible: " + fileType);
+		
+		if (fileType.getExtension() != null && !fileType.getExtension().isEmpty() && !fileType.getExtension().equalsIgnoreCase(extFrom)) {
+			if (logger.isInfoEnabled())
+				logger.info("Convert.checkFileType(): declared extension " + extFrom + " replaced by " + fileType.getExtension() + " [" + fileType.getMimeType() + "]");
+			return fileType.getExtension();
+		}
+		return extFrom;
 	}
 
 	/**
@@ -75,22 +132,26 @@ public class Convert {
 		File outFile = null;
 		if (!extFrom.toLowerCase().equals(extTo.toLowerCase())) {
 			if (extTo.toLowerCase().equals("pdf")) { // conversione in PDF
-				List<String> imagemagickSupportedExtensions = getImageMagickSupportedExtensions();
+				FcsConfig config = FcsConfig.getInstance(); // snapshot della configurazione
+				// il file convertito viene salvato accanto al file di origine se rientra nella quota dell'area di lavoro in RAM (dimensione
+				// stimata pari a quella del file di origine), su disco altrimenti
+				File outDir = WorkDirManager.getInstance().getOutputDir(inputFile.getParentFile(), inputFile.length());
+				List<String> imagemagickSupportedExtensions = getImageMagickSupportedExtensions(config);
 				
 				// mbernardini 16/02/2018 : trasformazione lowercase dell'estensione di origine
 				if (imagemagickSupportedExtensions != null && imagemagickSupportedExtensions.contains(extFrom.toLowerCase())) {
 					// Conversione in PDF tramite ImageMagick
 
-					ImageMagickConversionExecutor imConversionExecutor = new ImageMagickConversionExecutor(FcsConfig.getInstance().getFcsConversionImageMagickCommand());
-					outFile = imConversionExecutor.convert(inputFile, workDir);
+					ImageMagickConversionExecutor imConversionExecutor = new ImageMagickConversionExecutor(config.getFcsConversionImageMagickCommand());
+					outFile = imConversionExecutor.convert(inputFile, outDir);
 				}
 				else {
 					// Conversione in PDF tramite OpenOffice
 					OpenOfficeConversionExecutor ooConversionExecutor = new OpenOfficeConversionExecutor(officeManager);
-					if (FcsConfig.getInstance().isFcsConversionDocOpenOfficePdfA())
-						outFile = ooConversionExecutor.convertToPDFA(inputFile, workDir);
+					if (config.isFcsConversionDocOpenOfficePdfA())
+						outFile = ooConversionExecutor.convertToPDFA(inputFile, outDir);
 					else
-						outFile = ooConversionExecutor.convertToPDF14(inputFile, workDir);
+						outFile = ooConversionExecutor.convertToPDF14(inputFile, outDir);
 				}
 			} else {
 				throw new Exception("Converter - convert Not Supported extension: " + extTo);
@@ -105,8 +166,8 @@ public class Convert {
 	 * Ritorna l'elenco di estensioni supportate in conversione files tramite ImageMagick
 	 * @return
 	 */
-	private static List<String> getImageMagickSupportedExtensions() throws Exception {
-		String[] imExts = FcsConfig.getInstance().getFcsConversionImageMagickExtensions();
+	private static List<String> getImageMagickSupportedExtensions(FcsConfig config) throws Exception {
+		String[] imExts = config.getFcsConversionImageMagickExtensions();
 		if (imExts == null)
 			imExts = IMAGEMAGICK_EXTENSIONS_DEFAULT_VALUE;
 		return Arrays.asList(imExts);
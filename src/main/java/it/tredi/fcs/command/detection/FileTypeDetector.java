@@ -0,0 +1,155 @@
+package it.tredi.fcs.command.detection;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MimeType;
+import org.apache.tika.mime.MimeTypeException;
+import org.apache.tika.mime.MimeTypes;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.command.extraction.TikaParserRegistry;
+import it.tredi.fcs.entity.FileType;
+import it.tredi.fcs.entity.InputSource;
+
+/**
+ * Riconoscimento della tipologia di un file in base al contenuto (magic bytes). Il detector viene istanziato una sola volta e condiviso
+ * fra tutti i thread di FCS (i detector di Tika sono thread-safe).
+ */
+public class FileTypeDetector {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	// Mime type restituiti da Tika per documenti protetti da password
+	private static final List<String> ENCRYPTED_MIME_TYPES = Arrays.asList("application/x-tika-ooxml-protected", "application/x-tika-ooxml-encrypted");
+
+	// Mime type relativi a buste firmate (CAdES)
+	private static final List<String> SIGNED_MIME_TYPES = Arrays.asList("application/pkcs7-signature", "application/pkcs7-mime");
+
+	// Mime type per i quali il contenuto non risulta riconosciuto
+	private static final List<String> UNSUPPORTED_MIME_TYPES = Arrays.asList(MediaType.OCTET_STREAM.toString());
+
+	private final Detector detector;
+	private final MimeTypes mimeTypes;
+
+	// Singleton
+	private static volatile FileTypeDetector instance = null;
+
+	/**
+	 * Costruttore privato
+	 */
+	private FileTypeDetector() {
+		TikaConfig tikaConfig = TikaConfig.getDefaultConfig();
+		this.detector = tikaConfig.getDetector();
+		this.mimeTypes = tikaConfig.getMimeRepository();
+	}
+
+	/**
+	 * Ritorna l'istanza condivisa del detector
+	 * @return
+	 */
+	public static FileTypeDetector getInstance() {
+		if (instance == null) {
+			synchronized (FileTypeDetector.class) {
+				if (instance == null) {
+					if (logger.isInfoEnabled())
+						logger.info("FileTypeDetector instance is null... create one");
+					instance = new FileTypeDetector();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Riconoscimento della tipologia del file passato in base al contenuto. Il nome del file viene utilizzato solo per specializzare il formato
+	 * riconosciuto dal contenuto (es. text/plain per i file CSV)
+	 * @param file File da analizzare
+	 * @param fileName Nome dichiarato del file
+	 * @return Tipologia riconosciuta per il file
+	 * @throws Exception
+	 */
+	public FileType detect(File file, String fileName) throws Exception {
+		if (file == null || !file.isFile())
+			throw new Exception("Impossible to detect file type for file " + (file != null ? file.getAbsolutePath() : "NULL"));
+		return detect(InputSource.fromFile(file), fileName);
+	}
+
+	/**
+	 * Riconoscimento della tipologia del contenuto della sorgente passata (senza richiedere un file locale). Il riconoscimento viene eseguito
+	 * sul solo contenuto: il formato indicato dall'estensione del nome viene utilizzato solo se specializza il formato riconosciuto dal
+	 * contenuto, in modo che un contenuto non riconosciuto non venga classificato in base al solo nome del file
+	 * @param source Sorgente del contenuto da analizzare
+	 * @param fileName Nome dichiarato del file
+	 * @return Tipologia riconosciuta per il file
+	 * @throws Exception
+	 */
+	public FileType detect(InputSource source, String fileName) throws Exception {
+		long start = System.currentTimeMillis();
+
+		MediaType mediaType;
+		try (TikaInputStream tis = TikaParserRegistry.open(source)) {
+			mediaType = detector.detect(tis, new org.apache.tika.metadata.Metadata()).getBaseType();
+		}
+		if (fileName != null && !fileName.isEmpty() && !MediaType.OCTET_STREAM.equals(mediaType)) {
+			MediaType nameType = mimeTypes.getMimeType(fileName).getType();
+			if (mimeTypes.getMediaTypeRegistry().isSpecializationOf(nameType, mediaType))
+				mediaType = nameType;
+		}
+		String mimeType = mediaType.toString();
+
+		FileType fileType = new FileType(mimeType,
+				getExtension(mimeType, getFileExtension(fileName)),
+				ENCRYPTED_MIME_TYPES.contains(mimeType),
+				SIGNED_MIME_TYPES.contains(mimeType),
+				UNSUPPORTED_MIME_TYPES.contains(mimeType));
+
+		if (logger.isDebugEnabled())
+			logger.debug("FileTypeDetector.detect(): " + fileName + " detected as " + fileType + " in " + (System.currentTimeMillis()-start) + " millis.");
+
+		return fileType;
+	}
+
+	/**
+	 * Ritorna l'estensione da utilizzare per il mime type riconosciuto. Se l'estensione dichiarata e' compatibile con il mime type
+	 * viene mantenuta quella dichiarata (es. jpeg/jpg, tif/tiff)
+	 * @param mimeType Mime type riconosciuto
+	 * @param declaredExt Estensione dichiarata del file
+	 * @return
+	 */
+	private String getExtension(String mimeType, String declaredExt) {
+		try {
+			MimeType type = mimeTypes.forName(mimeType);
+			List<String> extensions = type.getExtensions();
+			if (extensions == null || extensions.isEmpty() || extensions.contains("." + declaredExt.toLowerCase()))
+				return declaredExt;
+			return type.getExtension().substring(1);
+		}
+		catch (MimeTypeException e) {
+			logger.warn("FileTypeDetector.getExtension(): unable to resolve mime type " + mimeType + "... " + e.getMessage());
+			return declaredExt;
+		}
+	}
+
+	/**
+	 * Ritorna l'estensione del file di cui viene passato il nome
+	 * @param filename
+	 * @return
+	 */
+	private String getFileExtension(String filename) {
+		if (filename != null && !filename.isEmpty()) {
+			int pos = filename.lastIndexOf(".");
+			if (pos != -1)
+				return filename.substring(pos+1);
+		}
+		return "";
+	}
+
+}
@@ -0,0 +1,91 @@
+package it.tredi.fcs.command.extraction;
+
+import java.io.File;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.tika.io.TikaInputStream;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.entity.InputSource;
+import it.tredi.textextractor.TextExtractor;
+
+/**
+ * Punto di accesso condiviso fra tutti i thread di FCS all'estrazione del testo e dei metadati. L'estrazione viene delegata a
+ * {@link TextExtractor}, in modo che il testo indicizzato (configurazione dei parser, OCR tramite Tesseract, limite di caratteri) resti quello
+ * prodotto dall'estrattore. I parser e la configurazione di Tesseract (TesseractOCRConfig.properties) sono gestiti dall'estrattore: eventuali
+ * modifiche alla configurazione vengono applicate senza necessita' di ricreare istanze condivise.
+ */
+public class TikaParserRegistry {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	// Singleton
+	private static volatile TikaParserRegistry instance = null;
+
+	/**
+	 * Costruttore privato
+	 */
+	private TikaParserRegistry() {
+	}
+
+	/**
+	 * Ritorna l'istanza condivisa del registro dei parser
+	 * @return
+	 */
+	public static TikaParserRegistry getInstance() throws Exception {
+		if (instance == null) {
+			synchronized (TikaParserRegistry.class) {
+				if (instance == null) {
+					if (logger.isInfoEnabled())
+						logger.info("TikaParserRegistry instance is null... create one");
+					instance = new TikaParserRegistry();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Estrazione del testo (e dei metadati) dal file passato
+	 * @param file File da elaborare
+	 * @param tikaMetadata Metadati da valorizzare
+	 * @param maxChars Numero massimo di caratteri da estrarre (valore minore o uguale a 0 per nessun limite)
+	 * @return Testo estratto
+	 * @throws Exception
+	 */
+	public String parse(File file, org.apache.tika.metadata.Metadata tikaMetadata, long maxChars) throws Exception {
+		if (file == null)
+			throw new Exception("File to parse is NULL");
+		return TextExtractor.parse(file, tikaMetadata, maxChars);
+	}
+
+	/**
+	 * Estrazione dei soli metadati dal file passato (senza OCR)
+	 * @param file File da elaborare
+	 * @return Metadati estratti
+	 * @throws Exception
+	 */
+	public org.apache.tika.metadata.Metadata parseMetadata(File file) throws Exception {
+		if (file == null)
+			throw new Exception("File to parse is NULL");
+		return TextExtractor.parseMetadata(file);
+	}
+
+	/**
+	 * Apertura dello stream Tika sulla sorgente passata: i file locali vengono letti tramite Path (accesso diretto per i parser che lo
+	 * richiedono), le altre sorgenti in streaming (Tika salva su file temporaneo solo il contenuto dei formati che richiedono accesso casuale)
+	 * @param source Sorgente del contenuto
+	 * @return
+	 * @throws Exception
+	 */
+	public static TikaInputStream open(InputSource source) throws Exception {
+		if (source == null)
+			throw new Exception("Input source is NULL");
+		File file = source.getFile();
+		if (file != null)
+			return TikaInputStream.get(file.toPath());
+		return TikaInputStream.get(source.openStream());
+	}
+
+}
@@ -0,0 +1,280 @@
+package it.tredi.fcs.command.ocr;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+
+/**
+ * Cache persistente (su filesystem) dei risultati OCR delle singole pagine. La chiave e' calcolata come hash dell'immagine della pagina, della
+ * configurazione di Tesseract (lingua e parametri) e del limite di caratteri da estrarre, in modo che pagine ripetute (copertine, moduli standard,
+ * ricevute di protocollo) non vengano rielaborate da Tesseract. L'impronta della configurazione di Tesseract viene ricalcolata alla modifica
+ * del relativo file, in modo che le pagine elaborate con la configurazione precedente non vengano piu' restituite.
+ */
+public class OcrCache {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private static final String TESSERACT_CONFIG_RESOURCE = "org/apache/tika/parser/ocr/TesseractOCRConfig.properties";
+	private static final String CACHE_FILE_EXTENSION = ".txt";
+
+	// Percentuale di elementi da rimuovere quando viene superato il numero massimo di elementi in cache
+	private static final int EVICTION_PERCENT = 10;
+
+	private final File folder;
+	private final int maxEntries;
+	private volatile ConfigFingerprint configFingerprint;
+
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// Singleton
+	private static volatile OcrCache instance = null;
+
+	/**
+	 * Costruttore privato
+	 */
+	private OcrCache(File folder, int maxEntries) throws Exception {
+		this.folder = folder;
+		this.maxEntries = maxEntries;
+		this.configFingerprint = loadConfigFingerprint(getConfigLastModified());
+
+		if (folder != null) {
+			if (!folder.exists() && !folder.mkdirs())
+				throw new Exception("Unable to create OCR cache folder... " + folder.getAbsolutePath());
+			this.entries.set(FileUtils.listFiles(folder, new String[] { CACHE_FILE_EXTENSION.substring(1) }, true).size());
+
+			if (logger.isInfoEnabled())
+				logger.info("OcrCache: OCR cache enabled on " + folder.getAbsolutePath() + " [entries = " + entries.get() + ", max entries = " + maxEntries + "]");
+		}
+	}
+
+	/**
+	 * Ritorna l'istanza condivisa della cache OCR
+	 * @return
+	 */
+	public static OcrCache getInstance() throws Exception {
+		if (instance == null) {
+			synchronized (OcrCache.class) {
+				if (instance == null)
+					instance = new OcrCache(FcsConfig.getInstance().getFcsOcrCacheFolder(), FcsConfig.getInstance().getFcsOcrCacheMaxEntries());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Ritorna true se la cache risulta abilitata
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return folder != null;
+	}
+
+	/**
+	 * Calcolo della chiave di cache per l'immagine di pagina passata
+	 * @param page Immagine della pagina
+	 * @param maxChars Numero massimo di caratteri da estrarre
+	 * @return
+	 * @throws Exception
+	 */
+	public String key(File page, int maxChars) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(getConfigFingerprint());
+		digest.update(String.valueOf(maxChars).getBytes(StandardCharsets.UTF_8));
+		try (InputStream in = Files.newInputStream(page.toPath())) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Ritorna il testo in cache per la chiave passata, NULL se non presente
+	 * @param key
+	 * @return
+	 */
+	public String get(String key) {
+		File file = getCacheFile(key);
+		if (file.isFile()) {
+			try {
+				String text = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+				file.setLastModified(System.currentTimeMillis()); // elemento usato di recente
+				hits.incrementAndGet();
+				return text;
+			}
+			catch (Exception e) {
+				logger.warn("OcrCache.get(): unable to read cache entry " + file.getName() + "... " + e.getMessage());
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Salvataggio in cache del testo estratto per la chiave passata
+	 * @param key
+	 * @param text
+	 */
+	public void put(String key, String text) {
+		if (text == null)
+			return;
+
+		File file = getCacheFile(key);
+		try {
+			File dir = file.getParentFile();
+			if (!dir.exists())
+				dir.mkdirs();
+
+			// scrittura su file temporaneo e successivo rename per evitare letture parziali da parte di altri thread
+			File tmp = File.createTempFile(key, ".tmp", dir);
+			FileUtils.writeStringToFile(tmp, text, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			if (maxEntries > 0 && entries.incrementAndGet() > maxEntries)
+				evict();
+		}
+		catch (Exception e) {
+			logger.warn("OcrCache.put(): unable to write cache entry " + file.getName() + "... " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Rimozione degli elementi meno recentemente utilizzati
+	 */
+	private synchronized void evict() {
+		if (entries.get() <= maxEntries)
+			return;
+
+		File[] files = FileUtils.listFiles(folder, new String[] { CACHE_FILE_EXTENSION.substring(1) }, true).toArray(new File[0]);
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		int toRemove = Math.max(1, files.length * EVICTION_PERCENT / 100);
+		int removed = 0;
+		for (int i = 0; i < files.length && removed < toRemove; i++) {
+			if (files[i].delete())
+				removed++;
+		}
+		entries.set(files.length - removed);
+
+		if (logger.isInfoEnabled())
+			logger.info("OcrCache.evict(): removed " + removed + " entries from OCR cache [entries = " + entries.get() + "]");
+	}
+
+	private File getCacheFile(String key) {
+		return new File(new File(folder, key.substring(0, 2)), key + CACHE_FILE_EXTENSION);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEntries() {
+		return entries.get();
+	}
+
+	/**
+	 * Ritorna la percentuale di richieste servite dalla cache
+	 * @return
+	 */
+	public double getHitRate() {
+		long total = hits.get() + misses.get();
+		return (total > 0) ? (double) hits.get() * 100 / (double) total : 0;
+	}
+
+	/**
+	 * Ritorna l'impronta della configurazione di Tesseract, ricalcolata se il file di configurazione risulta modificato dall'ultimo calcolo
+	 */
+	private byte[] getConfigFingerprint() throws Exception {
+		ConfigFingerprint current = configFingerprint;
+		long lastModified = getConfigLastModified();
+		if (lastModified != current.lastModified) {
+			synchronized (this) {
+				current = configFingerprint;
+				if (lastModified != current.lastModified) {
+					current = loadConfigFingerprint(lastModified);
+					configFingerprint = current;
+
+					if (logger.isInfoEnabled())
+						logger.info("OcrCache.getConfigFingerprint(): Tesseract configuration changed, fingerprint updated");
+				}
+			}
+		}
+		return current.value;
+	}
+
+	/**
+	 * Data di ultima modifica della configurazione di Tesseract (0 se non disponibile)
+	 */
+	private static long getConfigLastModified() {
+		URL url = OcrCache.class.getClassLoader().getResource(TESSERACT_CONFIG_RESOURCE);
+		if (url == null)
+			return 0;
+		try {
+			if ("file".equals(url.getProtocol()))
+				return new File(url.toURI()).lastModified();
+			URLConnection connection = url.openConnection();
+			connection.setUseCaches(false);
+			return connection.getLastModified();
+		}
+		catch (Exception e) {
+			logger.warn("OcrCache.getConfigLastModified(): unable to read Tesseract configuration timestamp... " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Calcolo dell'impronta della configurazione di Tesseract (lingua e parametri di elaborazione)
+	 */
+	private static ConfigFingerprint loadConfigFingerprint(long lastModified) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		try (InputStream in = OcrCache.class.getClassLoader().getResourceAsStream(TESSERACT_CONFIG_RESOURCE)) {
+			if (in != null)
+				digest.update(IOUtils.toByteArray(in));
+		}
+		return new ConfigFingerprint(lastModified, digest.digest());
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	/**
+	 * Impronta della configurazione di Tesseract con la data di modifica del file sul quale e' stata calcolata
+	 */
+	private static class ConfigFingerprint {
+
+		private final long lastModified;
+		private final byte[] value;
+
+		public ConfigFingerprint(long lastModified, byte[] value) {
+			this.lastModified = lastModified;
+			this.value = value;
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+package it.tredi.fcs.command.ocr;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.command.extraction.TikaParserRegistry;
+import it.tredi.fcs.workdir.WorkDirManager;
+
+/**
+ * Esecuzione dell'OCR di documenti scansionati (PDF e TIFF multipagina) su un pool di thread dedicato. Le pagine del documento vengono
+ * elaborate in parallelo, con un timeout per singola pagina, e il testo viene ricomposto rispettando l'ordine delle pagine.
+ */
+public class OcrExecutor {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	// Intervallo di polling per la verifica del timeout sulle singole pagine
+	private static final long PAGE_POLLING_MILLIS = 200;
+
+	private final ExecutorService executor;
+	private final int threads;
+
+	// Singleton
+	private static volatile OcrExecutor instance = null;
+
+	/**
+	 * Costruttore privato
+	 */
+	private OcrExecutor(int threads) {
+		this.threads = threads;
+		if (threads > 0) {
+			final AtomicInteger counter = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fcs-ocr-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		else {
+			this.executor = null;
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("OcrExecutor: OCR pool started with " + threads + " threads");
+	}
+
+	/**
+	 * Ritorna l'istanza condivisa dell'executor OCR
+	 * @return
+	 */
+	public static OcrExecutor getInstance() throws Exception {
+		if (instance == null) {
+			synchronized (OcrExecutor.class) {
+				if (instance == null)
+					instance = new OcrExecutor(FcsConfig.getInstance().getFcsOcrThreads());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Ritorna true se per l'estensione passata deve essere tentato l'OCR parallelo per pagina
+	 * @param ext
+	 * @param config Snapshot della configurazione della richiesta
+	 * @return
+	 */
+	public boolean isEnabledFor(String ext, FcsConfig config) {
+		if (executor == null || ext == null)
+			return false;
+		String[] exts = config.getFcsOcrExtensions();
+		return exts != null && Arrays.asList(exts).contains(ext.toLowerCase());
+	}
+
+	/**
+	 * Estrazione del testo tramite OCR parallelo delle pagine del file passato
+	 * @param file File da elaborare
+	 * @param ext Estensione del file
+	 * @param workDir Directory di lavoro sulla quale salvare le immagini delle pagine
+	 * @param maxChars Numero massimo di caratteri da estrarre (valore minore o uguale a 0 per nessun limite)
+	 * @param config Snapshot della configurazione della richiesta
+	 * @return Testo estratto, NULL se il file non richiede OCR per pagina (es. PDF con testo su tutte le pagine)
+	 * @throws Exception
+	 */
+	public String ocr(File file, String ext, File workDir, final int maxChars, FcsConfig config) throws Exception {
+		long start = System.currentTimeMillis();
+
+		// le immagini delle pagine vengono salvate in RAM solo se la dimensione del file rientra nella quota dell'area di lavoro
+		File pagesDir = WorkDirManager.getInstance().createTempDir(workDir, "ocr_", file.length());
+		final List<Future<String>> futures = new ArrayList<Future<String>>();
+		final List<OcrPageTask> tasks = new ArrayList<OcrPageTask>();
+		try {
+			int pages = OcrPageSplitter.split(file, ext, pagesDir, config, new OcrPageSplitter.PageListener() {
+				@Override
+				public void onPage(int pageIndex, File page) throws Exception {
+					OcrPageTask task = new OcrPageTask(page, maxChars);
+					tasks.add(task);
+					futures.add(executor.submit(task));
+				}
+
+				@Override
+				public void onTextPage(int pageIndex, String text) {
+					// testo della pagina gia' disponibile, la pagina non viene sottoposta ad OCR
+					tasks.add(null);
+					futures.add(CompletableFuture.completedFuture(text));
+				}
+			});
+			if (pages < 0)
+				return null;
+
+			// Ricomposizione del testo rispettando l'ordine delle pagine
+			long pageTimeout = config.getFcsOcrPageTimeout();
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < futures.size(); i++) {
+				String pageText = waitPage(futures.get(i), tasks.get(i), pageTimeout, i);
+				if (pageText != null && !pageText.isEmpty()) {
+					if (text.length() > 0)
+						text.append("\n");
+					text.append(pageText);
+				}
+				if (maxChars > 0 && text.length() >= maxChars) {
+					text.setLength(maxChars);
+					break;
+				}
+			}
+
+			if (logger.isInfoEnabled())
+				logger.info("OcrExecutor.ocr(): OCR of " + pages + " pages of " + file.getName() + " tooks " + (System.currentTimeMillis()-start) + " millis. [threads = " + threads + "]");
+			OcrCache cache = OcrCache.getInstance();
+			if (cache.isEnabled() && logger.isInfoEnabled())
+				logger.info("OcrExecutor.ocr(): OCR cache hits = " + cache.getHits() + ", misses = " + cache.getMisses() + ", hit rate = " + String.format("%.1f", cache.getHitRate()) + "%, entries = " + cache.getEntries());
+
+			return text.toString();
+		}
+		finally {
+			for (Future<String> future : futures)
+				future.cancel(true);
+			FileUtils.deleteQuietly(pagesDir);
+		}
+	}
+
+	/**
+	 * Attesa del completamento dell'OCR di una pagina. Il timeout viene calcolato dall'effettivo avvio dell'elaborazione della pagina (non
+	 * dal momento dell'accodamento)
+	 * @return Testo estratto dalla pagina, NULL in caso di timeout
+	 */
+	private String waitPage(Future<String> future, OcrPageTask task, long pageTimeout, int pageIndex) throws Exception {
+		while (true) {
+			try {
+				return future.get(PAGE_POLLING_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (ExecutionException e) {
+				logger.warn("OcrExecutor.waitPage(): OCR failed on page " + (pageIndex+1) + ", page skipped... " + e.getCause(), e.getCause());
+				return null;
+			}
+			catch (TimeoutException e) {
+				long startedAt = (task != null) ? task.getStartedAt() : 0;
+				if (pageTimeout > 0 && startedAt > 0 && System.currentTimeMillis()-startedAt > pageTimeout) {
+					future.cancel(true);
+					logger.warn("OcrExecutor.waitPage(): OCR timeout on page " + (pageIndex+1) + " after " + pageTimeout + " millis., page skipped");
+					return null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Arresto del pool di thread dedicato all'OCR
+	 */
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * Arresto del pool di thread dedicato all'OCR, se avviato
+	 */
+	public static void shutdownIfStarted() {
+		if (instance != null)
+			instance.shutdown();
+	}
+
+	/**
+	 * Elaborazione OCR di una singola pagina
+	 */
+	private static class OcrPageTask implements Callable<String> {
+
+		private final File page;
+		private final int maxChars;
+		private volatile long startedAt = 0;
+
+		public OcrPageTask(File page, int maxChars) {
+			this.page = page;
+			this.maxChars = maxChars;
+		}
+
+		@Override
+		public String call() throws Exception {
+			this.startedAt = System.currentTimeMillis();
+
+			// Verifico se la stessa pagina (con la stessa configurazione di Tesseract) e' gia' stata elaborata
+			OcrCache cache = OcrCache.getInstance();
+			String key = null;
+			if (cache.isEnabled()) {
+				key = cache.key(page, maxChars);
+				String text = cache.get(key);
+				if (text != null)
+					return text;
+			}
+
+			String text = TikaParserRegistry.getInstance().parse(page, new org.apache.tika.metadata.Metadata(), maxChars);
+			if (key != null)
+				cache.put(key, text);
+			return text;
+		}
+
+		public long getStartedAt() {
+			return startedAt;
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+package it.tredi.fcs.command.ocr;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+
+/**
+ * Suddivisione di un documento scansionato (PDF o TIFF multipagina) in singole immagini, una per pagina, da sottoporre ad OCR
+ */
+public class OcrPageSplitter {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private static final String SOURCE_FILE_REPLACE_IN_COMMAND = "%SOURCE_FILE%";
+	private static final String DEST_FILE_REPLACE_IN_COMMAND = "%DEST_FILE%";
+
+	private static final String PAGE_FILE_PREFIX = "page-";
+	private static final String PAGE_FILE_PATTERN = PAGE_FILE_PREFIX + "%05d.png";
+
+	// Profondita' massima di annidamento dei form XObject esaminati nella verifica della presenza di testo
+	private static final int PDF_TEXT_CHECK_MAX_DEPTH = 3;
+
+	/**
+	 * Listener invocato per ogni pagina prodotta (permette di avviare l'OCR di una pagina mentre le successive sono ancora in elaborazione)
+	 */
+	public interface PageListener {
+		void onPage(int pageIndex, File page) throws Exception;
+
+		/**
+		 * Pagina contenente testo (PDF con pagine native e scansionate): il testo viene estratto direttamente, senza OCR
+		 */
+		void onTextPage(int pageIndex, String text) throws Exception;
+	}
+
+	/**
+	 * Suddivisione del file passato in immagini (una per pagina) all'interno della directory indicata
+	 * @param file File da suddividere
+	 * @param ext Estensione del file
+	 * @param pagesDir Directory nella quale salvare le immagini delle pagine
+	 * @param config Snapshot della configurazione della richiesta
+	 * @param listener Listener da invocare per ogni pagina prodotta
+	 * @return Numero di pagine prodotte, -1 se il file non risulta da sottoporre ad OCR per pagina (es. PDF con testo su tutte le pagine)
+	 * @throws Exception
+	 */
+	public static int split(File file, String ext, File pagesDir, FcsConfig config, PageListener listener) throws Exception {
+		if (!pagesDir.exists() && !pagesDir.mkdirs())
+			throw new Exception("Impossible to create OCR pages dir: " + pagesDir.getAbsolutePath());
+
+		if (ext.equalsIgnoreCase("pdf"))
+			return splitPdf(file, pagesDir, config.getFcsOcrPdfDpi(), listener);
+		else
+			return splitImage(file, pagesDir, config, listener);
+	}
+
+	/**
+	 * Rendering delle pagine scansionate di un PDF. La presenza di testo viene verificata su ogni pagina: se tutte le pagine contengono testo
+	 * non viene eseguito il rendering (l'estrazione del testo non richiede OCR), altrimenti vengono sottoposte ad OCR le sole pagine prive di
+	 * testo e il testo delle altre pagine viene estratto direttamente. Il documento viene caricato senza bufferizzarlo in memoria (gli oggetti
+	 * sono letti dal file solo quando richiesti)
+	 */
+	private static int splitPdf(File file, File pagesDir, int dpi, PageListener listener) throws Exception {
+		try (PDDocument document = PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly())) {
+			int pages = document.getNumberOfPages();
+
+			boolean[] textPages = new boolean[pages];
+			int textPagesCount = 0;
+			for (int i = 0; i < pages; i++) {
+				textPages[i] = containsText(document, i);
+				if (textPages[i])
+					textPagesCount++;
+			}
+			if (pages > 0 && textPagesCount == pages) {
+				if (logger.isDebugEnabled())
+					logger.debug("OcrPageSplitter.splitPdf(): " + file.getName() + " contains text on every page, page OCR not required");
+				return -1;
+			}
+			if (textPagesCount > 0 && logger.isDebugEnabled())
+				logger.debug("OcrPageSplitter.splitPdf(): " + file.getName() + " contains text on " + textPagesCount + " of " + pages + " pages, OCR of " + (pages - textPagesCount) + " pages required");
+
+			PDFRenderer renderer = new PDFRenderer(document);
+			PDFTextStripper stripper = null;
+			for (int i = 0; i < pages; i++) {
+				if (textPages[i]) {
+					if (stripper == null)
+						stripper = new PDFTextStripper();
+					stripper.setStartPage(i+1);
+					stripper.setEndPage(i+1);
+					listener.onTextPage(i, stripper.getText(document));
+				}
+				else {
+					BufferedImage image = renderer.renderImageWithDPI(i, dpi, ImageType.GRAY);
+					File page = new File(pagesDir, String.format(PAGE_FILE_PATTERN, i));
+					ImageIO.write(image, "png", page);
+					listener.onPage(i, page);
+				}
+			}
+			return pages;
+		}
+	}
+
+	/**
+	 * Verifica della presenza di testo nella pagina indicata del PDF. Una pagina contiene testo se fra le sue risorse (o fra quelle dei form
+	 * XObject referenziati) sono presenti font: la verifica non richiede l'interpretazione dei content stream della pagina
+	 * @param document Documento PDF
+	 * @param pageIndex Indice della pagina (a partire da 0)
+	 * @return true se la pagina contiene testo
+	 */
+	private static boolean containsText(PDDocument document, int pageIndex) throws Exception {
+		return hasFonts(document.getPage(pageIndex).getResources(), 0);
+	}
+
+	private static boolean hasFonts(PDResources resources, int depth) throws Exception {
+		if (resources == null)
+			return false;
+		if (resources.getFontNames().iterator().hasNext())
+			return true;
+		if (depth < PDF_TEXT_CHECK_MAX_DEPTH) {
+			for (COSName name : resources.getXObjectNames()) {
+				PDXObject xobject = resources.getXObject(name);
+				if (xobject instanceof PDFormXObject && hasFonts(((PDFormXObject) xobject).getResources(), depth+1))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Suddivisione di una immagine multipagina (TIFF) tramite ImageMagick
+	 */
+	private static int splitImage(File file, File pagesDir, FcsConfig config, PageListener listener) throws Exception {
+		String commandLine = config.getFcsOcrImageMagickSplitCommand();
+		if (commandLine == null || commandLine.isEmpty()) {
+			if (logger.isDebugEnabled())
+				logger.debug("OcrPageSplitter.splitImage(): ImageMagick split command not configured");
+			return -1;
+		}
+
+		commandLine = commandLine.replace(SOURCE_FILE_REPLACE_IN_COMMAND, file.getAbsolutePath());
+		commandLine = commandLine.replace(DEST_FILE_REPLACE_IN_COMMAND, new File(pagesDir, PAGE_FILE_PATTERN).getAbsolutePath());
+		if (logger.isDebugEnabled())
+			logger.debug("OcrPageSplitter.splitImage(): split " + file.getName() + " by command " + commandLine);
+
+		Process proc = Runtime.getRuntime().exec(commandLine);
+		long convTimeout = config.getFcsConversionTimout();
+		int exitValue = -1;
+		if (convTimeout > 0) {
+			if (!proc.waitFor(convTimeout, TimeUnit.MILLISECONDS))
+				proc.destroy();
+			exitValue = proc.waitFor();
+		}
+		else {
+			exitValue = proc.waitFor();
+		}
+		if (exitValue != 0)
+			throw new Exception("ImageMagick split command failed [exitValue = " + exitValue + "]");
+
+		File[] pages = pagesDir.listFiles((dir, name) -> name.startsWith(PAGE_FILE_PREFIX));
+		if (pages == null)
+			return 0;
+		Arrays.sort(pages); // il nome delle pagine rispetta l'ordine del documento
+		for (int i = 0; i < pages.length; i++)
+			listener.onPage(i, pages[i]);
+		return pages.length;
+	}
+
+}
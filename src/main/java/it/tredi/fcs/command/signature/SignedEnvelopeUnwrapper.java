@@ -0,0 +1,199 @@
+package it.tredi.fcs.command.signature;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Base64;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.cms.CMSSignedDataParser;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.command.detection.FileTypeDetector;
+import it.tredi.fcs.entity.FileType;
+import it.tredi.fcs.entity.InputSource;
+import it.tredi.fcs.workdir.WorkDirManager;
+
+/**
+ * Estrazione in streaming del contenuto firmato di buste CAdES (P7M). Il contenuto viene copiato direttamente su file nella directory di lavoro,
+ * senza caricare l'intera busta in memoria. Vengono gestite anche buste annidate (file firmati piu' volte) e buste codificate in base64.
+ */
+public class SignedEnvelopeUnwrapper {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private static final String P7M_EXTENSION = ".p7m";
+
+	// Numero massimo di buste annidate gestite
+	private static final int MAX_NESTING_LEVEL = 5;
+
+	// Primo byte di una struttura DER (SEQUENCE)
+	private static final int DER_SEQUENCE_TAG = 0x30;
+
+	private static final String PEM_HEADER_PREFIX = "-----BEGIN";
+
+	/**
+	 * Risultato dell'estrazione del contenuto di una busta firmata
+	 */
+	public static class UnwrappedFile {
+
+		private final File file;
+		private final String fileName;
+
+		public UnwrappedFile(File file, String fileName) {
+			this.file = file;
+			this.fileName = fileName;
+		}
+
+		/**
+		 * Ritorna il file estratto dalla busta (salvato nella directory di lavoro)
+		 * @return
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Ritorna il nome del file estratto dalla busta (nome della busta senza estensione .p7m)
+		 * @return
+		 */
+		public String getFileName() {
+			return fileName;
+		}
+	}
+
+	/**
+	 * Estrazione del contenuto firmato della busta passata. In caso di buste annidate viene restituito il contenuto della busta piu' interna.
+	 * @param envelope File contenente la busta firmata
+	 * @param fileName Nome del file della busta
+	 * @param workDir Directory di lavoro sulla quale salvare il contenuto estratto
+	 * @return Contenuto estratto dalla busta
+	 * @throws Exception
+	 */
+	public static UnwrappedFile unwrap(File envelope, String fileName, File workDir) throws Exception {
+		return unwrap(InputSource.fromFile(envelope), fileName, workDir);
+	}
+
+	/**
+	 * Estrazione del contenuto firmato della busta passata, letta direttamente dalla sorgente (senza richiedere un file locale). In caso di
+	 * buste annidate viene restituito il contenuto della busta piu' interna.
+	 * @param envelope Sorgente contenente la busta firmata
+	 * @param fileName Nome del file della busta
+	 * @param workDir Directory di lavoro sulla quale salvare il contenuto estratto
+	 * @return Contenuto estratto dalla busta
+	 * @throws Exception
+	 */
+	public static UnwrappedFile unwrap(InputSource envelope, String fileName, File workDir) throws Exception {
+		long start = System.currentTimeMillis();
+
+		// il contenuto estratto viene salvato in RAM solo se la dimensione della busta rientra nella quota dell'area di lavoro
+		File outDir = WorkDirManager.getInstance().createTempDir(workDir, "p7m_", Math.max(envelope.getSize(), 0));
+
+		InputSource current = envelope;
+		File currentFile = null;
+		String currentName = fileName;
+		FileType innerType = null;
+		int level = 0;
+		while (level < MAX_NESTING_LEVEL) {
+			String innerName = getInnerFileName(currentName, level);
+			File inner = new File(outDir, String.valueOf(level));
+			try {
+				extractSignedContent(current, inner);
+			}
+			catch (Exception e) {
+				if (level == 0)
+					throw e;
+				// il contenuto estratto non e' una busta valida, viene elaborato cosi' com'e'
+				logger.warn("SignedEnvelopeUnwrapper.unwrap(): " + currentName + " is not a valid signed envelope... " + e.getMessage());
+				FileUtils.deleteQuietly(inner);
+				break;
+			}
+			level++;
+
+			if (currentFile != null)
+				FileUtils.deleteQuietly(currentFile); // rimozione delle buste intermedie
+			currentFile = inner;
+			current = InputSource.fromFile(inner);
+			currentName = innerName;
+
+			// verifico se il contenuto estratto e' a sua volta una busta firmata
+			innerType = FileTypeDetector.getInstance().detect(currentFile, currentName);
+			if (!innerType.isSigned() && !currentName.toLowerCase().endsWith(P7M_EXTENSION))
+				break;
+		}
+
+		// il file estratto viene salvato con il nome reale in modo che gli strumenti di elaborazione riconoscano l'estensione
+		if (currentName.lastIndexOf('.') == -1 && innerType != null && innerType.getExtension() != null && !innerType.getExtension().isEmpty())
+			currentName = currentName + "." + innerType.getExtension();
+		File out = new File(outDir, new File(currentName).getName());
+		Files.move(currentFile.toPath(), out.toPath());
+
+		if (logger.isInfoEnabled())
+			logger.info("SignedEnvelopeUnwrapper.unwrap(): " + fileName + " unwrapped to " + out.getName() + " [levels = " + level + "] in " + (System.currentTimeMillis()-start) + " millis.");
+
+		return new UnwrappedFile(out, currentName);
+	}
+
+	/**
+	 * Copia in streaming del contenuto firmato della busta sul file di destinazione
+	 */
+	private static void extractSignedContent(InputSource envelope, File dest) throws Exception {
+		try (InputStream in = openEnvelope(envelope)) {
+			CMSSignedDataParser parser = new CMSSignedDataParser(new JcaDigestCalculatorProviderBuilder().build(), in);
+			try {
+				CMSTypedStream signedContent = parser.getSignedContent();
+				if (signedContent == null)
+					throw new Exception("Detached signature, no signed content found in " + envelope);
+
+				try (InputStream content = signedContent.getContentStream(); OutputStream out = Files.newOutputStream(dest.toPath())) {
+					IOUtils.copyLarge(content, out);
+				}
+			}
+			finally {
+				parser.close();
+			}
+		}
+	}
+
+	/**
+	 * Apertura della busta: gestione di buste in formato DER o codificate in base64 (con eventuale header PEM)
+	 */
+	private static InputStream openEnvelope(InputSource envelope) throws Exception {
+		BufferedInputStream in = new BufferedInputStream(envelope.openStream());
+		in.mark(PEM_HEADER_PREFIX.length());
+		int first = in.read();
+		in.reset();
+		if (first == DER_SEQUENCE_TAG)
+			return in;
+
+		// busta codificata in base64, eventuale header PEM da saltare
+		in.mark(PEM_HEADER_PREFIX.length());
+		byte[] header = new byte[PEM_HEADER_PREFIX.length()];
+		int read = IOUtils.read(in, header);
+		if (read == header.length && new String(header, "US-ASCII").equals(PEM_HEADER_PREFIX)) {
+			int c;
+			while ((c = in.read()) != -1 && c != '\n');
+		}
+		else {
+			in.reset();
+		}
+		return Base64.getMimeDecoder().wrap(in);
+	}
+
+	/**
+	 * Ritorna il nome del file contenuto nella busta (rimozione dell'estensione .p7m)
+	 */
+	private static String getInnerFileName(String fileName, int level) {
+		if (fileName != null && fileName.toLowerCase().endsWith(P7M_EXTENSION) && fileName.length() > P7M_EXTENSION.length())
+			return fileName.substring(0, fileName.length() - P7M_EXTENSION.length());
+		return "content_" + level;
+	}
+
+}
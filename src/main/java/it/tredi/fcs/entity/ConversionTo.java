@@ -53,5 +53,15 @@ public class ConversionTo {
 		else
 			this.state = FileActionState.FAIL;
 	}
+
+	/**
+	 * Rilascio del file di output prodotto dalla conversione (eliminazione dalla directory di lavoro), lo stato della conversione non
+	 * viene modificato
+	 */
+	public void releaseOutfile() {
+		if (outfile != null && outfile.exists())
+			outfile.delete();
+		this.outfile = null;
+	}
 	
 }
@@ -16,9 +16,10 @@ public class FileToWork {
 	 */
 	private String fileName;
 	/**
-	 * Riferimento al file (caricato su filesystem di FCS). Potrebbe essere NULL nel caso in cui l'elaborazione sul file debba essere ignorata
+	 * Sorgente del contenuto del file (file caricato su filesystem di FCS, stream, buffer o file mappato in memoria). Potrebbe essere NULL
+	 * nel caso in cui l'elaborazione sul file debba essere ignorata
 	 */
-	private File inputFile;
+	private InputSource inputSource;
 
 	/**
 	 * Indica lo stato dell'azione di indicizzazione sul file (da realizzare, da ignorare, completata, fallita)
@@ -47,6 +48,21 @@ public class FileToWork {
 	 */
 	private Metadata outMetadata;
 
+	/**
+	 * Tipologia del file riconosciuta in base al contenuto (NULL se il riconoscimento non e' ancora stato eseguito)
+	 */
+	private FileType fileType;
+
+	/**
+	 * Riferimento alla busta firmata originale (P7M) nel caso in cui il file di input sia stato sostituito con il contenuto estratto dalla busta
+	 */
+	private File signedEnvelope;
+
+	/**
+	 * Nome del file estratto dalla busta firmata (NULL se il file non e' una busta firmata)
+	 */
+	private String innerFileName;
+
 	/**
 	 * Costruttore
 	 * @param fileName Nome del file da elaborare
@@ -67,8 +83,33 @@ public class FileToWork {
 	 * @param meta true in caso di richiesta di estrazione di metadati dal file
 	 */
 	public FileToWork(String fileName, File file, boolean index, Map<String, ConversionTo> conversions, boolean meta) {
+		this(fileName, (file != null) ? InputSource.fromFile(file) : null, index, conversions, meta);
+	}
+
+	/**
+	 * Costruttore
+	 * @param fileName Nome del file da elaborare
+	 * @param size Dimensione dichiarata del file (-1 se non nota), utilizzata per le verifiche sui limiti prima del recupero del contenuto
+	 * @param supplier Fornitore del contenuto del file (es. download dal repository), invocato solo se sul file e' richiesta almeno un'elaborazione
+	 * @param index true in caso sia richiesta l'estrazione del testo dal file (indicizzazione)
+	 * @param conversionTo Elenco di estensioni che corrispondo alle conversioni del file (NULL o lista vuota se nessuna conversione deve essere realizzata)
+	 * @param meta true in caso di richiesta di estrazione di metadati dal file
+	 */
+	public FileToWork(String fileName, long size, InputSource.StreamSupplier supplier, boolean index, Map<String, ConversionTo> conversions, boolean meta) {
+		this(fileName, InputSource.fromStream(supplier, size), index, conversions, meta);
+	}
+
+	/**
+	 * Costruttore
+	 * @param fileName Nome del file da elaborare
+	 * @param inputSource Sorgente del contenuto del file (il file locale viene prodotto solo se richiesto dagli strumenti di elaborazione)
+	 * @param index true in caso sia richiesta l'estrazione del testo dal file (indicizzazione)
+	 * @param conversionTo Elenco di estensioni che corrispondo alle conversioni del file (NULL o lista vuota se nessuna conversione deve essere realizzata)
+	 * @param meta true in caso di richiesta di estrazione di metadati dal file
+	 */
+	public FileToWork(String fileName, InputSource inputSource, boolean index, Map<String, ConversionTo> conversions, boolean meta) {
 		this.fileName = fileName;
-		this.inputFile = file;
+		this.inputSource = inputSource;
 		this.index = (index) ? FileActionState.TODO : FileActionState.IGNORE;
 		this.conversions = conversions;
 		this.meta = (meta) ? FileActionState.TODO : FileActionState.IGNORE;
@@ -98,6 +139,14 @@ public class FileToWork {
 		return todos;
 	}
 	
+	/**
+	 * Ritorna true se sul file e' ancora prevista almeno un'attivita' (indicizzazione, estrazione metadati o conversione)
+	 * @return
+	 */
+	public boolean hasTodoActions() {
+		return index == FileActionState.TODO || meta == FileActionState.TODO || !getTodoConversionsTo().isEmpty();
+	}
+
 	/**
 	 * Restituisce l'elenco completo di conversioni richieste
 	 * @return
@@ -114,11 +163,35 @@ public class FileToWork {
 	 * @param file
 	 */
 	public void setInputFile(File file) {
-		this.inputFile = file;
+		this.inputSource = (file != null) ? InputSource.fromFile(file) : null;
 	}
 
+	/**
+	 * Ritorna il file di input su filesystem, NULL se il contenuto non e' (ancora) disponibile come file locale
+	 * @return
+	 */
 	public File getInputFile() {
-		return inputFile;
+		return (inputSource != null) ? inputSource.getFile() : null;
+	}
+
+	/**
+	 * Assegnazione della sorgente del contenuto del file
+	 * @param inputSource
+	 */
+	public void setInputSource(InputSource inputSource) {
+		this.inputSource = inputSource;
+	}
+
+	public InputSource getInputSource() {
+		return inputSource;
+	}
+
+	/**
+	 * Ritorna la dimensione del contenuto del file (-1 se non nota)
+	 * @return
+	 */
+	public long getInputSize() {
+		return (inputSource != null) ? inputSource.getSize() : -1;
 	}
 
 	/**
@@ -161,6 +234,58 @@ public class FileToWork {
 		}
 	}
 
+	/**
+	 * Rilascio dei risultati dell'elaborazione gia' salvati (testo estratto e file convertiti), gli stati delle attivita' non vengono
+	 * modificati
+	 */
+	public void releaseOutputs() {
+		releaseText();
+		if (conversions != null)
+			for (ConversionTo convTo : conversions.values())
+				if (convTo != null)
+					convTo.releaseOutfile();
+	}
+
+	/**
+	 * Rilascio del testo estratto gia' salvato, lo stato dell'indicizzazione non viene modificato
+	 */
+	public void releaseText() {
+		this.outFileText = null;
+	}
+
+	/**
+	 * Copia dei risultati dell'elaborazione dal file passato, con contenuto identico al file corrente (testo estratto, metadati, tipologia
+	 * riconosciuta, file convertiti e stati delle attivita'). I file convertiti non vengono duplicati: il riferimento e' condiviso.
+	 * @param source File elaborato dal quale copiare i risultati
+	 */
+	public void copyResultsFrom(FileToWork source) {
+		if (source == null || source == this)
+			return;
+
+		this.fileType = source.fileType;
+		if (this.index == FileActionState.TODO) {
+			this.outFileText = source.outFileText;
+			this.index = source.index;
+		}
+		if (this.meta == FileActionState.TODO) {
+			this.outMetadata = source.outMetadata;
+			this.meta = source.meta;
+		}
+		if (conversions != null) {
+			for (ConversionTo convTo : conversions.values()) {
+				if (convTo == null || convTo.getState() != FileActionState.TODO)
+					continue;
+				ConversionTo sourceConvTo = (source.conversions != null) ? source.conversions.get(convTo.getExtension()) : null;
+				if (sourceConvTo != null) {
+					if (sourceConvTo.getOutfile() != null)
+						convTo.setConversionComplete(sourceConvTo.getOutfile());
+					else
+						convTo.setState(sourceConvTo.getState());
+				}
+			}
+		}
+	}
+
 	/**
 	 * Restituisce il file convertito per una specifica estensione
 	 * @param ext
@@ -180,6 +305,48 @@ public class FileToWork {
 		return fileName;
 	}
 
+	/**
+	 * Setta la tipologia del file riconosciuta in base al contenuto
+	 * @param fileType
+	 */
+	public void setFileType(FileType fileType) {
+		this.fileType = fileType;
+	}
+
+	public FileType getFileType() {
+		return fileType;
+	}
+
+	/**
+	 * Sostituisce il file di input con il contenuto estratto dalla busta firmata. Le successive elaborazioni (indicizzazione e conversione)
+	 * vengono eseguite sul file estratto.
+	 * @param innerFile File estratto dalla busta firmata
+	 * @param innerFileName Nome del file estratto (comprensivo dell'estensione reale)
+	 */
+	public void setUnwrappedFile(File innerFile, String innerFileName) {
+		if (this.signedEnvelope == null)
+			this.signedEnvelope = getInputFile();
+		this.inputSource = InputSource.fromFile(innerFile);
+		this.innerFileName = innerFileName;
+		this.fileType = null;
+	}
+
+	public File getSignedEnvelope() {
+		return signedEnvelope;
+	}
+
+	public String getInnerFileName() {
+		return innerFileName;
+	}
+
+	/**
+	 * Ritorna il nome del file effettivamente elaborato: nome del file estratto in caso di busta firmata, nome del file altrimenti
+	 * @return
+	 */
+	public String getWorkFileName() {
+		return (innerFileName != null) ? innerFileName : fileName;
+	}
+
 	/**
 	 * Setta il fallimento per l'attivita' di indicizzazione (estrazione testo dal file) nel caso in cui questa fosse prevista
 	 */
@@ -241,9 +408,10 @@ public class FileToWork {
 	 */
 	public void setAllFailed() {
 		setIndexFailed();
-		for (Map.Entry<String, ConversionTo> entry : conversions.entrySet())
-			if (entry != null)
-				setConversionFailed(entry.getKey());
+		if (conversions != null)
+			for (Map.Entry<String, ConversionTo> entry : conversions.entrySet())
+				if (entry != null)
+					setConversionFailed(entry.getKey());
 		setMetadataFailed();
 	}
 	
@@ -251,9 +419,10 @@ public class FileToWork {
 	 * Setta l'ignore su tutte le attivita' previste per il file (indicizzazione, conversioni, estrazione metadati)
 	 */
 	public void setAllConversionIgnore() {
-		for (Map.Entry<String, ConversionTo> entry : conversions.entrySet())
-			if (entry != null)
-				setConversionIgnore(entry.getKey());
+		if (conversions != null)
+			for (Map.Entry<String, ConversionTo> entry : conversions.entrySet())
+				if (entry != null)
+					setConversionIgnore(entry.getKey());
 	}
 
 }
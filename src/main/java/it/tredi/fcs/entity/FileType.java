@@ -0,0 +1,82 @@
+package it.tredi.fcs.entity;
+
+/**
+ * Tipologia di un file riconosciuta in base al contenuto (magic bytes) e non in base all'estensione dichiarata
+ */
+public class FileType {
+
+	/**
+	 * Mime type riconosciuto
+	 */
+	private String mimeType;
+
+	/**
+	 * Estensione corrispondente al mime type riconosciuto (o estensione dichiarata se compatibile con il contenuto)
+	 */
+	private String extension;
+
+	/**
+	 * true se il file risulta protetto da password (cifrato)
+	 */
+	private boolean encrypted;
+
+	/**
+	 * true se il file risulta essere una busta firmata (es. P7M)
+	 */
+	private boolean signed;
+
+	/**
+	 * true se il contenuto del file non risulta riconosciuto fra i formati elaborabili
+	 */
+	private boolean unsupported;
+
+	/**
+	 * Costruttore
+	 * @param mimeType Mime type riconosciuto
+	 * @param extension Estensione da utilizzare per l'elaborazione del file
+	 * @param encrypted true se il file risulta cifrato
+	 * @param signed true se il file risulta essere una busta firmata
+	 * @param unsupported true se il contenuto del file non risulta elaborabile
+	 */
+	public FileType(String mimeType, String extension, boolean encrypted, boolean signed, boolean unsupported) {
+		this.mimeType = mimeType;
+		this.extension = extension;
+		this.encrypted = encrypted;
+		this.signed = signed;
+		this.unsupported = unsupported;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public boolean isEncrypted() {
+		return encrypted;
+	}
+
+	public boolean isSigned() {
+		return signed;
+	}
+
+	public boolean isUnsupported() {
+		return unsupported;
+	}
+
+	/**
+	 * Ritorna true se il file deve essere scartato senza essere passato agli strumenti di estrazione testo e conversione
+	 * @return
+	 */
+	public boolean isRejected() {
+		return encrypted || unsupported;
+	}
+
+	@Override
+	public String toString() {
+		return mimeType + " [ext = " + extension + (encrypted ? ", encrypted" : "") + (signed ? ", signed" : "") + (unsupported ? ", unsupported" : "") + "]";
+	}
+
+}
@@ -0,0 +1,446 @@
+package it.tredi.fcs.entity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Sorgente del contenuto di un file da elaborare. Oltre al file locale (caricato nella directory di lavoro) sono supportati:
+ * <ul>
+ * <li>fornitore di InputStream (es. lettura diretta da database o object store), invocato ad ogni lettura del contenuto</li>
+ * <li>ByteBuffer (contenuto gia' in memoria)</li>
+ * <li>Path mappato in memoria (file locale letto tramite memory-mapping, senza copia nella directory di lavoro)</li>
+ * </ul>
+ * Riconoscimento della tipologia ed estrazione delle buste firmate leggono il contenuto direttamente dalla sorgente; il file locale viene
+ * prodotto solo per gli strumenti che lo richiedono (estrazione di testo e metadati, OpenOffice, ImageMagick, OCR).
+ */
+public abstract class InputSource {
+
+	/**
+	 * Fornitore dello stream di lettura del contenuto
+	 */
+	public interface StreamSupplier {
+
+		/**
+		 * Apertura di un nuovo stream di lettura del contenuto (lo stream viene chiuso dal chiamante)
+		 * @return
+		 * @throws Exception
+		 */
+		InputStream open() throws Exception;
+	}
+
+	/**
+	 * Sorgente basata su file locale
+	 * @param file
+	 * @return
+	 */
+	public static InputSource fromFile(File file) {
+		return new FileSource(file);
+	}
+
+	/**
+	 * Sorgente basata su fornitore di InputStream
+	 * @param supplier Fornitore dello stream (invocato ad ogni lettura del contenuto)
+	 * @param size Dimensione dichiarata del contenuto (-1 se non nota)
+	 * @return
+	 */
+	public static InputSource fromStream(StreamSupplier supplier, long size) {
+		return new StreamSource(supplier, size);
+	}
+
+	/**
+	 * Sorgente basata su contenuto in memoria
+	 * @param buffer Contenuto (letto dalla posizione corrente al limite, senza modificare il buffer passato)
+	 * @return
+	 */
+	public static InputSource fromByteBuffer(ByteBuffer buffer) {
+		return new ByteBufferSource(buffer);
+	}
+
+	/**
+	 * Sorgente basata su file locale letto tramite memory-mapping
+	 * @param path
+	 * @return
+	 */
+	public static InputSource fromMappedPath(Path path) {
+		return new MappedPathSource(path);
+	}
+
+	/**
+	 * Apertura di un nuovo stream di lettura del contenuto (lo stream deve essere chiuso dal chiamante)
+	 * @return
+	 * @throws Exception
+	 */
+	public abstract InputStream openStream() throws Exception;
+
+	/**
+	 * Dimensione del contenuto in byte (-1 se non nota)
+	 * @return
+	 */
+	public abstract long getSize();
+
+	/**
+	 * Ritorna true se la lettura del contenuto richiede un recupero remoto (es. download) ad ogni apertura dello stream. In questo caso
+	 * conviene salvare il contenuto in locale una sola volta solo se il contenuto deve essere letto per intero piu' volte o se e' comunque
+	 * richiesto un file locale (es. conversione), altrimenti il contenuto viene letto direttamente dallo stream.
+	 * @return
+	 */
+	public boolean requiresFetch() {
+		return false;
+	}
+
+	/**
+	 * Ritorna il file locale corrispondente al contenuto, NULL se il contenuto non e' disponibile su filesystem
+	 * @return
+	 */
+	public File getFile() {
+		return null;
+	}
+
+	/**
+	 * Rilascio delle eventuali risorse mantenute dalla sorgente fra una lettura e la successiva (es. connessione remota ancora aperta)
+	 */
+	public void release() {
+	}
+
+	/**
+	 * Scrittura del contenuto sul file indicato
+	 * @param dest File di destinazione
+	 * @throws Exception
+	 */
+	public void writeTo(File dest) throws Exception {
+		try (InputStream in = openStream()) {
+			Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Scrittura del contenuto sul file indicato con conteggio dei byte letti: la scrittura viene interrotta al superamento della dimensione
+	 * massima indicata (es. sorgenti con dimensione non nota). Se indicato viene aggiornato il digest passato con i byte letti, in modo da
+	 * calcolare l'hash del contenuto senza una ulteriore lettura.
+	 * @param dest File di destinazione
+	 * @param maxSize Dimensione massima del contenuto in byte (valore minore o uguale a 0 per nessun limite)
+	 * @param digest Digest da aggiornare con il contenuto letto (NULL se non richiesto)
+	 * @return Numero di byte scritti, -1 se il contenuto supera la dimensione massima (il file di destinazione viene eliminato)
+	 * @throws Exception
+	 */
+	public long writeTo(File dest, long maxSize, MessageDigest digest) throws Exception {
+		long written = 0;
+		boolean exceeded = false;
+		try (InputStream in = openStream(); OutputStream out = new BufferedOutputStream(Files.newOutputStream(dest.toPath()))) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				written += read;
+				if (maxSize > 0 && written > maxSize) {
+					exceeded = true;
+					break;
+				}
+				out.write(buffer, 0, read);
+				if (digest != null)
+					digest.update(buffer, 0, read);
+			}
+		}
+		if (exceeded) {
+			Files.deleteIfExists(dest.toPath());
+			return -1;
+		}
+		return written;
+	}
+
+	/**
+	 * Sorgente basata su file locale
+	 */
+	private static class FileSource extends InputSource {
+
+		private final File file;
+
+		public FileSource(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public InputStream openStream() throws Exception {
+			return new BufferedInputStream(Files.newInputStream(file.toPath()));
+		}
+
+		@Override
+		public long getSize() {
+			return file.length();
+		}
+
+		@Override
+		public File getFile() {
+			return file;
+		}
+
+		@Override
+		public String toString() {
+			return file.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Sorgente basata su fornitore di InputStream. Se un lettore chiude lo stream dopo averne letto solo l'inizio (es. riconoscimento della
+	 * tipologia) lo stream del fornitore resta aperto e i byte letti vengono mantenuti in memoria (fino a HEAD_LIMIT byte): il lettore
+	 * successivo (es. estrazione del testo) riprende la lettura senza richiedere un nuovo recupero del contenuto.
+	 */
+	private static class StreamSource extends InputSource {
+
+		// Numero massimo di byte letti mantenuti in memoria per la ripresa della lettura
+		private static final int HEAD_LIMIT = 256 * 1024;
+
+		private final StreamSupplier supplier;
+		private final long size;
+
+		// stream del fornitore lasciato aperto dal lettore precedente e byte gia' letti da tale stream
+		private InputStream pending;
+		private byte[] pendingHead;
+
+		public StreamSource(StreamSupplier supplier, long size) {
+			this.supplier = supplier;
+			this.size = size;
+		}
+
+		@Override
+		public synchronized InputStream openStream() throws Exception {
+			InputStream in = pending;
+			byte[] head = pendingHead;
+			pending = null;
+			pendingHead = null;
+			if (in == null) {
+				in = supplier.open();
+				if (in == null)
+					throw new Exception("Input stream supplier returned NULL");
+				head = new byte[0];
+			}
+			return new BufferedInputStream(new ResumableInputStream(in, head));
+		}
+
+		@Override
+		public synchronized void release() {
+			if (pending != null) {
+				try {
+					pending.close();
+				}
+				catch (IOException e) {
+					// chiusura dello stream del fornitore, errore ignorato
+				}
+			}
+			pending = null;
+			pendingHead = null;
+		}
+
+		/**
+		 * Stream di lettura che restituisce i byte gia' letti da un lettore precedente e prosegue la lettura dallo stream del fornitore. Alla
+		 * chiusura, se i byte letti dal fornitore rientrano in HEAD_LIMIT, lo stream del fornitore viene lasciato aperto per il lettore
+		 * successivo.
+		 */
+		private class ResumableInputStream extends InputStream {
+
+			private final InputStream in;
+			private final byte[] head;
+			private int headPos = 0;
+			private ByteArrayOutputStream recorded;
+			private boolean eof = false;
+			private boolean closed = false;
+
+			public ResumableInputStream(InputStream in, byte[] head) {
+				this.in = in;
+				this.head = head;
+				this.recorded = new ByteArrayOutputStream(Math.max(head.length, 8192));
+				this.recorded.write(head, 0, head.length);
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int read = read(b, 0, 1);
+				return (read == -1) ? -1 : (b[0] & 0xFF);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (headPos < head.length) {
+					int count = Math.min(len, head.length - headPos);
+					System.arraycopy(head, headPos, b, off, count);
+					headPos += count;
+					return count;
+				}
+				int read = in.read(b, off, len);
+				if (read == -1) {
+					eof = true;
+				}
+				else if (recorded != null) {
+					if (recorded.size() + read > HEAD_LIMIT)
+						recorded = null; // letto oltre il limite, la lettura non potra' essere ripresa
+					else
+						recorded.write(b, off, read);
+				}
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				if (recorded == null || eof) {
+					in.close();
+					if (recorded == null)
+						return;
+				}
+				synchronized (StreamSource.this) {
+					if (pending == null) {
+						// lettura parziale (o contenuto interamente in memoria): il lettore successivo riprende da questo punto
+						pending = eof ? new ByteArrayInputStream(new byte[0]) : in;
+						pendingHead = recorded.toByteArray();
+						return;
+					}
+				}
+				if (!eof)
+					in.close();
+			}
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public boolean requiresFetch() {
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "stream [size = " + size + "]";
+		}
+	}
+
+	/**
+	 * Sorgente basata su contenuto in memoria
+	 */
+	private static class ByteBufferSource extends InputSource {
+
+		private final ByteBuffer buffer;
+
+		public ByteBufferSource(ByteBuffer buffer) {
+			this.buffer = buffer.asReadOnlyBuffer();
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteBufferInputStream(buffer.duplicate());
+		}
+
+		@Override
+		public long getSize() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public String toString() {
+			return "buffer [size = " + buffer.remaining() + "]";
+		}
+	}
+
+	/**
+	 * Sorgente basata su file locale letto tramite memory-mapping. Il file e' gia' disponibile su filesystem, quindi non viene mai copiato
+	 * nella directory di lavoro.
+	 */
+	private static class MappedPathSource extends InputSource {
+
+		private final Path path;
+		private volatile ByteBuffer mapped;
+
+		public MappedPathSource(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		public InputStream openStream() throws Exception {
+			if (mapped == null) {
+				synchronized (this) {
+					if (mapped == null) {
+						try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+							mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+						}
+					}
+				}
+			}
+			return new ByteBufferInputStream(mapped.duplicate());
+		}
+
+		@Override
+		public long getSize() {
+			return path.toFile().length();
+		}
+
+		@Override
+		public File getFile() {
+			return path.toFile();
+		}
+
+		@Override
+		public String toString() {
+			return "mapped " + path;
+		}
+	}
+
+	/**
+	 * InputStream di lettura di un ByteBuffer
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer.remaining();
+		}
+	}
+
+}
@@ -8,6 +8,11 @@ import java.util.Map;
  */
 public class Metadata {
 
+	/**
+	 * Chiave del metadato contenente il mime type del file riconosciuto in base al contenuto
+	 */
+	public static final String DETECTED_MIME_TYPE = "fcs:detected-mime-type";
+
 	private Map<String, String> meta;
 	
 	public Metadata(String extension, long size) {
@@ -21,5 +26,13 @@ public class Metadata {
 	public Map<String, String> getMeta() {
 		return meta;
 	}
+
+	/**
+	 * Ritorna il mime type del file riconosciuto in base al contenuto (NULL se non disponibile)
+	 * @return
+	 */
+	public String getDetectedMimeType() {
+		return meta.get(DETECTED_MIME_TYPE);
+	}
 	
 }
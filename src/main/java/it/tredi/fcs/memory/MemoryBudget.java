@@ -0,0 +1,220 @@
+package it.tredi.fcs.memory;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+
+/**
+ * Contabilizzazione dei byte mantenuti in memoria dalle richieste in corso (risultati delle comparazioni, testo estratto dai file). Prima di
+ * caricare un contenuto in memoria le richieste riservano la dimensione stimata dal budget globale: se il budget e' esaurito la richiesta
+ * attende (in ordine di arrivo) il rilascio della memoria da parte delle altre richieste e, allo scadere del tempo di attesa, viene rifiutata.
+ * Budget e tempo di attesa vengono letti dalla configurazione corrente ad ogni richiesta (parametri fcs.memory.budget e
+ * fcs.memory.budget.wait.timeout). Utilizzo, picco, richieste in attesa e rifiutate sono consultabili tramite JMX (MBean
+ * it.tredi.fcs:type=MemoryBudget).
+ */
+public class MemoryBudget implements MemoryBudgetMBean {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private static final String MBEAN_NAME = "it.tredi.fcs:type=MemoryBudget";
+
+	// byte attualmente riservati, picco di utilizzo e contatori delle richieste in attesa/rifiutate
+	private long usedBytes = 0;
+	private long peakBytes = 0;
+	private long rejectedCount = 0;
+
+	// richieste in attesa di memoria disponibile (in ordine di arrivo)
+	private final LinkedList<Object> waiting = new LinkedList<Object>();
+
+	// Singleton
+	private static volatile MemoryBudget instance = null;
+
+	/**
+	 * Memoria riservata da una richiesta. La memoria puo' essere rilasciata in parte (release) man mano che i contenuti non sono piu' mantenuti
+	 * in memoria, il rilascio completo (close) puo' essere invocato piu' volte.
+	 */
+	public class Reservation implements AutoCloseable {
+
+		private final long bytes;
+		private long remaining;
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+			this.remaining = bytes;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Rilascio parziale della memoria riservata (limitato alla memoria non ancora rilasciata)
+		 * @param amount Memoria da rilasciare (in byte)
+		 */
+		public void release(long amount) {
+			synchronized (MemoryBudget.this) {
+				long released = Math.min(Math.max(0, amount), remaining);
+				if (released == 0)
+					return;
+				remaining -= released;
+				MemoryBudget.this.release(released);
+			}
+		}
+
+		@Override
+		public void close() {
+			release(remaining);
+		}
+	}
+
+	/**
+	 * Costruttore privato
+	 */
+	private MemoryBudget() {
+	}
+
+	/**
+	 * Ritorna l'istanza condivisa del budget di memoria
+	 * @return
+	 */
+	public static MemoryBudget getInstance() {
+		if (instance == null) {
+			synchronized (MemoryBudget.class) {
+				if (instance == null) {
+					MemoryBudget budget = new MemoryBudget();
+					registerMBean(budget);
+					instance = budget;
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Registrazione dell'MBean di consultazione del budget sul server JMX della piattaforma (in caso di errore il budget resta comunque
+	 * utilizzabile)
+	 */
+	private static void registerMBean(MemoryBudget budget) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(budget, name);
+
+			if (logger.isInfoEnabled())
+				logger.info("MemoryBudget: MBean " + MBEAN_NAME + " registered");
+		}
+		catch (Exception e) {
+			logger.warn("MemoryBudget: unable to register MBean " + MBEAN_NAME + "... " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Riserva dal budget la quantita' di memoria indicata. Se il budget non e' sufficiente viene attesa la memoria rilasciata dalle altre
+	 * richieste fino al tempo massimo configurato. Una richiesta superiore all'intero budget viene limitata al budget stesso (viene eseguita
+	 * solo in assenza di altre richieste in memoria).
+	 * @param bytes Memoria stimata (in byte)
+	 * @param description Descrizione della richiesta (per il log)
+	 * @return Memoria riservata, da rilasciare al termine dell'utilizzo
+	 * @throws Exception Se la memoria non si rende disponibile entro il tempo massimo di attesa
+	 */
+	public synchronized Reservation reserve(long bytes, String description) throws Exception {
+		FcsConfig config = FcsConfig.getInstance();
+		long budget = config.getFcsMemoryBudget();
+		long amount = Math.max(0, bytes);
+		if (budget > 0)
+			amount = Math.min(amount, budget);
+
+		if (budget > 0 && (usedBytes + amount > budget || !waiting.isEmpty())) {
+			long start = System.currentTimeMillis();
+			long deadline = start + config.getFcsMemoryBudgetWaitTimeout();
+			Object ticket = new Object();
+			waiting.addLast(ticket);
+			try {
+				while (waiting.getFirst() != ticket || usedBytes + amount > budget) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						rejectedCount++;
+						logger.warn("MemoryBudget.reserve(): " + description + " rejected, unable to reserve " + amount + " bytes in " + (System.currentTimeMillis()-start)
+								+ " millis. [used = " + usedBytes + ", budget = " + budget + ", waiting = " + waiting.size() + "]");
+						throw new Exception("Memory budget exceeded: unable to reserve " + amount + " bytes for " + description);
+					}
+					wait(remaining);
+				}
+			}
+			finally {
+				waiting.remove(ticket);
+				notifyAll(); // la richiesta successiva in coda puo' verificare la memoria disponibile
+			}
+
+			if (logger.isInfoEnabled())
+				logger.info("MemoryBudget.reserve(): " + description + " waited " + (System.currentTimeMillis()-start) + " millis. for " + amount + " bytes");
+		}
+
+		usedBytes += amount;
+		if (usedBytes > peakBytes)
+			peakBytes = usedBytes;
+
+		if (logger.isDebugEnabled())
+			logger.debug("MemoryBudget.reserve(): " + description + " reserved " + amount + " bytes [used = " + usedBytes + ", budget = " + budget + "]");
+		return new Reservation(amount);
+	}
+
+	/**
+	 * Rilascio della memoria riservata
+	 */
+	private synchronized void release(long bytes) {
+		usedBytes -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Ritorna i byte attualmente riservati dalle richieste in corso
+	 * @return
+	 */
+	@Override
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Ritorna il picco di byte riservati dall'avvio del servizio
+	 * @return
+	 */
+	@Override
+	public synchronized long getPeakBytes() {
+		return peakBytes;
+	}
+
+	/**
+	 * Ritorna il numero di richieste in attesa di memoria disponibile
+	 * @return
+	 */
+	@Override
+	public synchronized int getWaitingCount() {
+		return waiting.size();
+	}
+
+	/**
+	 * Ritorna il numero di richieste rifiutate per budget esaurito dall'avvio del servizio
+	 * @return
+	 */
+	@Override
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "used = " + usedBytes + " bytes, peak = " + peakBytes + " bytes, waiting = " + waiting.size() + ", rejected = " + rejectedCount;
+	}
+
+}
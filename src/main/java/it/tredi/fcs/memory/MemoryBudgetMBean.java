@@ -0,0 +1,32 @@
+package it.tredi.fcs.memory;
+
+/**
+ * Interfaccia JMX di consultazione dell'utilizzo del budget di memoria (registrata come it.tredi.fcs:type=MemoryBudget)
+ */
+public interface MemoryBudgetMBean {
+
+	/**
+	 * Byte attualmente riservati dalle richieste in corso
+	 * @return
+	 */
+	long getUsedBytes();
+
+	/**
+	 * Picco di byte riservati dall'avvio del servizio
+	 * @return
+	 */
+	long getPeakBytes();
+
+	/**
+	 * Numero di richieste in attesa di memoria disponibile
+	 * @return
+	 */
+	int getWaitingCount();
+
+	/**
+	 * Numero di richieste rifiutate per budget esaurito dall'avvio del servizio
+	 * @return
+	 */
+	long getRejectedCount();
+
+}
@@ -0,0 +1,175 @@
+package it.tredi.fcs.transfer;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.socket.commands.Protocol;
+
+/**
+ * Ricezione a blocchi (chunk) di file di grandi dimensioni (anche oltre i 2 GB) con possibilita' di ripresa dell'upload. Il file viene salvato
+ * nella directory degli upload con nome composto da identificativo dell'upload, dimensione e hash SHA-256 del file indicati dal client, in modo
+ * che una connessione interrotta possa riprendere il trasferimento dall'ultimo blocco ricevuto correttamente e che un upload parziale non possa
+ * essere ripreso da un trasferimento di contenuto differente.
+ *
+ * Sequenza di trasferimento:
+ * <ul>
+ * <li>FCS invia l'offset dal quale riprendere l'upload (0 in caso di nuovo upload)</li>
+ * <li>per ogni blocco il client invia il descrittore 'dimensione;crc32' seguito dal contenuto del blocco</li>
+ * <li>FCS risponde con l'offset aggiornato: in caso di CRC non corrispondente l'offset non viene incrementato e il blocco deve essere
+ * inviato nuovamente</li>
+ * <li>al termine della ricezione viene verificato l'hash SHA-256 dell'intero file: in caso di hash non corrispondente l'upload parziale
+ * viene cancellato e il trasferimento termina con errore</li>
+ * </ul>
+ */
+public class ChunkedUpload {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private static final String PART_FILE_EXTENSION = ".part";
+	private static final String CHUNK_SEPARATOR = ";";
+
+	// Formato consentito per l'identificativo dell'upload (utilizzato come nome di file)
+	private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+
+	// Formato dell'hash SHA-256 (esadecimale) del file
+	private static final Pattern SHA256_PATTERN = Pattern.compile("[0-9A-Fa-f]{64}");
+
+	// upload in corso (non e' consentita la ricezione concorrente dello stesso upload)
+	private static final Set<String> activeUploads = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Ricezione a blocchi del file indicato
+	 * @param protocol
+	 * @param totalSize Dimensione complessiva del file
+	 * @param uploadId Identificativo dell'upload (assegnato dal client)
+	 * @param sha256 Hash SHA-256 (esadecimale) del file completo
+	 * @param config Snapshot della configurazione della richiesta
+	 * @return File ricevuto (nella directory degli upload)
+	 * @throws Exception
+	 */
+	public static File receive(Protocol protocol, long totalSize, String uploadId, String sha256, FcsConfig config) throws Exception {
+		if (uploadId == null || !UPLOAD_ID_PATTERN.matcher(uploadId).matches())
+			throw new Exception("Invalid upload id: " + uploadId);
+		if (totalSize < 0)
+			throw new Exception("Invalid upload size: " + totalSize);
+		if (sha256 == null || !SHA256_PATTERN.matcher(sha256).matches())
+			throw new Exception("Invalid SHA-256 on upload " + uploadId + ": " + sha256);
+		if (!activeUploads.add(uploadId))
+			throw new Exception("Upload " + uploadId + " already in progress");
+
+		try {
+			File folder = config.getFcsTransferUploadsFolder();
+			if (!folder.exists() && !folder.mkdirs())
+				throw new Exception("Unable to create uploads folder... " + folder.getAbsolutePath());
+
+			// l'upload parziale viene ripreso solo se dimensione e hash del file coincidono con quelli dell'upload interrotto
+			File part = new File(folder, uploadId + "_" + totalSize + "_" + sha256.toLowerCase() + PART_FILE_EXTENSION);
+			removeStaleParts(folder, uploadId, part);
+			long start = System.currentTimeMillis();
+
+			try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				long offset = channel.size();
+				if (offset > totalSize) {
+					// upload precedente non compatibile con quello richiesto, si riparte da zero
+					channel.truncate(0);
+					offset = 0;
+				}
+				long resumedFrom = offset;
+
+				protocol.sendString(String.valueOf(offset)); // offset dal quale riprendere l'upload
+
+				int maxChunkSize = config.getFcsTransferChunkMaxSize();
+				while (offset < totalSize) {
+					String[] chunk = protocol.receiveString().split(CHUNK_SEPARATOR);
+					if (chunk.length != 2)
+						throw new Exception("Invalid chunk descriptor received on upload " + uploadId);
+					int chunkSize = Integer.parseInt(chunk[0].trim());
+					long expectedCrc = Long.parseLong(chunk[1].trim());
+					if (chunkSize <= 0 || chunkSize > maxChunkSize || offset + chunkSize > totalSize)
+						throw new Exception("Invalid chunk size " + chunkSize + " on upload " + uploadId + " [offset = " + offset + ", total = " + totalSize + "]");
+
+					// scrittura del blocco direttamente su file con calcolo del CRC
+					channel.position(offset);
+					CRC32 crc = new CRC32();
+					OutputStream out = new CheckedOutputStream(new CloseShieldOutputStream(Channels.newOutputStream(channel)), crc);
+					protocol.receiveFile(out, chunkSize);
+					out.flush();
+
+					if (crc.getValue() == expectedCrc) {
+						channel.force(false);
+						offset += chunkSize;
+					}
+					else {
+						// blocco corrotto, viene scartato e richiesto nuovamente al client
+						logger.warn("ChunkedUpload.receive(): CRC mismatch on upload " + uploadId + " at offset " + offset + ", chunk discarded");
+						channel.truncate(offset);
+					}
+					protocol.sendString(String.valueOf(offset));
+				}
+
+				if (!sha256.equalsIgnoreCase(fileHash(part))) {
+					// contenuto ricomposto non corrispondente al file inviato, l'upload parziale non puo' essere ripreso
+					channel.close();
+					if (!part.delete())
+						logger.warn("ChunkedUpload.receive(): unable to delete corrupted upload " + part.getAbsolutePath());
+					throw new Exception("SHA-256 mismatch on upload " + uploadId + ", upload discarded");
+				}
+
+				if (logger.isInfoEnabled())
+					logger.info("ChunkedUpload.receive(): upload " + uploadId + " completed, " + (totalSize - resumedFrom) + " bytes received in " + (System.currentTimeMillis()-start) + " millis. [resumed from " + resumedFrom + "]");
+			}
+			return part;
+		}
+		finally {
+			activeUploads.remove(uploadId);
+		}
+	}
+
+	/**
+	 * Cancellazione degli upload parziali con lo stesso identificativo ma dimensione o hash differenti (non piu' riprendibili)
+	 */
+	private static void removeStaleParts(File folder, String uploadId, File part) {
+		Pattern partPattern = Pattern.compile(Pattern.quote(uploadId) + "_\\d+_[0-9a-f]{64}" + Pattern.quote(PART_FILE_EXTENSION));
+		File[] parts = folder.listFiles((dir, name) -> !name.equals(part.getName()) && partPattern.matcher(name).matches());
+		if (parts == null)
+			return;
+		for (File stale : parts) {
+			if (stale.delete() && logger.isInfoEnabled())
+				logger.info("ChunkedUpload.removeStaleParts(): removed stale upload " + stale.getName());
+		}
+	}
+
+	/**
+	 * Calcolo dell'hash SHA-256 (esadecimale) del file passato
+	 */
+	private static String fileHash(File file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		}
+		return DatatypeConverter.printHexBinary(digest.digest());
+	}
+
+}
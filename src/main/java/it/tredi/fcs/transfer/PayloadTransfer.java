@@ -0,0 +1,359 @@
+package it.tredi.fcs.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.socket.commands.Protocol;
+import it.tredi.fcs.workdir.WorkDirManager;
+
+/**
+ * Trasferimento dei file (payload) dei comandi CONV e DIFF con compressione opzionale. La dimensione del file inviata prima del contenuto puo'
+ * essere espressa come semplice numero (formato originale, nessuna compressione) o come descrittore 'codec;dimensione' (es. 'deflate;1024').
+ * Un client che invia il descrittore dichiara di supportare la compressione: in questo caso anche il risultato viene compresso (se la sua
+ * dimensione supera la soglia indicata in configurazione). I file di grandi dimensioni possono essere inviati a blocchi con il descrittore
+ * 'chunked;dimensione;idUpload;sha256' (vedi {@link ChunkedUpload}), dove sha256 e' l'hash SHA-256 (esadecimale) dell'intero file.
+ */
+public class PayloadTransfer {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	public static final String CODEC_IDENTITY = "identity";
+	public static final String CODEC_DEFLATE = "deflate";
+	public static final String CODEC_CHUNKED = "chunked";
+
+	private static final String DESCRIPTOR_SEPARATOR = ";";
+
+	// Dimensione massima del contenuto decompresso in caso di parametro non valido
+	private static final long FCS_INFLATED_MAX_SIZE_DEFAULT = 268435456;
+
+	/**
+	 * Descrittore del payload ricevuto dal client
+	 */
+	public static class PayloadDescriptor {
+
+		private final String codec;
+		private final long size;
+		private final boolean codecAware;
+		private final String uploadId;
+		private final String sha256;
+
+		public PayloadDescriptor(String codec, long size, boolean codecAware) {
+			this(codec, size, codecAware, null, null);
+		}
+
+		public PayloadDescriptor(String codec, long size, boolean codecAware, String uploadId, String sha256) {
+			this.codec = codec;
+			this.size = size;
+			this.codecAware = codecAware;
+			this.uploadId = uploadId;
+			this.sha256 = sha256;
+		}
+
+		/**
+		 * Codec applicato al payload (identity, deflate o chunked)
+		 * @return
+		 */
+		public String getCodec() {
+			return codec;
+		}
+
+		/**
+		 * Dimensione del payload trasmesso (eventualmente compresso)
+		 * @return
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Ritorna true se il client ha dichiarato il supporto alla compressione (descrittore 'codec;dimensione')
+		 * @return
+		 */
+		public boolean isCodecAware() {
+			return codecAware;
+		}
+
+		/**
+		 * Identificativo dell'upload in caso di trasferimento a blocchi (NULL altrimenti)
+		 * @return
+		 */
+		public String getUploadId() {
+			return uploadId;
+		}
+
+		/**
+		 * Hash SHA-256 (esadecimale) dell'intero file in caso di trasferimento a blocchi (NULL altrimenti)
+		 * @return
+		 */
+		public String getSha256() {
+			return sha256;
+		}
+	}
+
+	/**
+	 * Lettura del descrittore del payload (dimensione del file o 'codec;dimensione')
+	 * @param protocol
+	 * @return
+	 * @throws Exception
+	 */
+	public static PayloadDescriptor receiveDescriptor(Protocol protocol) throws Exception {
+		return parseDescriptor(protocol.receiveString());
+	}
+
+	/**
+	 * Interpretazione del descrittore del payload
+	 * @param value Dimensione del file o 'codec;dimensione'
+	 * @return
+	 * @throws Exception
+	 */
+	public static PayloadDescriptor parseDescriptor(String value) throws Exception {
+		if (value == null || value.isEmpty())
+			throw new Exception("Empty payload size received");
+
+		if (value.indexOf(DESCRIPTOR_SEPARATOR) == -1)
+			return new PayloadDescriptor(CODEC_IDENTITY, Long.parseLong(value.trim()), false);
+
+		String[] parts = value.split(DESCRIPTOR_SEPARATOR);
+		if (parts.length < 2)
+			throw new Exception("Invalid payload descriptor: " + value);
+		String codec = parts[0].trim().toLowerCase();
+		if (codec.equals(CODEC_CHUNKED)) {
+			if (parts.length != 4)
+				throw new Exception("Invalid chunked payload descriptor: " + value);
+			return new PayloadDescriptor(codec, Long.parseLong(parts[1].trim()), true, parts[2].trim(), parts[3].trim());
+		}
+		if (!codec.equals(CODEC_IDENTITY) && !codec.equals(CODEC_DEFLATE))
+			throw new Exception("Unsupported payload codec: " + codec);
+		return new PayloadDescriptor(codec, Long.parseLong(parts[1].trim()), true);
+	}
+
+	/**
+	 * Ricezione del payload descritto su file nella directory di lavoro (senza caricamento in memoria). In caso di trasferimento a blocchi il
+	 * file completo viene spostato dalla directory degli upload alla directory di lavoro.
+	 * @param protocol
+	 * @param descriptor Descrittore del payload
+	 * @param workDir Directory di lavoro della richiesta
+	 * @param prefix Prefisso del nome del file
+	 * @param config Snapshot della configurazione della richiesta
+	 * @return File ricevuto
+	 * @throws Exception
+	 */
+	public static File receiveToFile(Protocol protocol, PayloadDescriptor descriptor, File workDir, String prefix, FcsConfig config) throws Exception {
+		if (CODEC_CHUNKED.equals(descriptor.getCodec())) {
+			File part = ChunkedUpload.receive(protocol, descriptor.getSize(), descriptor.getUploadId(), descriptor.getSha256(), config);
+			// il file viene spostato in RAM solo se rientra nella quota dell'area di lavoro
+			File file = WorkDirManager.getInstance().createTempFile(workDir, prefix + descriptor.getUploadId() + "_", "", descriptor.getSize());
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return file;
+		}
+
+		// la quota viene riservata sulla dimensione dichiarata (compressa per i payload deflate), l'eventuale eccedenza del contenuto
+		// decompresso viene addebitata a ricezione completata
+		WorkDirManager workDirManager = WorkDirManager.getInstance();
+		File file = workDirManager.createTempFile(workDir, prefix, "", descriptor.getSize());
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+			receive(protocol, descriptor, out, config);
+		}
+		if (CODEC_DEFLATE.equals(descriptor.getCodec()))
+			workDirManager.reconcile(workDir);
+		return file;
+	}
+
+	/**
+	 * Rinomina del file ricevuto con l'estensione dichiarata dal client (letta dopo il contenuto del file), in modo che gli strumenti di
+	 * conversione e comparazione riconoscano il formato
+	 * @param file File ricevuto
+	 * @param ext Estensione dichiarata
+	 * @return
+	 */
+	public static File renameWithExtension(File file, String ext) {
+		if (ext == null || ext.isEmpty() || file.getName().toLowerCase().endsWith("." + ext.toLowerCase()))
+			return file;
+		File renamed = new File(file.getParentFile(), file.getName() + "." + ext);
+		return file.renameTo(renamed) ? renamed : file;
+	}
+
+	/**
+	 * Ricezione del payload descritto con decompressione in streaming sull'OutputStream passato. La dimensione del contenuto decompresso e'
+	 * limitata dal parametro fcs.transfer.compression.inflated.max.size.
+	 * @param protocol
+	 * @param descriptor Descrittore del payload
+	 * @param out Destinazione del contenuto decompresso
+	 * @param config Snapshot della configurazione della richiesta
+	 * @throws Exception
+	 */
+	public static void receive(Protocol protocol, PayloadDescriptor descriptor, OutputStream out, FcsConfig config) throws Exception {
+		if (CODEC_CHUNKED.equals(descriptor.getCodec()))
+			throw new Exception("Chunked payload must be received on file");
+		if (descriptor.getSize() > Integer.MAX_VALUE)
+			throw new Exception("Payload size exceeds single transfer limit, chunked transfer required: " + descriptor.getSize());
+
+		if (CODEC_DEFLATE.equals(descriptor.getCodec())) {
+			try (InflaterOutputStream inflater = new InflaterOutputStream(new LimitedOutputStream(new CloseShieldOutputStream(out), getInflatedMaxSize(config)))) {
+				protocol.receiveFile(inflater, (int) descriptor.getSize());
+			}
+		}
+		else {
+			protocol.receiveFile(out, (int) descriptor.getSize());
+		}
+	}
+
+	/**
+	 * Invio del contenuto al client preceduto dal relativo descrittore. Il contenuto viene compresso solo se il client ha dichiarato il supporto
+	 * alla compressione, se la compressione e' abilitata e se la dimensione supera la soglia indicata in configurazione.
+	 * @param protocol
+	 * @param content Contenuto da inviare
+	 * @param codecAware true se il client supporta il descrittore 'codec;dimensione'
+	 * @param config Snapshot della configurazione della richiesta
+	 * @throws Exception
+	 */
+	public static void send(Protocol protocol, byte[] content, boolean codecAware, FcsConfig config) throws Exception {
+		if (!codecAware) {
+			// client non a conoscenza della compressione, formato originale
+			protocol.sendString(String.valueOf(content.length));
+			protocol.sendFile(new ByteArrayInputStream(content), content.length);
+			return;
+		}
+
+		byte[] payload = content;
+		String codec = CODEC_IDENTITY;
+
+		if (config.isFcsTransferCompressionEnabled() && content.length >= config.getFcsTransferCompressionThreshold()) {
+			byte[] compressed = deflate(content);
+			if (compressed.length < content.length) {
+				payload = compressed;
+				codec = CODEC_DEFLATE;
+
+				if (logger.isDebugEnabled())
+					logger.debug("PayloadTransfer.send(): payload compressed from " + content.length + " to " + compressed.length + " bytes");
+			}
+		}
+
+		protocol.sendString(codec + DESCRIPTOR_SEPARATOR + payload.length);
+		protocol.sendFile(new ByteArrayInputStream(payload), payload.length);
+	}
+
+	/**
+	 * Invio del file al client preceduto dal relativo descrittore (contenuto letto in streaming da file). Il file viene compresso solo se il
+	 * client ha dichiarato il supporto alla compressione, se la compressione e' abilitata e se la dimensione supera la soglia indicata in
+	 * configurazione.
+	 * @param protocol
+	 * @param file File da inviare
+	 * @param codecAware true se il client supporta il descrittore 'codec;dimensione'
+	 * @param config Snapshot della configurazione della richiesta
+	 * @throws Exception
+	 */
+	public static void send(Protocol protocol, File file, boolean codecAware, FcsConfig config) throws Exception {
+		File payload = file;
+		String codec = CODEC_IDENTITY;
+
+		if (codecAware && config.isFcsTransferCompressionEnabled() && file.length() >= config.getFcsTransferCompressionThreshold()) {
+			File compressed = WorkDirManager.getInstance().createTempFile(file.getParentFile(), file.getName() + "_", ".deflate", file.length());
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try (InputStream in = Files.newInputStream(file.toPath());
+					DeflaterOutputStream out = new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(compressed.toPath())), deflater, 64 * 1024)) {
+				byte[] buffer = SocketTransport.acquireBuffer();
+				try {
+					IOUtils.copyLarge(in, out, buffer);
+				}
+				finally {
+					SocketTransport.releaseBuffer(buffer);
+				}
+			}
+			finally {
+				deflater.end();
+			}
+			if (compressed.length() < file.length()) {
+				payload = compressed;
+				codec = CODEC_DEFLATE;
+
+				if (logger.isDebugEnabled())
+					logger.debug("PayloadTransfer.send(): payload compressed from " + file.length() + " to " + compressed.length() + " bytes");
+			}
+		}
+
+		long size = payload.length();
+		if (size > Integer.MAX_VALUE)
+			throw new Exception("Payload size exceeds single transfer limit: " + size);
+
+		protocol.sendString(codecAware ? codec + DESCRIPTOR_SEPARATOR + size : String.valueOf(size));
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(payload.toPath()))) {
+			protocol.sendFile(in, (int) size);
+		}
+	}
+
+	/**
+	 * Compressione veloce (deflate BEST_SPEED) del contenuto passato
+	 */
+	private static byte[] deflate(byte[] content) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 2);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (DeflaterOutputStream out = new DeflaterOutputStream(baos, deflater, 64 * 1024)) {
+			out.write(content);
+		}
+		finally {
+			deflater.end();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Dimensione massima del contenuto decompresso di un payload (in byte)
+	 */
+	private static long getInflatedMaxSize(FcsConfig config) {
+		long maxSize = config.getFcsTransferCompressionInflatedMaxSize();
+		return (maxSize > 0) ? maxSize : FCS_INFLATED_MAX_SIZE_DEFAULT;
+	}
+
+	/**
+	 * OutputStream che interrompe la scrittura con errore al superamento della dimensione massima indicata
+	 */
+	private static class LimitedOutputStream extends FilterOutputStream {
+
+		private final long maxSize;
+		private long written = 0;
+
+		public LimitedOutputStream(OutputStream out, long maxSize) {
+			super(out);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			checkLimit(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkLimit(len);
+			out.write(b, off, len);
+		}
+
+		private void checkLimit(int len) throws IOException {
+			written += len;
+			if (written > maxSize)
+				throw new IOException("Inflated payload exceeds max size of " + maxSize + " bytes");
+		}
+	}
+
+}
@@ -0,0 +1,360 @@
+package it.tredi.fcs.transfer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+
+/**
+ * Trasporto socket di FCS: creazione del server socket e configurazione delle connessioni dei client in base ai parametri TCP indicati in
+ * configurazione, stream bufferizzati di lettura e scrittura sulle connessioni. I buffer vengono riutilizzati fra le connessioni (pool
+ * condiviso), in modo da non allocare nuovi buffer ad ogni richiesta.
+ */
+public class SocketTransport {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	// Numero massimo di buffer mantenuti nel pool
+	private static final int MAX_POOLED_BUFFERS = 256;
+
+	// Dimensione dei buffer in caso di configurazione non disponibile
+	private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Creazione del server socket sulla porta indicata in configurazione (backlog, buffer di ricezione e timeout di accept)
+	 * @param config Configurazione di FCS
+	 * @return
+	 * @throws IOException
+	 */
+	public static ServerSocket createServerSocket(FcsConfig config) throws IOException {
+		ServerSocket serverSocket = new ServerSocket();
+		try {
+			// il buffer di ricezione deve essere impostato prima del bind per essere applicato alle connessioni accettate
+			if (config.getFcsSocketReceiveBufferSize() > 0)
+				serverSocket.setReceiveBufferSize(config.getFcsSocketReceiveBufferSize());
+			if (config.getFcsSocketAcceptTimeout() > 0)
+				serverSocket.setSoTimeout(config.getFcsSocketAcceptTimeout());
+			if (config.isFcsSocketReusePort()) {
+				serverSocket.setReuseAddress(true);
+				setReusePort(serverSocket);
+			}
+			serverSocket.bind(new InetSocketAddress(config.getFcsPort()), config.getFcsSocketBacklog());
+		}
+		catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("SocketTransport.createServerSocket(): server socket bound to port " + serverSocket.getLocalPort() + " [backlog = " + config.getFcsSocketBacklog()
+					+ ", receiveBuffer = " + serverSocket.getReceiveBufferSize() + ", acceptTimeout = " + config.getFcsSocketAcceptTimeout() + "]");
+		return serverSocket;
+	}
+
+	/**
+	 * Abilitazione di SO_REUSEPORT sul server socket (prima del bind), in modo che una nuova istanza di FCS possa mettersi in ascolto sulla
+	 * stessa porta prima dell'arresto dell'istanza in esecuzione. L'opzione e' disponibile da Java 9 (viene recuperata tramite reflection), se
+	 * non supportata dalla JVM o dal sistema operativo viene ignorata.
+	 * @param serverSocket
+	 */
+	private static void setReusePort(ServerSocket serverSocket) {
+		try {
+			Object option = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			setOption.invoke(serverSocket, option, Boolean.TRUE);
+
+			if (logger.isInfoEnabled())
+				logger.info("SocketTransport.setReusePort(): SO_REUSEPORT enabled on server socket");
+		}
+		catch (NoSuchFieldException | NoSuchMethodException e) {
+			logger.warn("SocketTransport.setReusePort(): SO_REUSEPORT not supported by current JVM (Java 9 or later required), option ignored");
+		}
+		catch (InvocationTargetException e) {
+			logger.warn("SocketTransport.setReusePort(): SO_REUSEPORT not supported on current platform, option ignored... " + e.getCause());
+		}
+		catch (Exception e) {
+			logger.warn("SocketTransport.setReusePort(): unable to enable SO_REUSEPORT, option ignored... " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Configurazione della connessione di un client (TCP_NODELAY, buffer di invio e ricezione, timeout di lettura)
+	 * @param socket Connessione del client
+	 * @param config Configurazione di FCS
+	 * @throws IOException
+	 */
+	public static void configure(Socket socket, FcsConfig config) throws IOException {
+		socket.setTcpNoDelay(config.isFcsSocketTcpNoDelay());
+		if (config.getFcsSocketSendBufferSize() > 0)
+			socket.setSendBufferSize(config.getFcsSocketSendBufferSize());
+		if (config.getFcsSocketReceiveBufferSize() > 0)
+			socket.setReceiveBufferSize(config.getFcsSocketReceiveBufferSize());
+		socket.setSoTimeout(config.getFcsSocketReadTimeout());
+	}
+
+	/**
+	 * Apertura dello stream bufferizzato di scrittura sulla connessione
+	 * @param socket Connessione del client
+	 * @return
+	 * @throws IOException
+	 */
+	public static BufferedSocketOutputStream openOutputStream(Socket socket) throws IOException {
+		return new BufferedSocketOutputStream(socket.getOutputStream(), acquireBuffer());
+	}
+
+	/**
+	 * Apertura dello stream bufferizzato di lettura sulla connessione. Prima di ogni lettura dalla connessione viene svuotato il buffer dello
+	 * stream di scrittura passato, in modo che le risposte attese dal client vengano inviate prima di restare in attesa di nuovi dati.
+	 * @param socket Connessione del client
+	 * @param output Stream di scrittura sulla stessa connessione (NULL se non presente)
+	 * @return
+	 * @throws IOException
+	 */
+	public static BufferedSocketInputStream openInputStream(Socket socket, BufferedSocketOutputStream output) throws IOException {
+		return new BufferedSocketInputStream(socket.getInputStream(), acquireBuffer(), output);
+	}
+
+	/**
+	 * Recupero di un buffer dal pool (allocazione di un nuovo buffer se il pool e' vuoto)
+	 * @return
+	 */
+	public static byte[] acquireBuffer() {
+		int size = DEFAULT_BUFFER_SIZE;
+		try {
+			size = FcsConfig.getInstance().getFcsSocketStreamBufferSize();
+		}
+		catch (Exception e) {
+			logger.warn("SocketTransport.acquireBuffer(): unable to read stream buffer size, use default size " + size + "... " + e.getMessage());
+		}
+		if (size <= 0)
+			size = DEFAULT_BUFFER_SIZE;
+
+		byte[] buffer;
+		while ((buffer = pool.poll()) != null) {
+			pooled.decrementAndGet();
+			if (buffer.length == size)
+				return buffer;
+			// buffer di dimensione diversa da quella configurata (configurazione ricaricata), viene scartato
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Restituzione di un buffer al pool
+	 * @param buffer
+	 */
+	public static void releaseBuffer(byte[] buffer) {
+		if (buffer != null && pooled.incrementAndGet() <= MAX_POOLED_BUFFERS)
+			pool.offer(buffer);
+		else if (buffer != null)
+			pooled.decrementAndGet();
+	}
+
+	/**
+	 * Stream bufferizzato di scrittura su una connessione (buffer recuperato dal pool e restituito alla chiusura dello stream)
+	 */
+	public static class BufferedSocketOutputStream extends FilterOutputStream {
+
+		private byte[] buffer;
+		private int count = 0;
+
+		private BufferedSocketOutputStream(OutputStream out, byte[] buffer) {
+			super(out);
+			this.buffer = buffer;
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			ensureOpen();
+			if (count >= buffer.length)
+				flushBuffer();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			if (len >= buffer.length) {
+				// blocco piu' grande del buffer, scrittura diretta sulla connessione
+				flushBuffer();
+				out.write(b, off, len);
+				return;
+			}
+			if (len > buffer.length - count)
+				flushBuffer();
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (buffer == null)
+				return;
+			flushBuffer();
+			out.flush();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (buffer == null)
+				return;
+			try {
+				flush();
+			}
+			finally {
+				releaseBuffer(buffer);
+				buffer = null;
+				out.close();
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if (buffer == null)
+				throw new IOException("Stream closed");
+		}
+	}
+
+	/**
+	 * Stream bufferizzato di lettura su una connessione (buffer recuperato dal pool e restituito alla chiusura dello stream). Prima di ogni
+	 * lettura dalla connessione viene svuotato il buffer dello stream di scrittura associato.
+	 */
+	public static class BufferedSocketInputStream extends FilterInputStream {
+
+		private final BufferedSocketOutputStream output;
+		private byte[] buffer;
+		private int pos = 0;
+		private int count = 0;
+
+		private BufferedSocketInputStream(InputStream in, byte[] buffer, BufferedSocketOutputStream output) {
+			super(in);
+			this.buffer = buffer;
+			this.output = output;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			if (pos >= count && !fill())
+				return -1;
+			return buffer[pos++] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			if (len == 0)
+				return 0;
+			if (pos >= count) {
+				if (len >= buffer.length) {
+					// blocco piu' grande del buffer, lettura diretta dalla connessione
+					flushOutput();
+					return in.read(b, off, len);
+				}
+				if (!fill())
+					return -1;
+			}
+			int read = Math.min(len, count - pos);
+			System.arraycopy(buffer, pos, b, off, read);
+			pos += read;
+			return read;
+		}
+
+		@Override
+		public synchronized long skip(long n) throws IOException {
+			ensureOpen();
+			if (n <= 0)
+				return 0;
+			if (pos < count) {
+				long skipped = Math.min(n, count - pos);
+				pos += skipped;
+				return skipped;
+			}
+			flushOutput();
+			return in.skip(n);
+		}
+
+		@Override
+		public synchronized int available() throws IOException {
+			ensureOpen();
+			return (count - pos) + in.available();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			throw new IOException("mark/reset not supported");
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (buffer == null)
+				return;
+			releaseBuffer(buffer);
+			buffer = null;
+			in.close();
+		}
+
+		/**
+		 * Lettura di un nuovo blocco di dati dalla connessione
+		 * @return false in caso di fine dello stream
+		 */
+		private boolean fill() throws IOException {
+			ensureOpen();
+			flushOutput();
+			int read;
+			do {
+				read = in.read(buffer, 0, buffer.length);
+			}
+			while (read == 0);
+			if (read < 0)
+				return false;
+			pos = 0;
+			count = read;
+			return true;
+		}
+
+		private void flushOutput() throws IOException {
+			if (output != null)
+				output.flush();
+		}
+
+		private void ensureOpen() throws IOException {
+			if (buffer == null)
+				throw new IOException("Stream closed");
+		}
+	}
+
+}
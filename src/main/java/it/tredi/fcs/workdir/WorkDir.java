@@ -0,0 +1,150 @@
+package it.tredi.fcs.workdir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Directory di lavoro di una singola richiesta. La directory principale puo' risiedere sull'area di lavoro in RAM (tmpfs) o su disco: i file
+ * creati tramite {@link #createTempFile(String, String, long)} vengono posizionati in RAM solo se rientrano nella quota globale, altrimenti
+ * vengono salvati sulla directory su disco.
+ */
+public class WorkDir {
+
+	private final String name;
+	private final File ramDir;
+	private final File diskDir;
+	private final boolean ramPrimary;
+
+	// byte riservati sulla quota dell'area di lavoro in RAM
+	private final AtomicLong reservedRamBytes = new AtomicLong();
+
+	// byte scritti dalla richiesta (RAM e disco), conteggiati alla creazione dei file e all'allineamento della quota
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Costruttore
+	 * @param name Nome della directory di lavoro
+	 * @param ramDir Directory sull'area in RAM (NULL se l'area in RAM non e' configurata)
+	 * @param diskDir Directory su disco
+	 * @param ramPrimary true se la directory principale della richiesta e' quella in RAM
+	 */
+	WorkDir(String name, File ramDir, File diskDir, boolean ramPrimary) {
+		this.name = name;
+		this.ramDir = ramDir;
+		this.diskDir = diskDir;
+		this.ramPrimary = ramPrimary;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Ritorna la directory principale della richiesta (da passare come directory di lavoro a FcaCommandExecutor, Convert, Compare)
+	 * @return
+	 */
+	public File getDir() {
+		return ramPrimary ? ramDir : diskDir;
+	}
+
+	public File getRamDir() {
+		return ramDir;
+	}
+
+	public File getDiskDir() {
+		return diskDir;
+	}
+
+	public boolean isRamPrimary() {
+		return ramPrimary;
+	}
+
+	/**
+	 * Creazione di un file temporaneo della dimensione prevista indicata. Il file viene creato in RAM se la dimensione rientra nella quota
+	 * globale, su disco altrimenti.
+	 * @param prefix Prefisso del nome del file
+	 * @param suffix Suffisso del nome del file
+	 * @param expectedSize Dimensione prevista del file (in byte)
+	 * @return
+	 * @throws Exception
+	 */
+	public File createTempFile(String prefix, String suffix, long expectedSize) throws Exception {
+		return File.createTempFile(prefix, suffix, reserveDir(expectedSize));
+	}
+
+	/**
+	 * Creazione di una sottodirectory temporanea per file della dimensione complessiva prevista indicata. La sottodirectory viene creata in RAM
+	 * se la dimensione rientra nella quota globale, su disco altrimenti.
+	 * @param prefix Prefisso del nome della directory
+	 * @param expectedSize Dimensione complessiva prevista dei file (in byte)
+	 * @return
+	 * @throws Exception
+	 */
+	public File createTempDir(String prefix, long expectedSize) throws Exception {
+		return Files.createTempDirectory(reserveDir(expectedSize).toPath(), prefix).toFile();
+	}
+
+	/**
+	 * Ritorna la directory nella quale scrivere un file della dimensione prevista indicata: la directory in RAM se la dimensione rientra nella
+	 * quota globale (la quota viene riservata), la directory su disco altrimenti
+	 * @param expectedSize Dimensione prevista (in byte)
+	 * @return
+	 * @throws Exception
+	 */
+	File reserveDir(long expectedSize) throws Exception {
+		bytesWritten.addAndGet(Math.max(expectedSize, 0));
+		File dir = diskDir;
+		if (ramPrimary && WorkDirManager.getInstance().reserveRam(expectedSize)) {
+			reservedRamBytes.addAndGet(expectedSize);
+			dir = ramDir;
+		}
+		if (!dir.exists() && !dir.mkdirs())
+			throw new Exception("Impossible to create work dir: " + dir.getAbsolutePath());
+		return dir;
+	}
+
+	/**
+	 * Allineamento dei byte conteggiati con i byte effettivamente presenti nella directory principale (file scritti senza passare dal gestore,
+	 * es. download eseguiti dall'implementazione di getDocumento, o di dimensione superiore a quella prevista). L'eventuale eccedenza viene
+	 * conteggiata fra i byte scritti e, per le directory in RAM, addebitata sulla quota globale, in modo che i file successivi vengano salvati
+	 * su disco.
+	 * @throws Exception
+	 */
+	void reconcile() throws Exception {
+		File dir = getDir();
+		if (!dir.exists())
+			return;
+		// i byte riservati su disco dalle directory in RAM si trovano nella directory su disco, non vengono considerati
+		long accounted = ramPrimary ? reservedRamBytes.get() : bytesWritten.get();
+		long unaccounted = FileUtils.sizeOfDirectory(dir) - accounted;
+		if (unaccounted > 0) {
+			bytesWritten.addAndGet(unaccounted);
+			if (ramPrimary) {
+				WorkDirManager.getInstance().chargeRam(unaccounted);
+				reservedRamBytes.addAndGet(unaccounted);
+			}
+		}
+	}
+
+	long getReservedRamBytes() {
+		return reservedRamBytes.get();
+	}
+
+	/**
+	 * Ritorna il numero di byte scritti dalla richiesta (RAM e disco), conteggiati alla creazione dei file (dimensione prevista) e
+	 * all'allineamento della quota (eccedenza rispetto alla dimensione prevista), senza scansione delle directory al rilascio
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public String toString() {
+		return getDir().getAbsolutePath() + (ramPrimary ? " [RAM]" : "");
+	}
+
+}
@@ -0,0 +1,248 @@
+package it.tredi.fcs.workdir;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+
+/**
+ * Pulizia asincrona delle directory di lavoro. Le cancellazioni vengono eseguite da un thread a bassa priorita' in modo da non rallentare le
+ * richieste: le directory delle richieste concluse, le directory di lavoro di precedenti esecuzioni (rinominate all'avvio) e le directory orfane
+ * (non associate ad alcuna richiesta attiva) individuate periodicamente.
+ */
+public class WorkDirJanitor implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	// Suffisso delle directory di lavoro di precedenti esecuzioni in attesa di cancellazione
+	private static final String TRASH_SUFFIX = ".trash_";
+
+	private final File workingFolder;
+	private final File ramFolder;
+	private final long sweepInterval;
+	private final long orphanAge;
+	private final File uploadsFolder;
+	private final long uploadsExpiry;
+
+	private final BlockingQueue<Deletion> queue = new LinkedBlockingQueue<Deletion>();
+	// directory in attesa di cancellazione (escluse dalla verifica delle directory orfane)
+	private final Set<File> pending = ConcurrentHashMap.newKeySet();
+
+	private long lastSweep = System.currentTimeMillis();
+
+	// Singleton
+	private static volatile WorkDirJanitor instance = null;
+
+	/**
+	 * Directory da cancellare con l'eventuale azione da eseguire a cancellazione avvenuta
+	 */
+	private static class Deletion {
+
+		private final File dir;
+		private final Runnable afterDelete;
+
+		public Deletion(File dir, Runnable afterDelete) {
+			this.dir = dir;
+			this.afterDelete = afterDelete;
+		}
+	}
+
+	/**
+	 * Costruttore privato
+	 */
+	private WorkDirJanitor(File workingFolder, File ramFolder, long sweepInterval, long orphanAge, File uploadsFolder, long uploadsExpiry) {
+		this.workingFolder = workingFolder;
+		this.ramFolder = ramFolder;
+		this.sweepInterval = sweepInterval;
+		this.orphanAge = orphanAge;
+		this.uploadsFolder = uploadsFolder;
+		this.uploadsExpiry = uploadsExpiry;
+
+		// directory di lavoro di precedenti esecuzioni rinominate all'avvio
+		enqueueTrash(workingFolder);
+		enqueueTrash(ramFolder);
+
+		Thread thread = new Thread(this, "fcs-workdir-janitor");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Ritorna l'istanza condivisa del thread di pulizia delle directory di lavoro
+	 * @return
+	 */
+	public static WorkDirJanitor getInstance() throws Exception {
+		if (instance == null) {
+			synchronized (WorkDirJanitor.class) {
+				if (instance == null) {
+					FcsConfig config = FcsConfig.getInstance();
+					instance = new WorkDirJanitor(config.getFcsWorkingFolder(), config.getFcsWorkingRamFolder(), config.getFcsWorkingSweepInterval(), config.getFcsWorkingOrphanAge(),
+							config.getFcsTransferUploadsFolder(), config.getFcsTransferUploadsExpiry());
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Rinomina la directory passata (directory di lavoro di una precedente esecuzione) in modo che possa essere ricreata immediatamente. La
+	 * cancellazione della directory rinominata viene eseguita in background dal thread di pulizia. Se la rinomina non e' possibile la directory
+	 * viene cancellata in modo sincrono.
+	 * @param folder Directory da rinominare
+	 * @throws Exception
+	 */
+	public static void moveToTrash(File folder) throws Exception {
+		if (folder == null || !folder.exists())
+			return;
+
+		File trash = new File(folder.getAbsoluteFile().getParentFile(), folder.getName() + TRASH_SUFFIX + System.currentTimeMillis());
+		if (folder.renameTo(trash)) {
+			if (logger.isInfoEnabled())
+				logger.info("WorkDirJanitor.moveToTrash(): " + folder.getAbsolutePath() + " renamed to " + trash.getName() + ", deletion scheduled");
+		}
+		else {
+			logger.warn("WorkDirJanitor.moveToTrash(): unable to rename " + folder.getAbsolutePath() + ", synchronous deletion");
+			FileUtils.deleteDirectory(folder);
+		}
+	}
+
+	/**
+	 * Richiesta di cancellazione asincrona della directory passata
+	 * @param dir Directory da cancellare
+	 * @param afterDelete Eventuale azione da eseguire a cancellazione avvenuta (NULL se non prevista)
+	 */
+	public void delete(File dir, Runnable afterDelete) {
+		if (dir == null)
+			return;
+		pending.add(dir);
+		queue.add(new Deletion(dir, afterDelete));
+	}
+
+	/**
+	 * Ritorna il numero di directory in attesa di cancellazione
+	 * @return
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Deletion deletion = queue.poll(Math.max(1000, sweepInterval), TimeUnit.MILLISECONDS);
+				if (deletion != null)
+					doDelete(deletion);
+
+				if (sweepInterval > 0 && System.currentTimeMillis() - lastSweep >= sweepInterval) {
+					lastSweep = System.currentTimeMillis();
+					sweep(workingFolder);
+					sweep(ramFolder);
+					sweepExpiredUploads();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Throwable t) {
+				logger.error("WorkDirJanitor.run(): got exception... " + t.getMessage(), t);
+			}
+		}
+	}
+
+	/**
+	 * Cancellazione della directory
+	 */
+	private void doDelete(Deletion deletion) {
+		long start = System.currentTimeMillis();
+		try {
+			if (deletion.dir.exists())
+				FileUtils.deleteDirectory(deletion.dir);
+
+			if (logger.isDebugEnabled())
+				logger.debug("WorkDirJanitor.doDelete(): " + deletion.dir.getAbsolutePath() + " deleted in " + (System.currentTimeMillis()-start) + " millis.");
+		}
+		catch (Exception e) {
+			logger.error("WorkDirJanitor.doDelete(): unable to remove " + deletion.dir.getAbsolutePath() + "... " + e.getMessage(), e);
+		}
+		finally {
+			pending.remove(deletion.dir);
+			if (deletion.afterDelete != null)
+				deletion.afterDelete.run();
+		}
+	}
+
+	/**
+	 * Ricerca (e cancellazione) delle directory orfane, ovvero non associate ad alcuna richiesta attiva e non modificate da un tempo superiore
+	 * a quello indicato in configurazione (es. directory di thread terminati in modo anomalo)
+	 */
+	private void sweep(File folder) throws Exception {
+		if (folder == null || !folder.isDirectory())
+			return;
+
+		File[] dirs = folder.listFiles(File::isDirectory);
+		if (dirs == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		int orphans = 0;
+		for (File dir : dirs) {
+			if (!pending.contains(dir) && !WorkDirManager.getInstance().isActive(dir.getName()) && now - dir.lastModified() > orphanAge) {
+				delete(dir, null);
+				orphans++;
+			}
+		}
+
+		if (orphans > 0 && logger.isInfoEnabled())
+			logger.info("WorkDirJanitor.sweep(): found " + orphans + " orphaned work dirs in " + folder.getAbsolutePath());
+	}
+
+	/**
+	 * Cancellazione degli upload a blocchi interrotti e non ripresi entro il tempo indicato in configurazione
+	 */
+	private void sweepExpiredUploads() {
+		if (uploadsFolder == null || !uploadsFolder.isDirectory() || uploadsExpiry <= 0)
+			return;
+
+		File[] uploads = uploadsFolder.listFiles(File::isFile);
+		if (uploads == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		int expired = 0;
+		for (File upload : uploads) {
+			if (now - upload.lastModified() > uploadsExpiry && upload.delete())
+				expired++;
+		}
+
+		if (expired > 0 && logger.isInfoEnabled())
+			logger.info("WorkDirJanitor.sweepExpiredUploads(): removed " + expired + " expired uploads from " + uploadsFolder.getAbsolutePath());
+	}
+
+	/**
+	 * Accodamento delle directory di lavoro di precedenti esecuzioni (rinominate all'avvio)
+	 */
+	private void enqueueTrash(File folder) {
+		if (folder == null)
+			return;
+		File parent = folder.getAbsoluteFile().getParentFile();
+		String prefix = folder.getName() + TRASH_SUFFIX;
+		File[] trashes = (parent != null) ? parent.listFiles((dir, name) -> name.startsWith(prefix)) : null;
+		if (trashes != null) {
+			for (File trash : trashes)
+				delete(trash, null);
+		}
+	}
+
+}
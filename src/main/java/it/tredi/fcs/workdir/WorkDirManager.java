@@ -0,0 +1,241 @@
+package it.tredi.fcs.workdir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import it.tredi.fcs.Fcs;
+import it.tredi.fcs.FcsConfig;
+
+/**
+ * Gestione delle directory di lavoro delle richieste. Se configurata un'area di lavoro in RAM (es. tmpfs) le directory delle richieste vengono
+ * create in RAM nel rispetto di una quota globale in byte, con fallback sulla directory di lavoro su disco. Viene inoltre tenuta traccia dei byte
+ * scritti da ogni richiesta.
+ */
+public class WorkDirManager {
+
+	private static final Logger logger = LogManager.getLogger(Fcs.class.getName());
+
+	private final File ramFolder;
+	private final long ramQuota;
+	private final File diskFolder;
+
+	private final AtomicLong reservedRamBytes = new AtomicLong();
+	private final AtomicLong totalBytesWritten = new AtomicLong();
+	private final AtomicLong counter = new AtomicLong();
+
+	// directory di lavoro attive (chiave = directory principale della richiesta)
+	private final Map<File, WorkDir> workDirs = new ConcurrentHashMap<File, WorkDir>();
+
+	// Singleton
+	private static volatile WorkDirManager instance = null;
+
+	/**
+	 * Costruttore privato
+	 */
+	private WorkDirManager(File ramFolder, long ramQuota, File diskFolder) throws Exception {
+		this.ramFolder = ramFolder;
+		this.ramQuota = ramQuota;
+		this.diskFolder = diskFolder;
+
+		if (ramFolder != null) {
+			// svuoto eventuali file temporanei di precedenti elaborazioni (cancellazione in background)
+			WorkDirJanitor.moveToTrash(ramFolder);
+			if (!ramFolder.mkdirs())
+				throw new Exception("Unable to create FCS RAM working folder... " + ramFolder.getAbsolutePath());
+
+			if (logger.isInfoEnabled())
+				logger.info("WorkDirManager: RAM working folder " + ramFolder.getAbsolutePath() + " enabled [quota = " + ramQuota + " bytes]");
+		}
+	}
+
+	/**
+	 * Ritorna l'istanza condivisa del gestore delle directory di lavoro
+	 * @return
+	 */
+	public static WorkDirManager getInstance() throws Exception {
+		if (instance == null) {
+			synchronized (WorkDirManager.class) {
+				if (instance == null) {
+					FcsConfig config = FcsConfig.getInstance();
+					instance = new WorkDirManager(config.getFcsWorkingRamFolder(), config.getFcsWorkingRamQuota(), config.getFcsWorkingFolder());
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creazione della directory di lavoro per una nuova richiesta. Il nome della directory e' univoco (identificativo del thread e progressivo).
+	 * @param threadId Identificativo del thread che elabora la richiesta
+	 * @return
+	 * @throws Exception
+	 */
+	public WorkDir allocate(long threadId) throws Exception {
+		String name = threadId + "_" + counter.incrementAndGet();
+
+		boolean ramPrimary = ramFolder != null && reservedRamBytes.get() < ramQuota;
+		WorkDir workDir = new WorkDir(name, (ramFolder != null) ? new File(ramFolder, name) : null, new File(diskFolder, name), ramPrimary);
+
+		File dir = workDir.getDir();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new Exception("Impossible to create work dir: " + dir.getAbsolutePath());
+
+		workDirs.put(dir, workDir);
+		return workDir;
+	}
+
+	/**
+	 * Rilascio della directory di lavoro di una richiesta: registrazione dei byte scritti e cancellazione asincrona della directory. La quota
+	 * riservata sull'area in RAM viene rilasciata a cancellazione avvenuta.
+	 * @param workDir
+	 * @throws Exception
+	 */
+	public void release(WorkDir workDir) throws Exception {
+		if (workDir == null)
+			return;
+
+		workDirs.remove(workDir.getDir());
+
+		long bytesWritten = workDir.getBytesWritten();
+		totalBytesWritten.addAndGet(bytesWritten);
+
+		if (logger.isInfoEnabled())
+			logger.info("WorkDirManager.release(): work dir " + workDir + " released, " + bytesWritten + " bytes written [RAM reserved = " + reservedRamBytes.get() + "/" + ramQuota + ", total written = " + totalBytesWritten.get() + "]");
+
+		WorkDirJanitor janitor = WorkDirJanitor.getInstance();
+		janitor.delete(workDir.getDiskDir(), null);
+		if (workDir.getRamDir() != null) {
+			final long reserved = workDir.getReservedRamBytes();
+			janitor.delete(workDir.getRamDir(), () -> reservedRamBytes.addAndGet(-reserved));
+		}
+	}
+
+	/**
+	 * Ritorna true se la directory con il nome indicato appartiene ad una richiesta in corso di elaborazione
+	 * @param name Nome della directory
+	 * @return
+	 */
+	public boolean isActive(String name) {
+		for (WorkDir workDir : workDirs.values()) {
+			if (workDir.getName().equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creazione di un file temporaneo all'interno della directory di lavoro passata, nel rispetto della quota dell'area in RAM. Se la directory
+	 * non e' gestita dal manager il file viene creato direttamente nella directory indicata.
+	 * @param dir Directory di lavoro della richiesta
+	 * @param prefix Prefisso del nome del file
+	 * @param suffix Suffisso del nome del file
+	 * @param expectedSize Dimensione prevista del file (in byte)
+	 * @return
+	 * @throws Exception
+	 */
+	public File createTempFile(File dir, String prefix, String suffix, long expectedSize) throws Exception {
+		WorkDir workDir = findWorkDir(dir);
+		if (workDir != null)
+			return workDir.createTempFile(prefix, suffix, expectedSize);
+		return File.createTempFile(prefix, suffix, dir);
+	}
+
+	/**
+	 * Creazione di una sottodirectory temporanea all'interno della directory di lavoro passata, nel rispetto della quota dell'area in RAM. Se la
+	 * directory non e' gestita dal manager la sottodirectory viene creata direttamente nella directory indicata.
+	 * @param dir Directory di lavoro della richiesta
+	 * @param prefix Prefisso del nome della directory
+	 * @param expectedSize Dimensione complessiva prevista dei file che verranno salvati nella directory (in byte)
+	 * @return
+	 * @throws Exception
+	 */
+	public File createTempDir(File dir, String prefix, long expectedSize) throws Exception {
+		WorkDir workDir = findWorkDir(dir);
+		if (workDir != null)
+			return workDir.createTempDir(prefix, expectedSize);
+		return Files.createTempDirectory(dir.toPath(), prefix).toFile();
+	}
+
+	/**
+	 * Ritorna la directory nella quale gli strumenti esterni (OpenOffice, ImageMagick) devono scrivere un file della dimensione prevista
+	 * indicata, a partire dalla directory richiesta. Se la directory richiesta si trova nell'area in RAM viene riservata la quota, in caso di
+	 * quota non disponibile viene restituita la directory su disco della richiesta.
+	 * @param dir Directory richiesta (directory di lavoro o sua sottodirectory)
+	 * @param expectedSize Dimensione prevista del file (in byte)
+	 * @return
+	 * @throws Exception
+	 */
+	public File getOutputDir(File dir, long expectedSize) throws Exception {
+		WorkDir workDir = findWorkDir(dir);
+		if (workDir == null || !workDir.isRamPrimary())
+			return dir;
+		File reserved = workDir.reserveDir(expectedSize);
+		return reserved.equals(workDir.getRamDir()) ? dir : reserved;
+	}
+
+	/**
+	 * Allineamento della quota dell'area in RAM e dei byte scritti con i file effettivamente presenti nella directory di lavoro passata (file
+	 * salvati senza passare dal gestore, es. download eseguiti dall'implementazione di getDocumento)
+	 * @param dir Directory di lavoro della richiesta
+	 * @throws Exception
+	 */
+	public void reconcile(File dir) throws Exception {
+		WorkDir workDir = findWorkDir(dir);
+		if (workDir != null)
+			workDir.reconcile();
+	}
+
+	/**
+	 * Ritorna la directory di lavoro attiva che contiene il percorso passato, NULL se il percorso non appartiene ad alcuna richiesta
+	 * @param path
+	 * @return
+	 */
+	private WorkDir findWorkDir(File path) {
+		for (File current = path; current != null; current = current.getParentFile()) {
+			WorkDir workDir = workDirs.get(current);
+			if (workDir != null)
+				return workDir;
+		}
+		return null;
+	}
+
+	/**
+	 * Riserva la dimensione indicata sulla quota dell'area in RAM
+	 * @param bytes
+	 * @return true se la quota e' stata riservata, false se la dimensione eccede la quota disponibile
+	 */
+	boolean reserveRam(long bytes) {
+		if (ramFolder == null)
+			return false;
+		while (true) {
+			long current = reservedRamBytes.get();
+			if (current + bytes > ramQuota || ramFolder.getUsableSpace() < bytes)
+				return false;
+			if (reservedRamBytes.compareAndSet(current, current + bytes))
+				return true;
+		}
+	}
+
+	/**
+	 * Addebito sulla quota dell'area in RAM di byte gia' scritti (anche oltre la quota)
+	 * @param bytes
+	 */
+	void chargeRam(long bytes) {
+		reservedRamBytes.addAndGet(bytes);
+	}
+
+	public long getReservedRamBytes() {
+		return reservedRamBytes.get();
+	}
+
+	public long getTotalBytesWritten() {
+		return totalBytesWritten.get();
+	}
+
+}
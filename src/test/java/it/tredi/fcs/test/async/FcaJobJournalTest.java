@@ -0,0 +1,129 @@
+package it.tredi.fcs.test.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.tredi.fcs.command.async.FcaJob;
+import it.tredi.fcs.command.async.FcaJobJournal;
+
+/**
+ * Test di rielaborazione e compattazione del journal delle richieste FCA asincrone
+ */
+public class FcaJobJournalTest {
+
+	private static final String JOURNAL_FILE_NAME = "fca-jobs.journal";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Le richieste completate (END) vengono scartate, le pendenti vengono ritornate nell'ordine di ricezione con i tentativi gia' avviati;
+	 * l'ultimo record troncato (crash durante la scrittura) viene ignorato
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		File journalFile = new File(folder.getRoot(), JOURNAL_FILE_NAME);
+		StringBuilder records = new StringBuilder();
+		records.append(record(enqueued("a", "doc-a"))).append(record(enqueued("b", "doc-b")));
+		records.append(record(attempt("a", 1))).append(record(end("a", true)));
+		records.append(record(enqueued("c", "doc-c"))).append(record(attempt("c", 1))).append(record(attempt("c", 2)));
+		records.append("{\"type\":\"END\",\"id\":\"c\",\"do"); // record troncato
+		Files.write(journalFile.toPath(), records.toString().getBytes(StandardCharsets.UTF_8));
+
+		FcaJobJournal journal = new FcaJobJournal(folder.getRoot());
+		try {
+			List<FcaJob> jobs = journal.open();
+			assertEquals(2, jobs.size());
+			assertEquals("b", jobs.get(0).getId());
+			assertEquals("doc-b", jobs.get(0).getDocId());
+			assertEquals(0, jobs.get(0).getAttempts());
+			assertEquals("c", jobs.get(1).getId());
+			assertEquals(2, jobs.get(1).getAttempts());
+
+			// il journal viene riscritto con i soli record ENQ delle richieste pendenti
+			List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+			assertEquals(2, lines.size());
+			assertEquals(FcaJob.TYPE_ENQUEUED, mapper.readValue(lines.get(0), FcaJob.class).getType());
+		}
+		finally {
+			journal.close();
+		}
+	}
+
+	/**
+	 * La compattazione mantiene le sole richieste indicate (con i tentativi avviati), i record successivi vengono accodati al journal compattato
+	 */
+	@Test
+	public void testCompact() throws Exception {
+		FcaJobJournal journal = new FcaJobJournal(folder.getRoot());
+		FcaJob x = enqueued("x", "doc-x");
+		FcaJob y = enqueued("y", "doc-y");
+		try {
+			assertTrue(journal.open().isEmpty());
+			journal.append(x);
+			journal.append(y);
+			journal.append(attempt("x", 1));
+			journal.append(attempt("y", 1));
+			journal.append(end("x", false));
+			long size = journal.size();
+
+			y.setAttempts(1);
+			journal.compact(Arrays.asList(y));
+			assertTrue(journal.size() < size);
+
+			journal.append(attempt("y", 2));
+		}
+		finally {
+			journal.close();
+		}
+
+		FcaJobJournal reopened = new FcaJobJournal(folder.getRoot());
+		try {
+			List<FcaJob> jobs = reopened.open();
+			assertEquals(1, jobs.size());
+			assertEquals("y", jobs.get(0).getId());
+			assertEquals(2, jobs.get(0).getAttempts());
+		}
+		finally {
+			reopened.close();
+		}
+	}
+
+	private FcaJob enqueued(String id, String docId) {
+		FcaJob job = new FcaJob(FcaJob.TYPE_ENQUEUED, id);
+		job.setDocId(docId);
+		job.setConvTo(new String[] { "pdf" });
+		return job;
+	}
+
+	private FcaJob attempt(String id, int attempt) {
+		FcaJob job = new FcaJob(FcaJob.TYPE_ATTEMPT, id);
+		job.setAttempts(attempt);
+		return job;
+	}
+
+	private FcaJob end(String id, boolean done) {
+		FcaJob job = new FcaJob(FcaJob.TYPE_END, id);
+		job.setDone(done);
+		return job;
+	}
+
+	private String record(FcaJob job) throws Exception {
+		return mapper.writeValueAsString(job) + "\n";
+	}
+
+}
@@ -0,0 +1,178 @@
+package it.tredi.fcs.test.entity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import it.tredi.fcs.entity.InputSource;
+
+/**
+ * Test di ripresa della lettura sulle sorgenti basate su fornitore di InputStream (InputSource.fromStream)
+ */
+public class StreamSourceTest {
+
+	// Numero massimo di byte mantenuti in memoria per la ripresa della lettura (StreamSource.HEAD_LIMIT)
+	private static final int HEAD_LIMIT = 256 * 1024;
+
+	/**
+	 * Lettura parziale seguita da lettura completa: il secondo lettore riprende dallo stream lasciato aperto dal primo
+	 */
+	@Test
+	public void testPartialReadThenResume() throws Exception {
+		byte[] content = content(100 * 1024);
+		TrackingSupplier supplier = new TrackingSupplier(content);
+		InputSource source = InputSource.fromStream(supplier, content.length);
+
+		try (InputStream in = source.openStream()) {
+			assertArrayEquals(slice(content, 1000), readFully(in, 1000));
+		}
+		assertEquals(1, supplier.opened.size());
+		assertFalse(supplier.opened.get(0).closed);
+
+		try (InputStream in = source.openStream()) {
+			assertArrayEquals(content, readFully(in, -1));
+		}
+		assertEquals(1, supplier.opened.size());
+		assertTrue(supplier.opened.get(0).closed);
+	}
+
+	/**
+	 * Lettura oltre HEAD_LIMIT: i byte letti non possono essere mantenuti in memoria, il lettore successivo richiede un nuovo stream
+	 */
+	@Test
+	public void testReadPastHeadLimit() throws Exception {
+		byte[] content = content(2 * HEAD_LIMIT);
+		TrackingSupplier supplier = new TrackingSupplier(content);
+		InputSource source = InputSource.fromStream(supplier, content.length);
+
+		try (InputStream in = source.openStream()) {
+			assertArrayEquals(slice(content, HEAD_LIMIT + 1024), readFully(in, HEAD_LIMIT + 1024));
+		}
+		assertEquals(1, supplier.opened.size());
+		assertTrue(supplier.opened.get(0).closed);
+
+		try (InputStream in = source.openStream()) {
+			assertArrayEquals(content, readFully(in, -1));
+		}
+		assertEquals(2, supplier.opened.size());
+		assertTrue(supplier.opened.get(1).closed);
+	}
+
+	/**
+	 * Contenuto letto interamente entro HEAD_LIMIT: lo stream del fornitore viene chiuso e i lettori successivi leggono il contenuto dalla
+	 * memoria
+	 */
+	@Test
+	public void testEofInsideHead() throws Exception {
+		byte[] content = content(10);
+		TrackingSupplier supplier = new TrackingSupplier(content);
+		InputSource source = InputSource.fromStream(supplier, -1);
+
+		try (InputStream in = source.openStream()) {
+			assertArrayEquals(content, readFully(in, -1));
+		}
+		assertTrue(supplier.opened.get(0).closed);
+
+		for (int i = 0; i < 2; i++) {
+			try (InputStream in = source.openStream()) {
+				assertArrayEquals(content, readFully(in, -1));
+			}
+		}
+		assertEquals(1, supplier.opened.size());
+	}
+
+	/**
+	 * Il rilascio della sorgente chiude lo stream lasciato aperto, il lettore successivo richiede un nuovo stream
+	 */
+	@Test
+	public void testRelease() throws Exception {
+		byte[] content = content(64 * 1024);
+		TrackingSupplier supplier = new TrackingSupplier(content);
+		InputSource source = InputSource.fromStream(supplier, content.length);
+
+		try (InputStream in = source.openStream()) {
+			readFully(in, 100);
+		}
+		assertFalse(supplier.opened.get(0).closed);
+
+		source.release();
+		assertTrue(supplier.opened.get(0).closed);
+
+		try (InputStream in = source.openStream()) {
+			assertArrayEquals(content, readFully(in, -1));
+		}
+		assertEquals(2, supplier.opened.size());
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	private static byte[] slice(byte[] content, int length) {
+		byte[] slice = new byte[length];
+		System.arraycopy(content, 0, slice, 0, length);
+		return slice;
+	}
+
+	/**
+	 * Lettura del numero di byte indicato (o fino alla fine dello stream se minore di 0)
+	 */
+	private static byte[] readFully(InputStream in, int length) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		while (length < 0 || out.size() < length) {
+			int read = in.read(buffer, 0, (length < 0) ? buffer.length : Math.min(buffer.length, length - out.size()));
+			if (read == -1)
+				break;
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Fornitore che registra gli stream aperti
+	 */
+	private static class TrackingSupplier implements InputSource.StreamSupplier {
+
+		private final byte[] content;
+		private final List<TrackingInputStream> opened = new ArrayList<TrackingInputStream>();
+
+		public TrackingSupplier(byte[] content) {
+			this.content = content;
+		}
+
+		@Override
+		public InputStream open() {
+			TrackingInputStream in = new TrackingInputStream(content);
+			opened.add(in);
+			return in;
+		}
+	}
+
+	private static class TrackingInputStream extends ByteArrayInputStream {
+
+		private boolean closed = false;
+
+		public TrackingInputStream(byte[] content) {
+			super(content);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+package it.tredi.fcs.test.load;
+
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.test.DummyFcs;
+
+/**
+ * Generatore di carico per FCS: N client concorrenti eseguono richieste FCA, CONV e DIFF (secondo il mix indicato) tramite il protocollo socket
+ * di FCS. Al termine viene stampato il report con throughput e latenze p50/p95/p99 per tipologia di comando.
+ *
+ * Parametri (nella forma chiave=valore):
+ * <ul>
+ * <li>host: host di FCS (default localhost)</li>
+ * <li>port: porta di FCS (default quella indicata in configurazione)</li>
+ * <li>clients: numero di client concorrenti (default 16)</li>
+ * <li>requests: numero di richieste eseguite da ogni client (default 50)</li>
+ * <li>mix: file (risorsa del classpath) contenente il mix di richieste (default loadmix.txt)</li>
+ * <li>embedded: true per avviare FCS (DummyFcs) all'interno dello stesso processo (default false)</li>
+ * </ul>
+ * Es. java it.tredi.fcs.test.load.FcsLoadGenerator embedded=true clients=64 requests=100
+ */
+public class FcsLoadGenerator {
+
+	private static final long EMBEDDED_STARTUP_TIMEOUT = 60000;
+
+	public static void main(String[] args) {
+		try {
+			Map<String, String> params = parseArgs(args);
+
+			boolean embedded = Boolean.parseBoolean(params.getOrDefault("embedded", "false"));
+			String host = params.getOrDefault("host", "localhost");
+			int clients = Integer.parseInt(params.getOrDefault("clients", "16"));
+			int requests = Integer.parseInt(params.getOrDefault("requests", "50"));
+			List<LoadRequest> mix = loadMix(params.getOrDefault("mix", "loadmix.txt"));
+
+			if (embedded)
+				startEmbeddedFcs();
+			int port = params.containsKey("port") ? Integer.parseInt(params.get("port")) : FcsConfig.getInstance().getFcsPort();
+			if (embedded)
+				waitForFcs(host, port);
+
+			System.out.println("FCS: " + host + ":" + port + (embedded ? " (embedded)" : ""));
+			System.out.println("Client concorrenti: " + clients + ", richieste per client: " + requests + "\n");
+
+			LatencyRecorder recorder = new LatencyRecorder();
+			List<Thread> threads = new ArrayList<Thread>();
+			long startTime = System.currentTimeMillis();
+			for (int i = 0; i < clients; i++) {
+				Thread t = new LoadClientThread(host, port, mix, requests, recorder);
+				threads.add(t);
+				t.start();
+			}
+
+			// Mi metto in attesa della conclusione di tutti i client avviati
+			for (Thread t : threads)
+				t.join();
+
+			System.out.println(recorder.report(System.currentTimeMillis() - startTime));
+			System.exit(0);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Lettura dei parametri nella forma chiave=valore
+	 */
+	private static Map<String, String> parseArgs(String[] args) throws Exception {
+		Map<String, String> params = new HashMap<String, String>();
+		for (String arg : args) {
+			int index = arg.indexOf('=');
+			if (index == -1)
+				throw new Exception("Invalid argument (key=value expected): " + arg);
+			params.put(arg.substring(0, index).trim(), arg.substring(index + 1).trim());
+		}
+		return params;
+	}
+
+	/**
+	 * Caricamento del mix di richieste (le righe vuote o che iniziano con '-' vengono ignorate)
+	 */
+	private static List<LoadRequest> loadMix(String resource) throws Exception {
+		URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
+		if (url == null)
+			throw new Exception("Load mix not found: " + resource);
+
+		List<LoadRequest> mix = new ArrayList<LoadRequest>();
+		for (String line : Files.readAllLines(Paths.get(url.toURI()))) {
+			if (line.trim().isEmpty() || line.startsWith("-"))
+				continue;
+			LoadRequest request = LoadRequest.parse(line);
+			if (request.getWeight() > 0)
+				mix.add(request);
+		}
+		if (mix.isEmpty())
+			throw new Exception("Empty load mix: " + resource);
+		return mix;
+	}
+
+	/**
+	 * Avvio di DummyFcs all'interno del processo corrente
+	 */
+	private static void startEmbeddedFcs() throws Exception {
+		DummyFcs dummyFcs = new DummyFcs();
+		Thread t = new Thread(() -> {
+			try {
+				dummyFcs.run();
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "embedded-fcs");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Attesa dell'avvio di FCS (porta in ascolto)
+	 */
+	private static void waitForFcs(String host, int port) throws Exception {
+		long deadline = System.currentTimeMillis() + EMBEDDED_STARTUP_TIMEOUT;
+		while (true) {
+			try (Socket socket = new Socket(host, port)) {
+				// la connessione di verifica viene chiusa senza inviare alcun header
+				return;
+			}
+			catch (Exception e) {
+				if (System.currentTimeMillis() > deadline)
+					throw new Exception("FCS not listening on " + host + ":" + port + " after " + EMBEDDED_STARTUP_TIMEOUT + " millis");
+				Thread.sleep(500);
+			}
+		}
+	}
+
+	/**
+	 * Client di carico: esegue in sequenza il numero di richieste indicato, scegliendo ogni richiesta dal mix in base al peso
+	 */
+	private static class LoadClientThread extends Thread {
+
+		private final String host;
+		private final int port;
+		private final List<LoadRequest> mix;
+		private final int requests;
+		private final LatencyRecorder recorder;
+		private final int totalWeight;
+
+		public LoadClientThread(String host, int port, List<LoadRequest> mix, int requests, LatencyRecorder recorder) {
+			this.host = host;
+			this.port = port;
+			this.mix = mix;
+			this.requests = requests;
+			this.recorder = recorder;
+
+			int weight = 0;
+			for (LoadRequest request : mix)
+				weight += request.getWeight();
+			this.totalWeight = weight;
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < requests; i++) {
+				LoadRequest request = next();
+				long start = System.currentTimeMillis();
+				boolean done = false;
+				try {
+					done = request.execute(host, port);
+				}
+				catch (Exception e) {
+					System.out.println(request.getType() + ": request FAILED... " + e.getMessage());
+				}
+				recorder.record(request.getType(), System.currentTimeMillis() - start, done);
+			}
+		}
+
+		private LoadRequest next() {
+			int value = ThreadLocalRandom.current().nextInt(totalWeight);
+			for (LoadRequest request : mix) {
+				value -= request.getWeight();
+				if (value < 0)
+					return request;
+			}
+			return mix.get(mix.size()-1);
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package it.tredi.fcs.test.load;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Raccolta delle latenze delle richieste eseguite dal generatore di carico (per tipologia di comando) e calcolo di throughput e percentili
+ */
+public class LatencyRecorder {
+
+	private final Map<String, List<Long>> latencies = new TreeMap<String, List<Long>>();
+	private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+
+	/**
+	 * Registrazione dell'esito di una richiesta
+	 * @param type Tipologia di comando
+	 * @param millis Latenza della richiesta (in millisecondi)
+	 * @param done true se la richiesta e' stata completata con successo
+	 */
+	public synchronized void record(String type, long millis, boolean done) {
+		if (done) {
+			List<Long> values = latencies.get(type);
+			if (values == null) {
+				values = new ArrayList<Long>();
+				latencies.put(type, values);
+			}
+			values.add(millis);
+		}
+		else {
+			Integer count = failures.get(type);
+			failures.put(type, count != null ? count + 1 : 1);
+		}
+	}
+
+	/**
+	 * Ritorna il report delle richieste eseguite: per ogni tipologia di comando numero di richieste completate e fallite, throughput e
+	 * latenze p50/p95/p99 (e massima) delle richieste completate
+	 * @param elapsedMillis Durata complessiva del test (in millisecondi)
+	 * @return
+	 */
+	public synchronized String report(long elapsedMillis) {
+		NumberFormat formatter = new DecimalFormat("#0.00");
+		double seconds = Math.max(1, elapsedMillis) / 1000.0;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-6s %8s %8s %10s %8s %8s %8s %8s%n", "CMD", "DONE", "FAILED", "REQ/SEC", "P50", "P95", "P99", "MAX"));
+
+		List<String> types = new ArrayList<String>(latencies.keySet());
+		for (String type : failures.keySet()) {
+			if (!types.contains(type))
+				types.add(type);
+		}
+		for (String type : types) {
+			List<Long> values = latencies.containsKey(type) ? new ArrayList<Long>(latencies.get(type)) : new ArrayList<Long>();
+			Collections.sort(values);
+			int failed = failures.containsKey(type) ? failures.get(type) : 0;
+
+			sb.append(String.format("%-6s %8d %8d %10s %8d %8d %8d %8d%n", type, values.size(), failed, formatter.format(values.size() / seconds),
+					percentile(values, 50), percentile(values, 95), percentile(values, 99), values.isEmpty() ? 0 : values.get(values.size()-1)));
+		}
+		sb.append("Tempo Totale: " + elapsedMillis + " ms");
+		return sb.toString();
+	}
+
+	/**
+	 * Percentile (nearest-rank) sui valori ordinati passati
+	 */
+	private static long percentile(List<Long> sorted, int percentile) {
+		if (sorted.isEmpty())
+			return 0;
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+}
@@ -0,0 +1,188 @@
+package it.tredi.fcs.test.load;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import it.tredi.fcs.socket.commands.HeaderRequest;
+import it.tredi.fcs.socket.commands.HeaderResponse;
+import it.tredi.fcs.socket.commands.Protocol;
+
+/**
+ * Richiesta del mix di carico (FCA, CONV o DIFF) eseguita tramite il protocollo socket di FCS. Ogni esecuzione apre una nuova connessione
+ * verso FCS, esegue l'handshake e il comando e chiude la connessione.
+ *
+ * Formato della riga del mix:
+ * <ul>
+ * <li>FCA;peso;docId;conversioni (conversioni separate da virgola, eventualmente vuoto)</li>
+ * <li>CONV;peso;file;estensioneDestinazione</li>
+ * <li>DIFF;peso;filePrecedente;fileSuccessivo;estensioneOutput</li>
+ * </ul>
+ * I file sono indicati come risorse del classpath (es. doc/copertina.doc in src/test/resources).
+ */
+public class LoadRequest {
+
+	public static final String TYPE_FCA = "FCA";
+	public static final String TYPE_CONV = "CONV";
+	public static final String TYPE_DIFF = "DIFF";
+
+	private final String type;
+	private final int weight;
+	private final String[] params;
+
+	// contenuto dei file caricato una sola volta (non incide sulle latenze misurate)
+	private final byte[][] files;
+
+	private LoadRequest(String type, int weight, String[] params, byte[][] files) {
+		this.type = type;
+		this.weight = weight;
+		this.params = params;
+		this.files = files;
+	}
+
+	/**
+	 * Interpretazione di una riga del mix di carico
+	 * @param line Riga del mix
+	 * @return
+	 * @throws Exception
+	 */
+	public static LoadRequest parse(String line) throws Exception {
+		String[] split = line.split(";", -1);
+		if (split.length < 3)
+			throw new Exception("Invalid load mix line: " + line);
+
+		String type = split[0].trim().toUpperCase();
+		int weight = Integer.parseInt(split[1].trim());
+		String[] params = Arrays.copyOfRange(split, 2, split.length);
+
+		if (type.equals(TYPE_FCA)) {
+			return new LoadRequest(type, weight, params, new byte[0][]);
+		}
+		else if (type.equals(TYPE_CONV)) {
+			if (params.length != 2)
+				throw new Exception("Invalid CONV load mix line: " + line);
+			return new LoadRequest(type, weight, params, new byte[][] { readResource(params[0]) });
+		}
+		else if (type.equals(TYPE_DIFF)) {
+			if (params.length != 3)
+				throw new Exception("Invalid DIFF load mix line: " + line);
+			return new LoadRequest(type, weight, params, new byte[][] { readResource(params[0]), readResource(params[1]) });
+		}
+		else {
+			throw new Exception("Unsupported command type: " + type);
+		}
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Esecuzione della richiesta verso FCS
+	 * @param host Host di FCS
+	 * @param port Porta di FCS
+	 * @return true se FCS risponde con DONE, false in caso di ERRORS
+	 * @throws Exception
+	 */
+	public boolean execute(String host, int port) throws Exception {
+		try (Socket socket = new Socket(host, port);
+				DataInputStream dis = new DataInputStream(socket.getInputStream());
+				DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+			Protocol protocol = new Protocol(dis, dos);
+
+			// handshake
+			protocol.sendHeader(HeaderRequest.INIT_HEADER.bytes());
+			if (!isResponse(protocol.receiveHeader(), HeaderResponse.ACK_HEADER))
+				return false;
+
+			if (type.equals(TYPE_FCA))
+				return executeFca(protocol);
+			else if (type.equals(TYPE_CONV))
+				return executeConv(protocol);
+			else
+				return executeDiff(protocol);
+		}
+	}
+
+	private boolean executeFca(Protocol protocol) throws Exception {
+		protocol.sendHeader(HeaderRequest.FCA_HEADER.bytes());
+		if (!isResponse(protocol.receiveHeader(), HeaderResponse.ACK_HEADER))
+			return false;
+
+		protocol.sendString(params[0]); // docId
+		protocol.sendString(params.length > 1 ? params[1] : ""); // conversioni richieste
+		protocol.sendString(""); // parametri aggiuntivi
+		return isResponse(protocol.receiveHeader(), HeaderResponse.DONE_HEADER);
+	}
+
+	private boolean executeConv(Protocol protocol) throws Exception {
+		protocol.sendHeader(HeaderRequest.CONV_HEADER.bytes());
+		if (!isResponse(protocol.receiveHeader(), HeaderResponse.ACK_HEADER))
+			return false;
+
+		sendFile(protocol, files[0]);
+		protocol.sendString(getExtension(params[0])); // estensione di input
+		protocol.sendString(params[1]); // estensione di output
+
+		if (!isResponse(protocol.receiveHeader(), HeaderResponse.DONE_HEADER))
+			return false;
+		receiveFile(protocol);
+		return true;
+	}
+
+	private boolean executeDiff(Protocol protocol) throws Exception {
+		protocol.sendHeader(HeaderRequest.DIFF_HEADER.bytes());
+		if (!isResponse(protocol.receiveHeader(), HeaderResponse.ACK_HEADER))
+			return false;
+
+		sendFile(protocol, files[0]);
+		protocol.sendString(getExtension(params[0])); // estensione della versione precedente
+		sendFile(protocol, files[1]);
+		protocol.sendString(getExtension(params[1])); // estensione della versione successiva
+		protocol.sendString(params[2]); // estensione di output
+
+		if (!isResponse(protocol.receiveHeader(), HeaderResponse.DONE_HEADER))
+			return false;
+		protocol.receiveString(); // estensione prodotta
+		receiveFile(protocol);
+		return true;
+	}
+
+	private void sendFile(Protocol protocol, byte[] content) throws Exception {
+		protocol.sendString(String.valueOf(content.length));
+		protocol.sendFile(new ByteArrayInputStream(content), content.length);
+	}
+
+	private void receiveFile(Protocol protocol) throws Exception {
+		int size = Integer.parseInt(protocol.receiveString());
+		protocol.receiveFile(new ByteArrayOutputStream(size), size);
+	}
+
+	private static boolean isResponse(byte[] header, HeaderResponse expected) {
+		return Arrays.equals(header, expected.bytes());
+	}
+
+	private static String getExtension(String fileName) {
+		int index = fileName.lastIndexOf('.');
+		return (index != -1) ? fileName.substring(index + 1) : "";
+	}
+
+	private static byte[] readResource(String name) throws Exception {
+		URL url = Thread.currentThread().getContextClassLoader().getResource(name);
+		if (url == null)
+			throw new Exception("Test resource not found: " + name);
+
+		return Files.readAllBytes(Paths.get(url.toURI()));
+	}
+
+}
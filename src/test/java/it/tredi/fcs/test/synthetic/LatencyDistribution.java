@@ -0,0 +1,77 @@
+package it.tredi.fcs.test.synthetic;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribuzione delle latenze simulate dall'executor sintetico. Formati supportati:
+ * <ul>
+ * <li>fixed:millis - latenza costante</li>
+ * <li>uniform:min:max - latenza uniforme fra min e max millisecondi</li>
+ * <li>exp:media - latenza con distribuzione esponenziale di media indicata (millisecondi)</li>
+ * </ul>
+ */
+public class LatencyDistribution {
+
+	public static final LatencyDistribution NONE = new LatencyDistribution("fixed", 0, 0);
+
+	private final String type;
+	private final double a;
+	private final double b;
+
+	private LatencyDistribution(String type, double a, double b) {
+		this.type = type;
+		this.a = a;
+		this.b = b;
+	}
+
+	/**
+	 * Interpretazione della distribuzione indicata
+	 * @param value Distribuzione (es. uniform:10:50), NULL o vuoto per nessuna latenza
+	 * @return
+	 */
+	public static LatencyDistribution parse(String value) {
+		if (value == null || value.trim().isEmpty())
+			return NONE;
+
+		String[] split = value.trim().split(":");
+		String type = split[0].toLowerCase();
+		if (type.equals("fixed") && split.length == 2)
+			return new LatencyDistribution(type, Double.parseDouble(split[1]), 0);
+		else if (type.equals("uniform") && split.length == 3)
+			return new LatencyDistribution(type, Double.parseDouble(split[1]), Double.parseDouble(split[2]));
+		else if (type.equals("exp") && split.length == 2)
+			return new LatencyDistribution(type, Double.parseDouble(split[1]), 0);
+		throw new IllegalArgumentException("Invalid latency distribution: " + value);
+	}
+
+	/**
+	 * Estrazione di una latenza dalla distribuzione
+	 * @return Latenza in millisecondi
+	 */
+	public long next() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (type.equals("uniform"))
+			return (long) (a + random.nextDouble() * (b - a));
+		else if (type.equals("exp"))
+			return (long) (-a * Math.log(1 - random.nextDouble()));
+		return (long) a;
+	}
+
+	/**
+	 * Attesa pari ad una latenza estratta dalla distribuzione
+	 * @throws InterruptedException
+	 */
+	public void sleep() throws InterruptedException {
+		long millis = next();
+		if (millis > 0)
+			Thread.sleep(millis);
+	}
+
+	@Override
+	public String toString() {
+		if (type.equals("uniform"))
+			return type + ":" + a + ":" + b;
+		return type + ":" + a;
+	}
+
+}
@@ -0,0 +1,217 @@
+package it.tredi.fcs.test.synthetic;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import it.tredi.fcs.FcsConfig;
+import it.tredi.fcs.socket.commands.HeaderRequest;
+import it.tredi.fcs.socket.commands.HeaderResponse;
+import it.tredi.fcs.socket.commands.Protocol;
+
+/**
+ * Test di regressione sull'overhead introdotto da FCS (accept, handshake, creazione e cancellazione della directory di lavoro, avvio del
+ * thread) rispetto al tempo speso nell'executor FCA, misurato con 1, 16, 128 e 1024 connessioni concorrenti. Le richieste vengono gestite
+ * dal ciclo di accept di Fcs ({@link SyntheticFcs}, in ascolto sulla porta fcs.port della configurazione). Il test fallisce se il p50 o il
+ * p99 dell'overhead superano le soglie indicate.
+ *
+ * I livelli da 1 e 16 connessioni vengono sempre eseguiti, i livelli da 128 e 1024 connessioni solo se abilitati tramite proprieta' di sistema
+ * (es. mvn test -Dfcs.overhead.suite=true). Soglie (in millisecondi): fcs.overhead.p50.max (default 25) e fcs.overhead.p99.max (default 250).
+ * Le latenze dell'executor sono configurabili tramite le proprieta' indicate su {@link SyntheticFcaCommandExecutor}.
+ */
+public class SchedulerOverheadTest {
+
+	private static final Logger logger = LogManager.getLogger(SchedulerOverheadTest.class.getName());
+
+	private static final int MIN_REQUESTS_PER_LEVEL = 256;
+
+	// Tempo massimo di attesa dell'avvio di FCS (in millisecondi)
+	private static final long STARTUP_TIMEOUT = 30000;
+
+	private static final long P50_MAX_MILLIS = Long.getLong("fcs.overhead.p50.max", 25L);
+	private static final long P99_MAX_MILLIS = Long.getLong("fcs.overhead.p99.max", 250L);
+
+	private static SyntheticFcs fcs;
+	private static int port;
+	private static final AtomicInteger docCounter = new AtomicInteger();
+
+	/**
+	 * Avvio di FCS (ciclo di accept di Fcs, senza OpenOffice) e riscaldamento
+	 */
+	@BeforeClass
+	public static void startServer() throws Exception {
+		fcs = new SyntheticFcs();
+		Thread t = new Thread(() -> {
+			try {
+				fcs.run();
+			}
+			catch (Exception e) {
+				logger.error("SchedulerOverheadTest.startServer(): FCS run failed... " + e.getMessage(), e);
+			}
+		}, "overhead-fcs");
+		t.setDaemon(true);
+		t.start();
+
+		port = FcsConfig.getInstance().getFcsPort();
+		waitForFcs();
+
+		// riscaldamento (JIT, inizializzazione dei singleton di configurazione e directory di lavoro)
+		runLevel(16, 64);
+	}
+
+	@AfterClass
+	public static void stopServer() throws Exception {
+		if (fcs != null)
+			fcs.drain();
+	}
+
+	@Test
+	public void testOverhead1() throws Exception {
+		checkLevel(1);
+	}
+
+	@Test
+	public void testOverhead16() throws Exception {
+		checkLevel(16);
+	}
+
+	@Test
+	public void testOverhead128() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("fcs.overhead.suite"));
+		checkLevel(128);
+	}
+
+	@Test
+	public void testOverhead1024() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("fcs.overhead.suite"));
+		checkLevel(1024);
+	}
+
+	/**
+	 * Misura dell'overhead con il numero di connessioni concorrenti indicato e verifica delle soglie
+	 */
+	private void checkLevel(int concurrency) throws Exception {
+		List<Long> overheads = runLevel(concurrency, Math.max(MIN_REQUESTS_PER_LEVEL, 2 * concurrency));
+		Collections.sort(overheads);
+
+		long p50 = percentile(overheads, 50);
+		long p99 = percentile(overheads, 99);
+		if (logger.isInfoEnabled())
+			logger.info("SchedulerOverheadTest.checkLevel(): FCS overhead with " + concurrency + " concurrent connections: p50 = " + p50 + " ms, p99 = " + p99
+					+ " ms, max = " + overheads.get(overheads.size()-1) + " ms [requests = " + overheads.size() + "]");
+
+		assertTrue("p50 overhead " + p50 + " ms exceeds " + P50_MAX_MILLIS + " ms at concurrency " + concurrency, p50 <= P50_MAX_MILLIS);
+		assertTrue("p99 overhead " + p99 + " ms exceeds " + P99_MAX_MILLIS + " ms at concurrency " + concurrency, p99 <= P99_MAX_MILLIS);
+	}
+
+	/**
+	 * Esecuzione delle richieste FCA con il numero di client concorrenti indicato
+	 * @return Overhead di ogni richiesta (latenza lato client meno tempo speso nell'executor) in millisecondi
+	 */
+	private static List<Long> runLevel(int concurrency, int requests) throws Exception {
+		final int perClient = Math.max(1, requests / concurrency);
+		final List<Long> overheads = Collections.synchronizedList(new ArrayList<Long>(perClient * concurrency));
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch startSignal = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<Thread>(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					startSignal.await();
+					for (int j = 0; j < perClient; j++) {
+						String docId = "synthetic-" + docCounter.incrementAndGet();
+						long start = System.nanoTime();
+						boolean done = executeFca(docId);
+						long clientNanos = System.nanoTime() - start;
+						long executorNanos = SyntheticFcaCommandExecutor.takeExecutorNanos(docId);
+						if (done)
+							overheads.add((clientNanos - executorNanos) / 1000000);
+						else
+							failures.incrementAndGet();
+					}
+				}
+				catch (Exception e) {
+					failures.incrementAndGet();
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+
+		startSignal.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		assertTrue(failures.get() + " FCA requests failed at concurrency " + concurrency, failures.get() == 0);
+		return overheads;
+	}
+
+	/**
+	 * Richiesta FCA tramite il protocollo socket di FCS
+	 */
+	private static boolean executeFca(String docId) throws Exception {
+		try (Socket socket = new Socket("localhost", port);
+				DataInputStream dis = new DataInputStream(socket.getInputStream());
+				DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+			Protocol protocol = new Protocol(dis, dos);
+
+			protocol.sendHeader(HeaderRequest.INIT_HEADER.bytes());
+			if (!Arrays.equals(protocol.receiveHeader(), HeaderResponse.ACK_HEADER.bytes()))
+				return false;
+
+			protocol.sendHeader(HeaderRequest.FCA_HEADER.bytes());
+			if (!Arrays.equals(protocol.receiveHeader(), HeaderResponse.ACK_HEADER.bytes()))
+				return false;
+
+			protocol.sendString(docId);
+			protocol.sendString(""); // nessuna conversione
+			protocol.sendString(""); // nessun parametro aggiuntivo
+			return Arrays.equals(protocol.receiveHeader(), HeaderResponse.DONE_HEADER.bytes());
+		}
+	}
+
+	/**
+	 * Attesa dell'avvio di FCS (porta in ascolto)
+	 */
+	private static void waitForFcs() throws Exception {
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (true) {
+			try (Socket socket = new Socket("localhost", port)) {
+				// la connessione di verifica viene chiusa senza inviare alcun header
+				return;
+			}
+			catch (Exception e) {
+				if (System.currentTimeMillis() > deadline)
+					throw new Exception("FCS not listening on port " + port + " after " + STARTUP_TIMEOUT + " millis");
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Percentile (nearest-rank) sui valori ordinati passati
+	 */
+	private static long percentile(List<Long> sorted, int percentile) {
+		if (sorted.isEmpty())
+			return 0;
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+}
@@ -0,0 +1,95 @@
+package it.tredi.fcs.test.synthetic;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import it.tredi.fcs.command.FcaCommandExecutor;
+import it.tredi.fcs.entity.Documento;
+
+/**
+ * Executor FCA sintetico per la misura dell'overhead introdotto da FCS. Il caricamento e il salvataggio del documento simulano le latenze
+ * delle distribuzioni configurate; per ogni file (virtuale) del documento viene inoltre consumata CPU per il tempo indicato. Il tempo
+ * speso all'interno dell'executor viene registrato per docId, in modo da poterlo sottrarre alla latenza misurata dal client.
+ *
+ * Parametri (proprieta' di sistema):
+ * <ul>
+ * <li>fcs.synthetic.fetch: distribuzione delle latenze di getDocumento() (default fixed:0)</li>
+ * <li>fcs.synthetic.save: distribuzione delle latenze di saveDocumento() (default fixed:0)</li>
+ * <li>fcs.synthetic.files: numero di file (virtuali) per documento (default 0)</li>
+ * <li>fcs.synthetic.cpu.micros: CPU consumata per ogni file (in microsecondi, default 0)</li>
+ * </ul>
+ */
+public class SyntheticFcaCommandExecutor extends FcaCommandExecutor {
+
+	private static final LatencyDistribution FETCH = LatencyDistribution.parse(System.getProperty("fcs.synthetic.fetch"));
+	private static final LatencyDistribution SAVE = LatencyDistribution.parse(System.getProperty("fcs.synthetic.save"));
+	private static final int FILES = Integer.getInteger("fcs.synthetic.files", 0);
+	private static final long CPU_MICROS = Long.getLong("fcs.synthetic.cpu.micros", 0L);
+
+	// tempo (in nanosecondi) speso all'interno dell'executor per docId
+	private static final Map<String, Long> executorNanos = new ConcurrentHashMap<String, Long>();
+
+	// evita l'eliminazione del calcolo da parte del JIT
+	private static volatile double sink;
+
+	private final String docId;
+
+	public SyntheticFcaCommandExecutor(String docId, String[] convTo, String additionalParams, File workDir) throws Exception {
+		super(docId, convTo, additionalParams, workDir);
+		this.docId = docId;
+	}
+
+	@Override
+	public Documento getDocumento(String id, File workDir) throws Exception {
+		long start = System.nanoTime();
+		try {
+			FETCH.sleep();
+			for (int i = 0; i < FILES; i++)
+				burnCpu(CPU_MICROS);
+			// documento senza allegati: nessuna elaborazione reale viene eseguita sui file
+			return new Documento(id);
+		}
+		finally {
+			executorNanos.merge(docId, System.nanoTime() - start, Long::sum);
+		}
+	}
+
+	@Override
+	public boolean saveDocumento(Documento documento) throws Exception {
+		long start = System.nanoTime();
+		try {
+			SAVE.sleep();
+			return true;
+		}
+		finally {
+			executorNanos.merge(docId, System.nanoTime() - start, Long::sum);
+		}
+	}
+
+	/**
+	 * Ritorna (e rimuove) il tempo speso all'interno dell'executor per il docId indicato
+	 * @param docId
+	 * @return Tempo in nanosecondi (0 se il documento non e' stato elaborato)
+	 */
+	public static long takeExecutorNanos(String docId) {
+		Long nanos = executorNanos.remove(docId);
+		return (nanos != null) ? nanos : 0;
+	}
+
+	/**
+	 * Consumo di CPU per il tempo indicato
+	 */
+	private static void burnCpu(long micros) {
+		if (micros <= 0)
+			return;
+		long deadline = System.nanoTime() + micros * 1000;
+		double value = 0;
+		while (System.nanoTime() < deadline) {
+			for (int i = 1; i < 1000; i++)
+				value += Math.sqrt(i);
+		}
+		sink = value;
+	}
+
+}
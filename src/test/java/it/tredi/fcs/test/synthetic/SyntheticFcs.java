@@ -0,0 +1,27 @@
+package it.tredi.fcs.test.synthetic;
+
+import java.net.Socket;
+
+import it.tredi.fcs.FcsThread;
+import it.tredi.fcs.test.DummyFcs;
+
+/**
+ * DummyFcs con executor FCA sintetico: il ciclo di accept e' quello di Fcs, OpenOffice non viene avviato
+ */
+public class SyntheticFcs extends DummyFcs {
+
+	public SyntheticFcs() throws Exception {
+		super();
+	}
+
+	@Override
+	public FcsThread getFcsThread(Socket clientSocket) throws Exception {
+		return new SyntheticFcsThread(clientSocket);
+	}
+
+	@Override
+	protected void startOpenOfficeManager() throws Exception {
+		// l'executor sintetico non esegue conversioni
+	}
+
+}
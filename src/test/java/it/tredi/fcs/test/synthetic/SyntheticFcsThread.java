@@ -0,0 +1,20 @@
+package it.tredi.fcs.test.synthetic;
+
+import java.io.File;
+import java.net.Socket;
+
+import it.tredi.fcs.FcsThread;
+import it.tredi.fcs.command.FcaCommandExecutor;
+
+public class SyntheticFcsThread extends FcsThread {
+
+	public SyntheticFcsThread(Socket client) {
+		super(client);
+	}
+
+	@Override
+	public FcaCommandExecutor getFcaCommandExecutor(String id, String[] convTo, String additionalParams, File workDir) throws Exception {
+		return new SyntheticFcaCommandExecutor(id, convTo, additionalParams, workDir);
+	}
+
+}